@@ -0,0 +1,45 @@
+package cloud.phusion;
+
+import com.alibaba.fastjson2.JSONB;
+
+/**
+ * Binary encoding of JSON data (for checkpoints in KV or DB storage), based on fastjson2 JSONB.
+ *
+ * Format: one byte of format version, followed by the JSONB document.
+ * A JSON text never starts with the version byte, so the text and binary formats can coexist,
+ * use isBinary() to tell them apart.
+ */
+public final class BinaryCodec {
+
+    public static final byte FORMAT_JSONB_V1 = 0x01;
+
+    private BinaryCodec() {
+        super();
+    }
+
+    /**
+     * @param value JSONObject, JSONArray, Map, List, String, Number, Boolean, etc.
+     */
+    public static byte[] encode(Object value) {
+        byte[] doc = JSONB.toBytes(value);
+        byte[] result = new byte[doc.length + 1];
+        result[0] = FORMAT_JSONB_V1;
+        System.arraycopy(doc, 0, result, 1, doc.length);
+        return result;
+    }
+
+    /**
+     * Decode the binary data. Objects are decoded as JSONObject, arrays as JSONArray.
+     */
+    public static Object decode(byte[] data) throws Exception {
+        if (! isBinary(data)) throw new PhusionException("BIN_FMT", "Failed to decode binary data",
+                "format="+(data==null||data.length==0 ? "" : Byte.toString(data[0])));
+
+        return JSONB.parseObject(data, 1, data.length-1, Object.class);
+    }
+
+    public static boolean isBinary(byte[] data) {
+        return data!=null && data.length>1 && data[0]==FORMAT_JSONB_V1;
+    }
+
+}
@@ -0,0 +1,54 @@
+package cloud.phusion;
+
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * JSONArray which shares the child objects and arrays with its source.
+ *
+ * Only the items of this level are copied. A shared child is copied (in the same way) the first time it is
+ * got with get(), getJSONObject() or getJSONArray().
+ *
+ * The source must not be modified afterwards. Children reached by iterating are still shared,
+ * they can be read but not modified. If a child is referenced by several items, only the first one got is copied.
+ *
+ * It is not thread-safe.
+ */
+class CopyOnWriteJSONArray extends JSONArray {
+
+    private Set<Object> sharedChildren; // Children still shared with the source, compared by identity
+
+    public CopyOnWriteJSONArray(Collection<?> source) {
+        super(source);
+
+        for (Object value : source) {
+            if (value instanceof JSONObject || value instanceof JSONArray) {
+                if (sharedChildren == null) sharedChildren = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                sharedChildren.add(value);
+            }
+        }
+    }
+
+    @Override
+    public Object get(int index) {
+        Object value = super.get(index);
+        if (value==null || sharedChildren==null || ! sharedChildren.remove(value)) return value;
+
+        Object copy = (value instanceof JSONObject) ?
+                new CopyOnWriteJSONObject((JSONObject) value) : new CopyOnWriteJSONArray((JSONArray) value);
+        super.set(index, copy);
+        return copy;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        sharedChildren = null;
+    }
+
+}
@@ -0,0 +1,80 @@
+package cloud.phusion;
+
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JSONObject which shares the child objects and arrays with its source.
+ *
+ * Only the fields of this level are copied. A shared child is copied (in the same way) the first time it is
+ * got with get(), getJSONObject() or getJSONArray(), so a branch only pays for the paths it touches.
+ *
+ * The source must not be modified afterwards. Children reached by iterating entrySet() or values() are still shared,
+ * they can be read but not modified. If a child is referenced by several fields, only the first one got is copied.
+ *
+ * It is not thread-safe.
+ */
+class CopyOnWriteJSONObject extends JSONObject {
+
+    private Set<Object> sharedChildren; // Children still shared with the source, compared by identity
+
+    public CopyOnWriteJSONObject(Map<String, Object> source) {
+        super(source);
+
+        for (Object value : source.values()) {
+            if (value instanceof JSONObject || value instanceof JSONArray) {
+                if (sharedChildren == null) sharedChildren = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                sharedChildren.add(value);
+            }
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        _own(key);
+        return super.get(key);
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object defaultValue) {
+        _own(key);
+        return super.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public JSONObject getJSONObject(String key) {
+        _own(key);
+        return super.getJSONObject(key);
+    }
+
+    @Override
+    public JSONArray getJSONArray(String key) {
+        _own(key);
+        return super.getJSONArray(key);
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        sharedChildren = null;
+    }
+
+    /**
+     * Replace the shared child with a copy owned by this object.
+     */
+    private void _own(Object key) {
+        if (sharedChildren==null || sharedChildren.isEmpty()) return;
+
+        Object value = super.get(key);
+        if (value==null || ! sharedChildren.remove(value)) return;
+
+        if (value instanceof JSONObject) super.put((String) key, new CopyOnWriteJSONObject((JSONObject) value));
+        else super.put((String) key, new CopyOnWriteJSONArray((JSONArray) value));
+    }
+
+}
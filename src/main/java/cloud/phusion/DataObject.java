@@ -3,34 +3,66 @@ package cloud.phusion;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSONPath;
+import com.alibaba.fastjson2.JSONReader;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Data (message, config, etc.) passed around in the engine.
+ *
+ * The data can be a String, a JSONObject, a JSONArray or UTF-8 bytes (byte[] or ByteBuffer).
+ * Conversions between them are done lazily and cached.
+ *
+ * It is not thread-safe. Use freeze() to get an immutable snapshot which can be shared across threads.
+ */
 public class DataObject {
     private Object data;
+    private int dataOffset; // Only for byte[] data
+    private int dataLength; // Only for byte[] data
     private String dataString;
     private JSONObject dataJSONObject;
     private JSONArray dataJSONArray;
+    private boolean notJSONObject; // Parsing as JSONObject has failed, do not try again
+    private boolean notJSONArray; // Parsing as JSONArray has failed, do not try again
 
+    /**
+     * UTF-8 encoded JSON bytes can be passed as byte[] or ByteBuffer. A byte array is not copied, so do not modify
+     * it afterwards. For a ByteBuffer, the remaining bytes are wrapped, and heap buffers are not copied.
+     */
     public DataObject(Object data) {
         super();
-        this.data = data;
-        this.dataJSONObject = null;
-        this.dataJSONArray = null;
-        this.dataString = null;
+        _setData(data);
+    }
+
+    /**
+     * Wrap a range of UTF-8 encoded JSON bytes. The array is not copied, so do not modify it afterwards.
+     */
+    public DataObject(byte[] data, int offset, int length) {
+        super();
+        _setBytes(data, offset, length);
     }
 
     public void setData(Object data) {
-        this.data = data;
-        this.dataJSONObject = null;
-        this.dataJSONArray = null;
-        this.dataString = null;
+        _setData(data);
     }
 
+    /**
+     * For byte data, the whole backing array is returned, use toBytes() to get the exact range.
+     */
     public Object getData() {
         return data;
     }
 
     public JSONObject getJSONObject() {
-        if (dataJSONObject == null) {
+        if (dataJSONObject==null && !notJSONObject) {
             if (data == null) dataJSONObject = null;
             else if (data instanceof JSONObject) dataJSONObject = (JSONObject) data;
             else if (data instanceof String) {
@@ -40,14 +72,23 @@ public class DataObject {
                     dataJSONObject = null;
                 }
             }
+            else if (data instanceof byte[]) {
+                try {
+                    dataJSONObject = JSON.parseObject((byte[]) data, dataOffset, dataLength, StandardCharsets.UTF_8);
+                } catch (Exception ex) {
+                    dataJSONObject = null;
+                }
+            }
             else dataJSONObject = null;
+
+            notJSONObject = (dataJSONObject == null);
         }
 
         return dataJSONObject;
     }
 
     public JSONArray getJSONArray() {
-        if (dataJSONArray == null) {
+        if (dataJSONArray==null && !notJSONArray) {
             if (data == null) dataJSONArray = null;
             else if (data instanceof JSONArray) dataJSONArray = (JSONArray) data;
             else if (data instanceof String) {
@@ -57,7 +98,16 @@ public class DataObject {
                     dataJSONArray = null;
                 }
             }
+            else if (data instanceof byte[]) {
+                try {
+                    dataJSONArray = JSON.parseObject((byte[]) data, dataOffset, dataLength, StandardCharsets.UTF_8, JSONArray.class);
+                } catch (Exception ex) {
+                    dataJSONArray = null;
+                }
+            }
             else dataJSONArray = null;
+
+            notJSONArray = (dataJSONArray == null);
         }
 
         return dataJSONArray;
@@ -69,19 +119,435 @@ public class DataObject {
             else if (data instanceof String) dataString = (String) data;
             else if (data instanceof JSONObject) dataString = ((JSONObject) data).toJSONString();
             else if (data instanceof JSONArray) dataString = ((JSONArray) data).toJSONString();
+            else if (data instanceof byte[]) dataString = new String((byte[]) data, dataOffset, dataLength, StandardCharsets.UTF_8);
             else dataString = null;
         }
 
         return dataString;
     }
 
+    /**
+     * Get the leading part of the string, for logging.
+     *
+     * If the string is not there yet, only the leading part is serialized or decoded, and nothing is cached.
+     */
     public String getString(int maxLength) {
-        String result = getString();
-        if (result!=null && result.length()>maxLength) {
-            return result.substring(0, maxLength-4) + " ...";
+        return _preview(dataString!=null ? dataString : data, dataOffset, dataLength, maxLength);
+    }
+
+    /**
+     * Extract a value with JSONPath, e.g. "$.order.id".
+     *
+     * If the data is not parsed yet, the raw String or bytes are scanned without building the whole JSON tree,
+     * and the scan stops as soon as the value is found. Nothing is cached except the compiled path.
+     *
+     * @return null if the value does not exist or the data is not JSON
+     */
+    public Object getPath(String path) {
+        JSONPath compiledPath = _compilePath(path);
+
+        Object tree = _getParsedTree();
+        if (tree != null) return compiledPath.eval(tree);
+        else return _extractPath(compiledPath, data, dataOffset, dataLength);
+    }
+
+    public String getPathString(String path) {
+        Object result = getPath(path);
+        if (result == null) return null;
+        else if (result instanceof String) return (String) result;
+        else if (result instanceof JSONObject) return ((JSONObject) result).toJSONString();
+        else if (result instanceof JSONArray) return ((JSONArray) result).toJSONString();
+        else return result.toString();
+    }
+
+    /**
+     * Encode the data in binary format (see BinaryCodec), which is faster to decode than JSON text.
+     *
+     * Data which is not JSON is encoded as a string.
+     */
+    public byte[] toBinary() {
+        if (getData() == null) return null; // Through the getters, which frozen objects override
+
+        Object tree = getJSONObject();
+        if (tree == null) tree = getJSONArray();
+        if (tree == null) tree = getString();
+        return BinaryCodec.encode(tree);
+    }
+
+    /**
+     * Decode data from binary format, or from UTF-8 JSON text if it is not binary.
+     */
+    public static DataObject fromBinary(byte[] data) throws Exception {
+        if (BinaryCodec.isBinary(data)) return new DataObject(BinaryCodec.decode(data));
+        else return new DataObject(data);
+    }
+
+    /**
+     * Iterate the items of a JSON array one by one.
+     *
+     * If the data is not parsed yet, the raw String or bytes are scanned incrementally, each item is a DataObject
+     * over its own text (parsed lazily), and the whole array is never built in memory.
+     * If the data is already a JSONArray, the items share the subtrees of the array.
+     *
+     * The iterator throws IllegalArgumentException if the data is not a JSON array.
+     */
+    public Iterator<DataObject> elements() {
+        Object tree = _getParsedTree();
+        if (tree instanceof JSONArray) return new JSONArrayIterator((JSONArray) tree);
+        else if (data instanceof String) return new JSONArrayIterator((String) data);
+        else if (data instanceof byte[]) return new JSONArrayIterator((byte[]) data, dataOffset, dataLength);
+        else if (data == null) return Collections.<DataObject>emptyIterator();
+        else throw new IllegalArgumentException("Not a JSON array");
+    }
+
+    /**
+     * Iterate the items of a JSON array read from the UTF-8 stream, so that only the current item is in memory.
+     *
+     * The stream is not closed.
+     */
+    public static Iterator<DataObject> elements(InputStream in) {
+        return new JSONArrayIterator(in);
+    }
+
+    /**
+     * Get the data as UTF-8 bytes, without building an intermediate String.
+     *
+     * If the data object wraps a whole byte array, the array itself is returned, do not modify it.
+     * The result is not cached.
+     */
+    public byte[] toBytes() {
+        if (data == null) return null;
+        else if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            if (dataOffset==0 && dataLength==bytes.length) return bytes;
+            else return Arrays.copyOfRange(bytes, dataOffset, dataOffset+dataLength);
+        }
+        else if (dataString != null) return dataString.getBytes(StandardCharsets.UTF_8);
+        else if (data instanceof String) return ((String) data).getBytes(StandardCharsets.UTF_8);
+        else if (data instanceof JSONObject || data instanceof JSONArray) return JSON.toJSONBytes(data);
+        else return null;
+    }
+
+    /**
+     * Write the data as UTF-8 bytes into the stream, without building an intermediate String.
+     *
+     * The stream is not closed.
+     */
+    public void writeTo(OutputStream out) throws Exception {
+        if (data == null) return;
+        else if (data instanceof byte[]) out.write((byte[]) data, dataOffset, dataLength);
+        else if (dataString != null) out.write(dataString.getBytes(StandardCharsets.UTF_8));
+        else if (data instanceof String) out.write(((String) data).getBytes(StandardCharsets.UTF_8));
+        else if (data instanceof JSONObject || data instanceof JSONArray) JSON.writeTo(out, data);
+    }
+
+    /**
+     * Get an immutable snapshot of the data, which can be safely published to and shared by multiple threads.
+     *
+     * The snapshot parses the data at most once (failures are remembered too), and shares the underlying
+     * String, bytes or JSON tree with this object without copying. So after freezing, neither this object's data
+     * nor the JSONObject/JSONArray returned by the snapshot should be modified.
+     */
+    public DataObject freeze() {
+        return new _FrozenDataObject(this);
+    }
+
+    public boolean isFrozen() {
+        return false;
+    }
+
+    /**
+     * Get a copy-on-write copy of the JSON data, for one of the branches when a message is fanned out.
+     *
+     * The copy shares all objects and arrays with this data object, an object or array is copied only when it is
+     * got from its parent (see getJSONObject(), getJSONArray(), get()) by the copy. So a branch only pays for what
+     * it touches. This data object must not be modified afterwards, it is better to freeze() it.
+     *
+     * If the data is not JSON, the copy simply wraps the same string.
+     */
+    public DataObject copyOnWrite() {
+        JSONObject obj = getJSONObject();
+        if (obj != null) return new DataObject(new CopyOnWriteJSONObject(obj));
+
+        JSONArray arr = getJSONArray();
+        if (arr != null) return new DataObject(new CopyOnWriteJSONArray(arr));
+
+        return new DataObject(getString());
+    }
+
+    //***************************************************************************************
+
+    private static final Object _NOT_JSON = new Object();
+
+    // JSONPath expression -> Compiled path. Stop caching when too many distinct paths are used
+    private static final int _MAX_CACHED_PATHS = 4096;
+    private static final ConcurrentHashMap<String, JSONPath> _compiledPaths = new ConcurrentHashMap<String, JSONPath>();
+
+    private static JSONPath _compilePath(String path) {
+        JSONPath result = _compiledPaths.get(path);
+        if (result == null) {
+            result = JSONPath.of(path);
+            if (_compiledPaths.size() < _MAX_CACHED_PATHS) _compiledPaths.put(path, result);
+        }
+        return result;
+    }
+
+    private static Object _extractPath(JSONPath path, Object data, int offset, int length) {
+        JSONReader reader = null;
+
+        if (data instanceof String) reader = JSONReader.of((String) data);
+        else if (data instanceof byte[]) reader = JSONReader.of((byte[]) data, offset, length, StandardCharsets.UTF_8);
+        else return null;
+
+        try {
+            return path.extract(reader);
+        } catch (Exception ex) {
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param data String, JSON tree or the raw data
+     */
+    private static String _preview(Object data, int offset, int length, int maxLength) {
+        if (data == null) return null;
+
+        String result;
+        boolean cut;
+
+        if (data instanceof String) {
+            result = (String) data;
+            cut = result.length() > maxLength;
+        }
+        else if (data instanceof byte[]) {
+            // A UTF-16 char takes at most 3 bytes in UTF-8, so this is enough to get maxLength+1 chars
+            int len = (int) Math.min(length, (maxLength+1L) * 3);
+            result = new String((byte[]) data, offset, len, StandardCharsets.UTF_8);
+            cut = result.length() > maxLength;
+        }
+        else if (data instanceof JSONObject || data instanceof JSONArray) {
+            JSONPreviewWriter writer = new JSONPreviewWriter(maxLength);
+            cut = ! writer.write(data);
+            result = writer.toString();
+        }
+        else return null;
+
+        if (cut) return result.substring(0, Math.max(maxLength-4, 0)) + " ...";
+        else return result;
+    }
+
+    /**
+     * The JSON tree if it is already there, or null.
+     */
+    private Object _getParsedTree() {
+        if (data instanceof JSONObject || data instanceof JSONArray) return data;
+        else if (dataJSONObject != null) return dataJSONObject;
+        else if (dataJSONArray != null) return dataJSONArray;
+        else return null;
+    }
+
+    private static final class _FrozenDataObject extends DataObject {
+        private final Object frozenData;
+        private final int frozenOffset;
+        private final int frozenLength;
+        private volatile Object parsed; // JSONObject, JSONArray or _NOT_JSON
+        private volatile String parsedString;
+
+        public _FrozenDataObject(DataObject source) {
+            super((Object) null);
+
+            this.frozenData = source.data;
+            this.frozenOffset = source.dataOffset;
+            this.frozenLength = source.dataLength;
+
+            // Reuse what has been parsed already
+            Object tree = source._getParsedTree();
+            if (tree != null) this.parsed = tree;
+            else if (source.notJSONObject && source.notJSONArray) this.parsed = _NOT_JSON;
+            this.parsedString = source.dataString;
+        }
+
+        @Override
+        public void setData(Object data) {
+            throw new UnsupportedOperationException("The data object is frozen");
+        }
+
+        @Override
+        public Object getData() {
+            return frozenData;
+        }
+
+        @Override
+        public JSONObject getJSONObject() {
+            Object result = _getParsed();
+            return (result instanceof JSONObject) ? (JSONObject) result : null;
         }
-        else
+
+        @Override
+        public JSONArray getJSONArray() {
+            Object result = _getParsed();
+            return (result instanceof JSONArray) ? (JSONArray) result : null;
+        }
+
+        @Override
+        public String getString() {
+            String result = parsedString;
+            if (result == null && frozenData != null) {
+                synchronized (this) {
+                    result = parsedString;
+                    if (result == null) {
+                        result = _toDataObject().getString();
+                        parsedString = result;
+                    }
+                }
+            }
             return result;
+        }
+
+        @Override
+        public String getString(int maxLength) {
+            String str = parsedString;
+            return _preview(str!=null ? str : frozenData, frozenOffset, frozenLength, maxLength);
+        }
+
+        @Override
+        public Object getPath(String path) {
+            JSONPath compiledPath = _compilePath(path);
+
+            Object tree = parsed;
+            if (tree == _NOT_JSON) return null;
+            else if (tree != null) return compiledPath.eval(tree);
+            else return _extractPath(compiledPath, frozenData, frozenOffset, frozenLength);
+        }
+
+        @Override
+        public Iterator<DataObject> elements() {
+            Object tree = parsed;
+            if (tree instanceof JSONArray) return new JSONArrayIterator((JSONArray) tree);
+            else return _toDataObject().elements();
+        }
+
+        @Override
+        public byte[] toBytes() {
+            return _toDataObject().toBytes();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws Exception {
+            _toDataObject().writeTo(out);
+        }
+
+        @Override
+        public DataObject freeze() {
+            return this;
+        }
+
+        @Override
+        public boolean isFrozen() {
+            return true;
+        }
+
+        private Object _getParsed() {
+            Object result = parsed;
+            if (result == null) {
+                synchronized (this) {
+                    result = parsed;
+                    if (result == null) {
+                        result = _parse();
+                        parsed = result;
+                    }
+                }
+            }
+            return result;
+        }
+
+        private Object _parse() {
+            if (frozenData instanceof JSONObject || frozenData instanceof JSONArray) return frozenData;
+
+            // Look at the first meaningful character to parse only once
+
+            DataObject tmp = _toDataObject();
+            char c = _firstChar();
+            Object result = null;
+            if (c == '{') result = tmp.getJSONObject();
+            else if (c == '[') result = tmp.getJSONArray();
+
+            return result==null ? _NOT_JSON : result;
+        }
+
+        private char _firstChar() {
+            if (frozenData instanceof String) {
+                String s = (String) frozenData;
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (! Character.isWhitespace(c)) return c;
+                }
+            }
+            else if (frozenData instanceof byte[]) {
+                byte[] bytes = (byte[]) frozenData;
+                for (int i = frozenOffset; i < frozenOffset+frozenLength; i++) {
+                    char c = (char) bytes[i];
+                    if (! Character.isWhitespace(c)) return c;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * A throwaway (thread-confined) data object over the same data, to reuse the conversions.
+         */
+        private DataObject _toDataObject() {
+            if (frozenData instanceof byte[])
+                return new DataObject((byte[]) frozenData, frozenOffset, frozenLength);
+            else
+                return new DataObject(frozenData);
+        }
+    }
+
+    //***************************************************************************************
+
+    private void _setData(Object data) {
+        if (data instanceof byte[]) {
+            byte[] bytes = (byte[]) data;
+            _setBytes(bytes, 0, bytes.length);
+        }
+        else if (data instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) data;
+            if (buffer.hasArray())
+                _setBytes(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+            else {
+                // Direct buffer, the bytes have to be copied out
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                _setBytes(bytes, 0, bytes.length);
+            }
+        }
+        else {
+            this.data = data;
+            this.dataOffset = 0;
+            this.dataLength = 0;
+            _clearCache();
+        }
+    }
+
+    private void _setBytes(byte[] data, int offset, int length) {
+        if (data!=null && (offset<0 || length<0 || offset+length>data.length))
+            throw new IndexOutOfBoundsException("offset="+offset+", length="+length+", size="+data.length);
+
+        this.data = data;
+        this.dataOffset = offset;
+        this.dataLength = length;
+        _clearCache();
+    }
+
+    private void _clearCache() {
+        this.dataJSONObject = null;
+        this.dataJSONArray = null;
+        this.dataString = null;
+        this.notJSONObject = false;
+        this.notJSONArray = false;
     }
 
 }
@@ -1,6 +1,7 @@
 package cloud.phusion;
 
 import cloud.phusion.application.Application;
+import cloud.phusion.integration.ConditionEvaluator;
 import cloud.phusion.integration.Integration;
 import cloud.phusion.integration.Transaction;
 import cloud.phusion.protocol.http.HttpClient;
@@ -11,6 +12,7 @@ import cloud.phusion.storage.FileStorage;
 import cloud.phusion.storage.KVStorage;
 
 import java.util.Date;
+import java.util.List;
 
 /**
  * The Runtime Engine.
@@ -115,6 +117,8 @@ public interface Engine {
     /**
      * Manipulate HTTP/1.1 services.
      *
+     * Implementations can route the raw request paths to the servers with PathRouter.
+     *
      * @param path related URL to provide service. URLs can have parameters, such as "/object/{id}"
      */
     void registerHttpServer(String path, HttpServer server, DataObject config, Context ctx) throws Exception;
@@ -180,6 +184,9 @@ public interface Engine {
 
     /**
      * Manipulate the integration.
+     *
+     * The workflow should be checked with cloud.phusion.integration.WorkflowValidator when registering,
+     * so that bad workflows are rejected early.
      */
     void registerIntegration(String integrationId, IntegrationDefinition idef, DataObject config, Context ctx) throws Exception;
     void registerIntegration(String integrationId, String clientId, IntegrationDefinition idef, DataObject config, Context ctx) throws Exception;
@@ -193,4 +200,19 @@ public interface Engine {
     boolean evaluateCondition(DataObject data) throws Exception;
     boolean evaluateCondition(String condition, String msg, String config) throws Exception;
 
+    /**
+     * Evaluate many conditions (e.g. start conditions of the integrations) against one message, in one pass.
+     *
+     * The results are the same as evaluateCondition() on each condition. By default, identical conditions are
+     * evaluated once by evaluateCondition(). An engine whose conditions follow the semantics of CompiledCondition
+     * can opt in to faster batching by overriding it with ConditionEvaluator.evaluate(), which compiles the
+     * conditions and parses the message once.
+     *
+     * @return results in the order of the conditions
+     */
+    default boolean[] evaluateConditions(List<String> conditions, DataObject msg, DataObject config) throws Exception {
+        return ConditionEvaluator.evaluateEach(conditions, msg, config, (condition, m, c) ->
+                evaluateCondition(condition, m==null ? null : m.getString(), c==null ? null : c.getString()));
+    }
+
 }
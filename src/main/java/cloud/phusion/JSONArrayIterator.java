@@ -0,0 +1,219 @@
+package cloud.phusion;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterate the items of a JSON array one by one, without parsing the whole array.
+ *
+ * The scanner only finds the boundaries of the items, each item is returned as a DataObject over its raw text,
+ * and parsed lazily by the DataObject. Items from a byte array share the array without copying.
+ *
+ * Malformed input causes IllegalArgumentException. It is not thread-safe.
+ */
+class JSONArrayIterator implements Iterator<DataObject> {
+
+    private static final int _NONE = -2;
+    private static final int _EOF = -1;
+
+    private final String str;
+    private final byte[] bytes;
+    private final InputStream in;
+    private final Iterator<Object> tree;
+
+    private int pos;
+    private final int end;
+
+    private byte[] buffer; // For InputStream
+    private int bufferPos;
+    private int bufferLen;
+    private byte[] item; // Bytes of the current item, for InputStream
+    private int itemLen;
+
+    private int peeked = _NONE;
+    private boolean started = false;
+    private boolean finished = false;
+    private DataObject nextItem = null;
+
+    public JSONArrayIterator(String str) {
+        this(str, null, 0, str==null ? 0 : str.length(), null, null);
+    }
+
+    public JSONArrayIterator(byte[] bytes, int offset, int length) {
+        this(null, bytes, offset, offset+length, null, null);
+    }
+
+    public JSONArrayIterator(InputStream in) {
+        this(null, null, 0, 0, in, null);
+
+        this.buffer = new byte[8192];
+        this.item = new byte[1024];
+    }
+
+    public JSONArrayIterator(JSONArray array) {
+        this(null, null, 0, 0, null, array.iterator());
+    }
+
+    private JSONArrayIterator(String str, byte[] bytes, int offset, int end, InputStream in, Iterator<Object> tree) {
+        super();
+
+        this.str = str;
+        this.bytes = bytes;
+        this.pos = offset;
+        this.end = end;
+        this.in = in;
+        this.tree = tree;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextItem==null && !finished) {
+            nextItem = (tree != null) ? _nextFromTree() : _nextFromText();
+            if (nextItem == null) finished = true;
+        }
+        return nextItem != null;
+    }
+
+    @Override
+    public DataObject next() {
+        if (! hasNext()) throw new NoSuchElementException();
+
+        DataObject result = nextItem;
+        nextItem = null;
+        return result;
+    }
+
+    //***************************************************************************************
+
+    private DataObject _nextFromTree() {
+        if (! tree.hasNext()) return null;
+
+        // Scalar items are turned into JSON text, the same as what the scanner produces
+        Object value = tree.next();
+        if (value==null || value instanceof JSONObject || value instanceof JSONArray)
+            return new DataObject(value);
+        else
+            return new DataObject(JSON.toJSONString(value));
+    }
+
+    private DataObject _nextFromText() {
+        int c;
+
+        if (! started) {
+            started = true;
+            c = _readSignificant();
+            if (c != '[') throw new IllegalArgumentException("Not a JSON array");
+
+            c = _readSignificant();
+            if (c == ']') return null;
+        }
+        else {
+            c = _readSignificant();
+            if (c == ']') return null;
+            if (c != ',') throw new IllegalArgumentException("Malformed JSON array, ',' is expected");
+            c = _readSignificant();
+        }
+
+        if (c == _EOF) throw new IllegalArgumentException("Unexpected end of JSON array");
+        return _readItem(c);
+    }
+
+    private DataObject _readItem(int c) {
+        int start = pos - 1;
+        itemLen = 0;
+
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+
+        while (true) {
+            if (in != null) _appendToItem(c);
+
+            if (inString) {
+                if (escaped) escaped = false;
+                else if (c == '\\') escaped = true;
+                else if (c == '"') {
+                    inString = false;
+                    if (depth == 0) return _createItem(start, pos);
+                }
+            }
+            else if (c == '"') inString = true;
+            else if (c=='{' || c=='[') depth++;
+            else if (c=='}' || c==']') {
+                if (depth == 0) {
+                    // A scalar item followed by the end of the array
+                    peeked = c;
+                    if (in != null) itemLen--;
+                    return _createItem(start, pos-1);
+                }
+
+                depth--;
+                if (depth == 0) return _createItem(start, pos);
+            }
+            else if (depth==0 && (c==',' || _isWhitespace(c))) {
+                peeked = c;
+                if (in != null) itemLen--;
+                return _createItem(start, pos-1);
+            }
+
+            c = _read();
+            if (c == _EOF) throw new IllegalArgumentException("Unexpected end of JSON array");
+        }
+    }
+
+    private DataObject _createItem(int start, int end) {
+        if (str != null) return new DataObject(str.substring(start, end));
+        else if (bytes != null) return new DataObject(bytes, start, end-start);
+        else return new DataObject(Arrays.copyOf(item, itemLen));
+    }
+
+    private void _appendToItem(int c) {
+        if (itemLen == item.length) item = Arrays.copyOf(item, item.length*2);
+        item[itemLen++] = (byte) c;
+    }
+
+    private int _readSignificant() {
+        int c;
+        do {
+            c = _read();
+        } while (_isWhitespace(c));
+        return c;
+    }
+
+    private int _read() {
+        if (peeked != _NONE) {
+            int c = peeked;
+            peeked = _NONE;
+            return c;
+        }
+
+        if (str != null) return pos<end ? str.charAt(pos++) : _EOF;
+        else if (bytes != null) return pos<end ? (bytes[pos++] & 0xFF) : _EOF;
+        else {
+            if (bufferPos == bufferLen) {
+                try {
+                    bufferLen = in.read(buffer);
+                } catch (Exception ex) {
+                    throw new IllegalArgumentException("Failed to read JSON array", ex);
+                }
+                bufferPos = 0;
+                if (bufferLen <= 0) {
+                    bufferLen = 0;
+                    return _EOF;
+                }
+            }
+            return buffer[bufferPos++] & 0xFF;
+        }
+    }
+
+    private static boolean _isWhitespace(int c) {
+        return c==' ' || c=='\n' || c=='\r' || c=='\t';
+    }
+
+}
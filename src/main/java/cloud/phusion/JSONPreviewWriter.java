@@ -0,0 +1,106 @@
+package cloud.phusion;
+
+import com.alibaba.fastjson2.JSON;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Serialize a JSON tree into a String of bounded length, for logging.
+ *
+ * It stops as soon as the limit is exceeded, so the cost is proportional to the limit instead of the tree size.
+ * The output is the same as JSON.toJSONString() (null fields of objects are skipped), cut at the limit.
+ *
+ * It is not thread-safe.
+ */
+class JSONPreviewWriter {
+
+    /**
+     * Thrown to unwind the recursion once the limit is exceeded.
+     */
+    private static class _LimitExceeded extends RuntimeException {
+        public _LimitExceeded() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final StringBuilder result;
+    private final int limit;
+
+    /**
+     * @param limit max length of the output. When exceeded, the output is cut, and will be longer than the limit
+     */
+    public JSONPreviewWriter(int limit) {
+        super();
+
+        this.limit = limit;
+        this.result = new StringBuilder(Math.min(limit, 1024) + 16);
+    }
+
+    /**
+     * @return false if the output is cut
+     */
+    public boolean write(Object value) {
+        try {
+            _write(value);
+            return true;
+        } catch (_LimitExceeded ex) {
+            return false;
+        }
+    }
+
+    public String toString() {
+        return result.toString();
+    }
+
+    //***************************************************************************************
+
+    private void _write(Object value) {
+        if (value == null) _append("null");
+        else if (value instanceof Map) {
+            _append("{");
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() == null) continue;
+
+                if (! first) _append(",");
+                first = false;
+
+                _writeString(String.valueOf(entry.getKey()));
+                _append(":");
+                _write(entry.getValue());
+            }
+            _append("}");
+        }
+        else if (value instanceof Collection) {
+            _append("[");
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (! first) _append(",");
+                first = false;
+
+                _write(item);
+            }
+            _append("]");
+        }
+        else if (value instanceof String) _writeString((String) value);
+        else if (value instanceof Number || value instanceof Boolean) _append(value.toString());
+        else _append(JSON.toJSONString(value));
+    }
+
+    private void _writeString(String value) {
+        // Only escape the part which can be shown
+        int remaining = limit - result.length();
+        if (value.length() > remaining) {
+            result.append(JSON.toJSONString(value.substring(0, Math.max(remaining, 0))));
+            throw new _LimitExceeded();
+        }
+        else _append(JSON.toJSONString(value));
+    }
+
+    private void _append(String str) {
+        result.append(str);
+        if (result.length() > limit) throw new _LimitExceeded();
+    }
+
+}
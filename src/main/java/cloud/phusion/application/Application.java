@@ -4,6 +4,10 @@ import cloud.phusion.Context;
 import cloud.phusion.DataObject;
 import cloud.phusion.ExecStatus;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Application.
  *
@@ -49,4 +53,41 @@ public interface Application {
 
     DataObject callOutboundEndpoint(String endpointId, String integrationId, DataObject msg, Context ctx) throws Exception;
 
+    /**
+     * Call the outbound endpoint without waiting for the result. Errors are returned through the future.
+     *
+     * By default, it calls callOutboundEndpoint() in the current thread.
+     */
+    default CompletableFuture<DataObject> callOutboundEndpointAsync(String endpointId, String integrationId,
+                                                                    DataObject msg, Context ctx) {
+        CompletableFuture<DataObject> result = new CompletableFuture<DataObject>();
+        try {
+            result.complete( callOutboundEndpoint(endpointId, integrationId, msg, ctx) );
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Call the outbound endpoint with the messages, in as few calls as the endpoint allows.
+     *
+     * By default, it calls callOutboundEndpoint() for each message.
+     *
+     * @return one result for each message, in the same order
+     */
+    default List<DataObject> callOutboundEndpointBatch(String endpointId, String integrationId, List<DataObject> msgs,
+                                                       Context ctx) throws Exception {
+        List<DataObject> result = new ArrayList<DataObject>(msgs.size());
+        for (DataObject msg : msgs) result.add( callOutboundEndpoint(endpointId, integrationId, msg, ctx) );
+        return result;
+    }
+
+    /**
+     * State of the circuit breaker of the outbound endpoint through the connection.
+     */
+    default CircuitState getCircuitState(String endpointId, String connectionId) {
+        return CircuitState.None;
+    }
+
 }
@@ -0,0 +1,23 @@
+package cloud.phusion.application;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of calls, e.g. to an outbound endpoint.
+ */
+public interface CallLimiter {
+
+    /**
+     * Acquire by the mode.
+     *
+     * @param timeout for Wait mode
+     * @return false if the permits are not acquired
+     */
+    boolean acquire(int permits, RateLimiter.Mode mode, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Permits per second.
+     */
+    double getRate();
+
+}
@@ -0,0 +1,170 @@
+package cloud.phusion.application;
+
+/**
+ * Circuit breaker over a sliding window of the latest calls.
+ *
+ * The circuit opens when the rate of failed calls, or of slow calls, in the window reaches the threshold.
+ * After the open time, a few probing calls are let through (half-open): if all of them succeed in time the circuit
+ * closes, otherwise it opens again.
+ *
+ * Usage: call tryAcquire() before the call, and onComplete() with the returned permit after it if acquired.
+ * The permit tells the state the call was admitted in: calls finishing after the state has changed (e.g. slow calls
+ * admitted while closed, finishing when half-open) are not counted.
+ *
+ * It is thread-safe.
+ */
+public final class CircuitBreaker {
+
+    private static final byte _FAILED = 1;
+    private static final byte _SLOW = 2;
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRate;
+    private final long slowCallNanos;
+    private final double slowCallRate;
+    private final long openMillis;
+    private final int halfOpenCalls;
+
+    // Outcomes of the latest calls, in a ring
+    private final byte[] outcomes;
+    private int count = 0;
+    private int next = 0;
+    private int failures = 0;
+    private int slows = 0;
+
+    private volatile CircuitState state = CircuitState.Closed;
+    private volatile long generation = 0; // Increased at each change of the state
+    private long openedAt = 0;
+    private int probes = 0;
+    private int probesSucceeded = 0;
+
+    /**
+     * @param windowSize number of the latest calls in the window
+     * @param minCalls calls needed in the window before the rates are checked
+     * @param failureRate percentage of failed calls to open the circuit, 0 to disable
+     * @param slowCallMillis calls longer than it are slow, 0 to disable
+     * @param slowCallRate percentage of slow calls to open the circuit, 0 to disable
+     * @param openMillis how long the circuit stays open before probing
+     * @param halfOpenCalls number of probing calls
+     */
+    public CircuitBreaker(int windowSize, int minCalls, double failureRate, long slowCallMillis, double slowCallRate,
+                          long openMillis, int halfOpenCalls) {
+        super();
+
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, Math.min(minCalls, this.windowSize));
+        this.failureRate = failureRate;
+        this.slowCallNanos = slowCallMillis * 1000000L;
+        this.slowCallRate = slowCallRate;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.outcomes = new byte[this.windowSize];
+    }
+
+    public CircuitState getState() {
+        CircuitState result = state;
+        if (result == CircuitState.Open) {
+            synchronized (this) {
+                if (System.currentTimeMillis() - openedAt >= openMillis) result = CircuitState.HalfOpen;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the permit to pass to onComplete(), or -1 if the call is not allowed
+     */
+    public long tryAcquire() {
+        // Read the generation first, a change in between only makes the call not counted
+        long permit = generation;
+        if (state == CircuitState.Closed) return permit;
+
+        synchronized (this) {
+            switch (state) {
+                case Closed:
+                    return generation;
+                case Open:
+                    if (System.currentTimeMillis() - openedAt < openMillis) return -1;
+                    _setState(CircuitState.HalfOpen);
+                    probes = 0;
+                    probesSucceeded = 0;
+                    // fall through
+                default:
+                    if (probes >= halfOpenCalls) return -1;
+                    probes++;
+                    return generation;
+            }
+        }
+    }
+
+    /**
+     * @param permit returned by tryAcquire()
+     * @param nanos duration of the call
+     */
+    public synchronized void onComplete(long permit, boolean failed, long nanos) {
+        if (permit != generation) return; // Admitted in an earlier state
+
+        boolean slow = slowCallNanos>0 && nanos>=slowCallNanos;
+
+        switch (state) {
+            case Open:
+                return;
+            case HalfOpen:
+                if (failed || slow) _open();
+                else if (++probesSucceeded >= halfOpenCalls) _close();
+                return;
+            default:
+                break;
+        }
+
+        if (count == windowSize) {
+            byte old = outcomes[next];
+            if ((old & _FAILED) != 0) failures--;
+            if ((old & _SLOW) != 0) slows--;
+        }
+        else count++;
+
+        outcomes[next] = (byte) ((failed ? _FAILED : 0) | (slow ? _SLOW : 0));
+        if (failed) failures++;
+        if (slow) slows++;
+        next = (next + 1) % windowSize;
+
+        if (count >= minCalls) {
+            if ((failureRate>0 && failures * 100.0 >= failureRate * count) ||
+                    (slowCallRate>0 && slows * 100.0 >= slowCallRate * count)) _open();
+        }
+    }
+
+    /**
+     * Whether the other breaker is configured the same.
+     */
+    public boolean hasSameSettings(CircuitBreaker other) {
+        return other != null && windowSize == other.windowSize && minCalls == other.minCalls &&
+                failureRate == other.failureRate && slowCallNanos == other.slowCallNanos &&
+                slowCallRate == other.slowCallRate && openMillis == other.openMillis &&
+                halfOpenCalls == other.halfOpenCalls;
+    }
+
+    //***************************************************************************************
+
+    private void _setState(CircuitState newState) {
+        // The state first, see tryAcquire()
+        state = newState;
+        generation++;
+    }
+
+    private void _open() {
+        openedAt = System.currentTimeMillis();
+        _setState(CircuitState.Open);
+    }
+
+    private void _close() {
+        count = 0;
+        next = 0;
+        failures = 0;
+        slows = 0;
+        _setState(CircuitState.Closed);
+    }
+
+}
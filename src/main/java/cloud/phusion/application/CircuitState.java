@@ -0,0 +1,8 @@
+package cloud.phusion.application;
+
+public enum CircuitState {
+    None, // No circuit breaker
+    Closed, // Calls pass
+    Open, // Calls are rejected
+    HalfOpen // A few calls pass to probe whether the target recovers
+}
@@ -0,0 +1,336 @@
+package cloud.phusion.application;
+
+import cloud.phusion.PhusionException;
+import cloud.phusion.storage.KVStorage;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/**
+ * Rate limiter shared by the engines of a cluster, coordinated through KVStorage.
+ *
+ * Time is divided into windows (one second, or longer for rates below 1/s) aligned to the wall clock, so that all
+ * engines agree on them. The KV storage holds the permits granted in each window. An engine leases a batch of
+ * permits from it and hands them out locally, so that most calls do not touch the KV storage.
+ *
+ * If a lease does not complete within the lease timeout, or fails, the limiter falls back to a local RateLimiter
+ * with a share of the rate (rate / number of engines seen in the KV storage) until the end of the window.
+ *
+ * The next lease starts in the background when the local permits run low. A call which can not wait for a lease
+ * in flight (e.g. in Reject mode) is served by the local share meanwhile, so the first call of a window is not
+ * rejected just because nothing has been leased yet.
+ *
+ * It is thread-safe.
+ */
+public final class DistributedRateLimiter implements CallLimiter {
+
+    private static final String _keyPrefix = "phusion.ratelimit.";
+    private static final long _lockTTL = 1000;
+    private static final int _lockRetries = 20;
+
+    private static final ExecutorService _leaseExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "phusion-ratelimit-lease");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class _Lease {
+        public final CompletableFuture<Long> future = new CompletableFuture<Long>();
+        public final long startedAt;
+
+        public _Lease(long startedAt) {
+            super();
+            this.startedAt = startedAt;
+        }
+    }
+
+    private static class _Window {
+        public final long index;
+        public final AtomicLong permits = new AtomicLong(0);
+        public final AtomicReference<_Lease> lease = new AtomicReference<_Lease>();
+        public volatile boolean exhausted = false;
+
+        public _Window(long index) {
+            super();
+            this.index = index;
+        }
+
+        public boolean take(int n) {
+            while (true) {
+                long current = permits.get();
+                if (current < n) return false;
+                if (permits.compareAndSet(current, current - n)) return true;
+            }
+        }
+    }
+
+    private final KVStorage storage;
+    private final String key;
+    private final String nodeId;
+    private final RateLimiter fallback;
+    private final AtomicReference<_Window> window = new AtomicReference<_Window>(new _Window(-1));
+
+    private volatile double permitsPerSecond;
+    private volatile int burst;
+    private volatile long windowMillis;
+    private volatile long capacity; // Permits per window
+    private volatile int leaseSize;
+    private volatile long leaseTimeout = 50; // Milliseconds
+
+    // Engines seen in the KV storage, in the latest two windows
+    private volatile int minNodes = 1;
+    private volatile int nodes = 1;
+    private volatile int nodesInWindow = 0;
+    private volatile long nodesWindow = -1;
+
+    private volatile long fallbackUntil = 0;
+    private volatile LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * @param name identifies the limit in the cluster
+     * @param nodeId ID of this engine
+     * @param burst for the local fallback limiter. 0 indicates one second of permits
+     */
+    public DistributedRateLimiter(KVStorage storage, String name, String nodeId, double permitsPerSecond, int burst) {
+        super();
+
+        this.storage = storage;
+        this.key = _keyPrefix + name;
+        this.nodeId = nodeId==null ? "" : nodeId;
+        this.fallback = new RateLimiter(permitsPerSecond, burst);
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Change the rate. The permits already leased are not affected.
+     */
+    public void setRate(double permitsPerSecond, int burst) {
+        if (! (permitsPerSecond > 0)) throw new IllegalArgumentException("Rate must be positive: "+permitsPerSecond);
+
+        long newWindow = Math.max(1000, (long) Math.ceil(1000 / permitsPerSecond));
+        long newCapacity = Math.max(1, Math.round(permitsPerSecond * newWindow / 1000));
+
+        this.windowMillis = newWindow;
+        this.capacity = newCapacity;
+        this.leaseSize = (int) Math.max(1, newCapacity / 10);
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        _updateFallbackRate();
+    }
+
+    /**
+     * @param leaseSize permits leased from the KV storage at once, 0 indicates 1/10 of the rate
+     * @param leaseTimeout milliseconds to wait for a lease before falling back to the local share
+     */
+    public void setLeaseOptions(int leaseSize, long leaseTimeout) {
+        this.leaseSize = (int) (leaseSize > 0 ? leaseSize : Math.max(1, capacity / 10));
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     * The number of engines assumed for the local share, when fewer have been seen in the KV storage.
+     */
+    public void setMinNodes(int minNodes) {
+        this.minNodes = Math.max(1, minNodes);
+        _updateFallbackRate();
+    }
+
+    /**
+     * Replace the wall clock (milliseconds) which the windows are aligned to, e.g. in tests.
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock==null ? System::currentTimeMillis : clock;
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Whether the limiter is using the local share, because the KV storage is slow or failing.
+     */
+    public boolean isFallingBack() {
+        return clock.getAsLong() < fallbackUntil;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the permits are more than those of a window
+     */
+    @Override
+    public boolean acquire(int permits, RateLimiter.Mode mode, long timeout, TimeUnit unit) throws InterruptedException {
+        if (permits < 1) permits = 1;
+        if (permits > capacity)
+            throw new IllegalArgumentException("Permits exceed the capacity of a window: "+permits+" > "+capacity);
+
+        long now = clock.getAsLong();
+        long deadline;
+        switch (mode) {
+            case Reject: deadline = now; break;
+            case Wait: deadline = now + unit.toMillis(timeout); break;
+            default: deadline = Long.MAX_VALUE;
+        }
+
+        while (true) {
+            if (now < fallbackUntil) {
+                return fallback.acquire(permits, mode, Math.max(0, deadline - now), TimeUnit.MILLISECONDS);
+            }
+
+            _Window w = _currentWindow(now);
+            if (w.take(permits)) {
+                // Lease ahead when the local permits run low
+                if (! w.exhausted && w.permits.get() < (leaseSize + 1) / 2) _lease(w, now, 0);
+                return true;
+            }
+
+            if (! w.exhausted) {
+                Boolean leased = _lease(w, now, Math.max(0, deadline - now));
+                if (leased == null) {
+                    // Still in flight, and the caller does not wait
+                    return fallback.acquire(permits, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS);
+                }
+                if (! leased) fallbackUntil = (w.index + 1) * windowMillis;
+            }
+            else {
+                // Wait for the next window
+                long next = (w.index + 1) * windowMillis;
+                if (next > deadline) return false;
+                Thread.sleep(Math.max(1, next - now));
+            }
+
+            now = clock.getAsLong();
+        }
+    }
+
+    //***************************************************************************************
+
+    private _Window _currentWindow(long now) {
+        long index = now / windowMillis;
+
+        while (true) {
+            _Window current = window.get();
+            if (current.index >= index) return current;
+
+            _Window w = new _Window(index);
+            if (window.compareAndSet(current, w)) return w;
+        }
+    }
+
+    /**
+     * Start a lease of the window if none is in flight, and wait for it. Only one lease of a window is in flight,
+     * the other callers share it.
+     *
+     * @param wait milliseconds the caller can wait, 0 not to wait
+     * @return true if the lease is done, false if it failed or has timed out, null if it is still in flight
+     */
+    private Boolean _lease(_Window w, long now, long wait) throws InterruptedException {
+        _Lease lease = w.lease.get();
+
+        if (lease == null) {
+            _Lease newLease = new _Lease(now);
+            if (! w.lease.compareAndSet(null, newLease)) return true; // Another lease is just done or started
+
+            lease = newLease;
+            _leaseExecutor.execute(() -> {
+                try {
+                    long n = _leaseFromStorage(w.index);
+                    if (n > 0) w.permits.addAndGet(n);
+                    else w.exhausted = true;
+
+                    w.lease.set(null);
+                    newLease.future.complete(n);
+                } catch (Throwable t) {
+                    w.lease.set(null);
+                    newLease.future.completeExceptionally(t);
+                }
+            });
+        }
+
+        long remaining = lease.startedAt + leaseTimeout - now;
+
+        try {
+            lease.future.get(Math.max(0, Math.min(wait, remaining)), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException ex) {
+            return false;
+        } catch (TimeoutException ex) {
+            return remaining <= wait ? Boolean.FALSE : null;
+        }
+    }
+
+    /**
+     * The record of a window in the KV storage: {"granted": Long, "nodes": [String]}.
+     *
+     * @return number of permits leased, 0 if the window is exhausted
+     */
+    private long _leaseFromStorage(long index) throws Exception {
+        String counterKey = key + "." + index;
+        String lockKey = counterKey + ".lock";
+
+        int tries = 0;
+        while (! storage.lock(lockKey, _lockTTL)) {
+            if (++tries > _lockRetries)
+                throw new PhusionException("KV_LOCK", "Failed to lock the rate limit", "key="+lockKey);
+            Thread.sleep(1);
+        }
+
+        try {
+            JSONObject record = _parseRecord(storage.get(counterKey));
+            long granted = record.getLongValue("granted");
+            long n = Math.max(0, Math.min(leaseSize, capacity - granted));
+
+            JSONArray nodeIds = record.getJSONArray("nodes");
+            if (nodeIds == null) nodeIds = new JSONArray();
+            boolean newNode = ! nodeIds.contains(nodeId);
+            if (newNode) nodeIds.add(nodeId);
+
+            if (n>0 || newNode) {
+                record.put("granted", granted + n);
+                record.put("nodes", nodeIds);
+                storage.put(counterKey, record.toJSONString(), windowMillis * 2);
+            }
+
+            _updateNodes(index, nodeIds.size());
+            return n;
+        } finally {
+            storage.unlock(lockKey);
+        }
+    }
+
+    private static JSONObject _parseRecord(Object value) {
+        if (value == null) return new JSONObject();
+        if (value instanceof JSONObject) return (JSONObject) value;
+
+        JSONObject result = JSON.parseObject(value.toString());
+        return result==null ? new JSONObject() : result;
+    }
+
+    private void _updateNodes(long index, int count) {
+        int previous = nodesInWindow;
+
+        if (index != nodesWindow) {
+            nodesWindow = index;
+            nodesInWindow = count;
+            nodes = Math.max(previous, count);
+        }
+        else if (count > previous) {
+            nodesInWindow = count;
+            nodes = Math.max(nodes, count);
+        }
+        else return;
+
+        _updateFallbackRate();
+    }
+
+    private void _updateFallbackRate() {
+        // The share of the burst too, or one second of the shared rate
+        int nodeCount = Math.max(nodes, minNodes);
+        fallback.setRate(permitsPerSecond / nodeCount, burst>0 ? Math.max(1, burst / nodeCount) : 0);
+    }
+
+}
@@ -0,0 +1,68 @@
+package cloud.phusion.application;
+
+import cloud.phusion.Context;
+import cloud.phusion.protocol.http.HttpRequest;
+import cloud.phusion.protocol.http.HttpResponse;
+
+import java.util.List;
+
+/**
+ * Endpoints of an application class, generated at compile time by EndpointTableProcessor, so that
+ * HttpBaseApplication does not need to scan the class by reflection.
+ *
+ * The table of class "a.b.SomeApp" is "a.b.SomeApp_EndpointTable". It is shared by all instances of the class.
+ */
+public interface EndpointTable {
+
+    String CLASS_SUFFIX = "_EndpointTable";
+
+    interface InboundInvoker {
+        void invoke(Object app, HttpRequest request, HttpResponse response, String[] integrationIds,
+                    String connectionId, Context ctx) throws Exception;
+    }
+
+    /**
+     * @param msg DataObject, or List of DataObject for batch endpoints
+     * @return DataObject, CompletionStage of DataObject, or List of DataObject for batch endpoints
+     */
+    interface OutboundInvoker {
+        Object invoke(Object app, Object msg, String integrationId, String connectionId, Context ctx) throws Exception;
+    }
+
+    class Inbound {
+        public final String name;
+        public final String address;
+        public final String connectionKeyInReqeust;
+        public final String connectionKeyInConfig;
+        public final InboundInvoker invoker;
+
+        public Inbound(String name, String address, String connectionKeyInReqeust, String connectionKeyInConfig,
+                       InboundInvoker invoker) {
+            super();
+            this.name = name;
+            this.address = address;
+            this.connectionKeyInReqeust = connectionKeyInReqeust;
+            this.connectionKeyInConfig = connectionKeyInConfig;
+            this.invoker = invoker;
+        }
+    }
+
+    class Outbound {
+        public final String name;
+        public final boolean batch;
+        public final boolean async; // The method returns CompletionStage
+        public final OutboundInvoker invoker;
+
+        public Outbound(String name, boolean batch, boolean async, OutboundInvoker invoker) {
+            super();
+            this.name = name;
+            this.batch = batch;
+            this.async = async;
+            this.invoker = invoker;
+        }
+    }
+
+    List<Inbound> getInboundEndpoints();
+    List<Outbound> getOutboundEndpoints();
+
+}
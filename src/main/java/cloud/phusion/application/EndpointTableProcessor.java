@@ -0,0 +1,165 @@
+package cloud.phusion.application;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Annotation processor generating the EndpointTable of each application class having @InboundEndpoint or
+ * @OutboundEndpoint methods (declared or inherited). The table calls the endpoint methods directly.
+ *
+ * As HttpBaseApplication, only the public methods are endpoints.
+ */
+@SupportedAnnotationTypes({"cloud.phusion.application.InboundEndpoint", "cloud.phusion.application.OutboundEndpoint"})
+public class EndpointTableProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> types = new LinkedHashSet<TypeElement>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(InboundEndpoint.class)) {
+            types.add((TypeElement) element.getEnclosingElement());
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(OutboundEndpoint.class)) {
+            types.add((TypeElement) element.getEnclosingElement());
+        }
+
+        for (TypeElement type : types) {
+            if (type.getModifiers().contains(Modifier.PRIVATE)) continue;
+
+            try {
+                _generate(type);
+            } catch (Exception ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Failed to generate endpoint table: " + ex.getMessage(), type);
+            }
+        }
+
+        return false;
+    }
+
+    //***************************************************************************************
+
+    private void _generate(TypeElement type) throws Exception {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String simpleName = (pkg.length()==0 ? binaryName : binaryName.substring(pkg.length()+1)) + EndpointTable.CLASS_SUFFIX;
+        String appClass = type.getQualifiedName().toString();
+
+        StringBuilder inbound = new StringBuilder();
+        StringBuilder outbound = new StringBuilder();
+
+        List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(type);
+        for (Element member : members) {
+            if (member.getKind() != ElementKind.METHOD) continue;
+            if (! member.getModifiers().contains(Modifier.PUBLIC)) continue;
+
+            ExecutableElement method = (ExecutableElement) member;
+            InboundEndpoint in = method.getAnnotation(InboundEndpoint.class);
+            OutboundEndpoint out = method.getAnnotation(OutboundEndpoint.class);
+            if (in==null && out==null) continue;
+
+            String name = method.getSimpleName().toString();
+            List<? extends VariableElement> params = method.getParameters();
+
+            if (method.getModifiers().contains(Modifier.STATIC)) {
+                _error("Endpoint method must not be static", method);
+                continue;
+            }
+
+            if (in != null) {
+                if (params.size() != 5) {
+                    _error("Inbound endpoint method must have 5 parameters", method);
+                    continue;
+                }
+
+                if (inbound.length() > 0) inbound.append(",\n");
+                inbound.append("            new Inbound(").append(_literal(name)).append(", ")
+                        .append(_literal(in.address())).append(", ")
+                        .append(_literal(in.connectionKeyInReqeust())).append(", ")
+                        .append(_literal(in.connectionKeyInConfig())).append(",\n")
+                        .append("                    (app, request, response, integrationIds, connectionId, ctx) -> ((")
+                        .append(appClass).append(") app).").append(name).append("(")
+                        .append(_cast(params.get(0).asType(), "request")).append(", ")
+                        .append(_cast(params.get(1).asType(), "response")).append(", ")
+                        .append(_cast(params.get(2).asType(), "integrationIds")).append(", connectionId, ctx))");
+            }
+            else {
+                if (params.size() != 4) {
+                    _error("Outbound endpoint method must have 4 parameters", method);
+                    continue;
+                }
+
+                boolean async = processingEnv.getTypeUtils().isAssignable(
+                        processingEnv.getTypeUtils().erasure(method.getReturnType()),
+                        processingEnv.getTypeUtils().erasure(processingEnv.getElementUtils()
+                                .getTypeElement("java.util.concurrent.CompletionStage").asType()));
+
+                if (outbound.length() > 0) outbound.append(",\n");
+                outbound.append("            new Outbound(").append(_literal(name)).append(", ")
+                        .append(out.batch()).append(", ").append(async).append(",\n")
+                        .append("                    (app, msg, integrationId, connectionId, ctx) -> ((")
+                        .append(appClass).append(") app).").append(name).append("(")
+                        .append(_cast(params.get(0).asType(), "msg")).append(", integrationId, connectionId, ctx))");
+            }
+        }
+
+        StringBuilder source = new StringBuilder();
+        if (pkg.length() > 0) source.append("package ").append(pkg).append(";\n\n");
+        source.append("import cloud.phusion.application.EndpointTable;\n\n")
+                .append("import java.util.Arrays;\n")
+                .append("import java.util.Collections;\n")
+                .append("import java.util.List;\n\n")
+                .append("/**\n * Generated by ").append(EndpointTableProcessor.class.getName()).append(", do not edit.\n */\n")
+                .append("@SuppressWarnings(\"unchecked\")\n")
+                .append("public final class ").append(simpleName).append(" implements EndpointTable {\n\n")
+                .append("    private static final List<Inbound> _inbound = Collections.unmodifiableList(Arrays.<Inbound>asList(\n")
+                .append(inbound).append("\n    ));\n\n")
+                .append("    private static final List<Outbound> _outbound = Collections.unmodifiableList(Arrays.<Outbound>asList(\n")
+                .append(outbound).append("\n    ));\n\n")
+                .append("    @Override\n    public List<Inbound> getInboundEndpoints() {\n        return _inbound;\n    }\n\n")
+                .append("    @Override\n    public List<Outbound> getOutboundEndpoints() {\n        return _outbound;\n    }\n\n")
+                .append("}\n");
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                pkg.length()==0 ? simpleName : pkg + "." + simpleName, type);
+        try (Writer writer = file.openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void _error(String msg, Element element) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, element);
+    }
+
+    private static String _cast(TypeMirror type, String var) {
+        return "(" + type.toString() + ") " + var;
+    }
+
+    private static String _literal(String value) {
+        if (value == null) return "null";
+
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c=='"' || c=='\\') result.append('\\').append(c);
+            else if (c < 0x20 || c > 0x7e) result.append(String.format("\\u%04x", (int) c));
+            else result.append(c);
+        }
+        return result.append('"').toString();
+    }
+
+}
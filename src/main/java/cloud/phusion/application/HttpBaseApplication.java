@@ -5,16 +5,26 @@ import cloud.phusion.integration.Direction;
 import cloud.phusion.protocol.http.HttpRequest;
 import cloud.phusion.protocol.http.HttpResponse;
 import cloud.phusion.protocol.http.HttpServer;
+import cloud.phusion.protocol.http.PathRouter;
+import cloud.phusion.storage.KVStorage;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 /**
  * Framework (template) to ease the implemenation of Application inteface
@@ -22,12 +32,18 @@ import java.util.concurrent.ConcurrentHashMap;
 public abstract class HttpBaseApplication implements Application, HttpServer {
     private static final String _position = HttpBaseApplication.class.getName();
 
+    // Types of the endpoint method handles, see _bindEndpoint()
+    private static final MethodType _inboundType = MethodType.methodType(void.class,
+            HttpRequest.class, HttpResponse.class, String[].class, String.class, Context.class);
+    private static final MethodType _outboundType = MethodType.methodType(Object.class,
+            Object.class, String.class, String.class, Context.class);
+
     private class _InboundEndpoint {
         public String httpPath;
         public String connectionKeyInReqeust;
-        public Method method;
+        public EndpointTable.InboundInvoker method;
 
-        public _InboundEndpoint(String httpPath, String connectionKeyInReqeust, Method method) {
+        public _InboundEndpoint(String httpPath, String connectionKeyInReqeust, EndpointTable.InboundInvoker method) {
             super();
             this.httpPath = httpPath;
             this.method = method;
@@ -35,17 +51,119 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         }
     }
 
+    private static class _OutboundEndpoint {
+        public EndpointTable.OutboundInvoker method;
+        public boolean batch;
+        public boolean async; // The method returns CompletionStage
+
+        public _OutboundEndpoint(EndpointTable.OutboundInvoker method, boolean batch, boolean async) {
+            super();
+            this.method = method;
+            this.batch = batch;
+            this.async = async;
+        }
+    }
+
+    /**
+     * Call limit of an endpoint for an integration, from the endpoint config:
+     * "callLimitPerSecond": Number, "callLimitBurst": Integer (optional, one second of calls by default),
+     * "callLimitMode": "block" (by default) | "wait" | "reject", "callLimitTimeout": Integer (milliseconds to wait,
+     * for "wait" mode, 1000 by default), "callLimitScope": "engine" (by default) | "cluster" (shared by all engines
+     * through the KV storage of the application), "callLimitNodes": Integer (optional, engines assumed in the cluster
+     * when the KV storage is slow).
+     */
+    private static class _CallLimit {
+        public CallLimiter limiter;
+        public RateLimiter.Mode mode;
+        public long timeout;
+
+        public _CallLimit(CallLimiter limiter, RateLimiter.Mode mode, long timeout) {
+            super();
+            this.limiter = limiter;
+            this.mode = mode;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Circuit breaker and bulkhead of an endpoint for an integration, shared by all integrations calling the endpoint
+     * through the same connection, including those without them in config. From the endpoint config:
+     * "breakerFailureRate": Number (percentage of failed calls to open the circuit),
+     * "breakerSlowCallTime": Integer (milliseconds), "breakerSlowCallRate": Number (percentage of slow calls to open
+     * the circuit), "breakerWindowSize": Integer (latest calls, 20 by default), "breakerMinCalls": Integer (10 by
+     * default), "breakerOpenTime": Integer (milliseconds, 30000 by default), "breakerHalfOpenCalls": Integer (probing
+     * calls, 3 by default), "bulkheadMaxCalls": Integer (max concurrent calls), "bulkheadTimeout": Integer
+     * (milliseconds to wait for a free slot, 0 by default).
+     */
+    private static class _CallGuard {
+        public String key;
+        public CircuitBreaker breaker;
+        public _Bulkhead bulkhead;
+
+        public _CallGuard(String key, CircuitBreaker breaker, _Bulkhead bulkhead) {
+            super();
+            this.key = key;
+            this.breaker = breaker;
+            this.bulkhead = bulkhead;
+        }
+    }
+
+    /**
+     * A message waiting in the micro-batcher.
+     */
+    private static class _BatchItem {
+        public DataObject msg;
+        public String integrationId;
+
+        public _BatchItem(DataObject msg, String integrationId) {
+            super();
+            this.msg = msg;
+            this.integrationId = integrationId;
+        }
+    }
+
+    private static class _Bulkhead {
+        public Semaphore slots;
+        public int maxCalls;
+        public long timeout;
+
+        public _Bulkhead(int maxCalls, long timeout) {
+            super();
+            this.slots = new Semaphore(maxCalls);
+            this.maxCalls = maxCalls;
+            this.timeout = timeout;
+        }
+    }
+
+    private static volatile Executor _outboundCallExecutor = null;
+
+    // Application class -> the generated endpoint table, or null
+    private static final ClassValue<EndpointTable> _endpointTables = new ClassValue<EndpointTable>() {
+        @Override
+        protected EndpointTable computeValue(Class<?> type) {
+            try {
+                Class<?> tableClass = Class.forName(type.getName() + EndpointTable.CLASS_SUFFIX, true, type.getClassLoader());
+                return (EndpointTable) tableClass.getDeclaredConstructor().newInstance();
+            } catch (Exception ex) {
+                return null; // Not generated
+            }
+        }
+    };
+
     private JSONObject appConfig;
     private boolean stopped;
+    private Engine engine;
 
     // Endpoint Name -> Endpont Method
-    private ConcurrentHashMap<String, Method> outboundEndpoints;
+    private ConcurrentHashMap<String, _OutboundEndpoint> outboundEndpoints;
     // Endpoint Name -> Endpont Object
     private ConcurrentHashMap<String, _InboundEndpoint> inboundEndpoints;
     private String connectionKeyInConfig = null;
 
     // HTTP Path -> Endpoint ID
     private ConcurrentHashMap<String, String> pathToEndpointMap;
+    // HTTP Path template -> Endpoint ID, for the raw paths not matching exactly, e.g. "/object/12345"
+    private volatile PathRouter<String> pathRouter;
 
     // Connection ID -> Connection config and status
     private ConcurrentHashMap<String, JSONObject> connections;
@@ -58,6 +176,24 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
     private ConcurrentHashMap<String, String> integraionToConnMap;
     private ConcurrentHashMap<String, JSONObject> integraionToConfigMap;
 
+    // endpointId + "/" + connectionId -> integrationIds. The arrays are copied on write, never modified
+    private ConcurrentHashMap<String, String[]> connToIntegrationsMap;
+
+    // endpointId + integrationId -> call limit, only for the endpoints with "callLimitPerSecond" in config
+    private ConcurrentHashMap<String, _CallLimit> integrationToLimitMap;
+
+    // endpointId + integrationId -> circuit breaker and bulkhead, only for the endpoints having them in config
+    private ConcurrentHashMap<String, _CallGuard> integrationToGuardMap;
+
+    // endpointId + "/" + connectionId -> circuit breaker or bulkhead
+    private ConcurrentHashMap<String, CircuitBreaker> breakers;
+    private ConcurrentHashMap<String, _Bulkhead> bulkheads;
+
+    // endpointId + integrationId -> micro-batcher, only for the batch endpoints with "batchLingerTime" in config.
+    // The batchers are shared by endpointId + "/" + connectionId + "/" + batchMaxSize + "/" + batchLingerTime
+    private ConcurrentHashMap<String, MicroBatcher<_BatchItem, DataObject>> integrationToBatcherMap;
+    private ConcurrentHashMap<String, MicroBatcher<_BatchItem, DataObject>> batchers;
+
     // integarionId -> number of bound endpoints. When the count is 0, the entry will be removed from the list
     private ConcurrentHashMap<String, Integer> integraionToCountMap;
 
@@ -69,16 +205,25 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
 
         appConfig = null;
         stopped = true;
+        engine = null;
         outboundEndpoints = null;
+        integrationToBatcherMap = null;
+        batchers = null;
         inboundEndpoints = null;
         pathToEndpointMap = null;
+        pathRouter = null;
         connections = null;
         connsStatus = null;
         connectionKeyToIdMap = null;
         integraionToConnMap = null;
         integraionToConfigMap = null;
+        connToIntegrationsMap = null;
         integraionToCountMap = null;
         integrationKeyToIdMap = null;
+        integrationToLimitMap = null;
+        integrationToGuardMap = null;
+        breakers = null;
+        bulkheads = null;
         appId = null;
     }
 
@@ -101,21 +246,56 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
     @Override
     public void init(DataObject config, Context ctx) throws Exception {
         if (ctx != null)
-            ctx.logInfo(_position, "Initializing application", "config="+(config==null?"":config.getString()));
+            ctx.logInfo(_position, "Initializing application", "config="+(config==null?"":config.getString(500)));
 
         appConfig = config==null ? null : config.getJSONObject();
+        engine = ctx!=null ? ctx.getEngine() : null;
         connections = new ConcurrentHashMap<String, JSONObject>();
         connsStatus = new ConcurrentHashMap<String, ConnectionStatus>();
-        outboundEndpoints = new ConcurrentHashMap<String, Method>();
+        outboundEndpoints = new ConcurrentHashMap<String, _OutboundEndpoint>();
+        integrationToBatcherMap = new ConcurrentHashMap<String, MicroBatcher<_BatchItem, DataObject>>();
+        batchers = new ConcurrentHashMap<String, MicroBatcher<_BatchItem, DataObject>>();
         inboundEndpoints = new ConcurrentHashMap<String, _InboundEndpoint>();
         connectionKeyToIdMap = new ConcurrentHashMap<String, String>();
         integraionToConnMap = new ConcurrentHashMap<String, String>();
         integraionToConfigMap = new ConcurrentHashMap<String, JSONObject>();
+        connToIntegrationsMap = new ConcurrentHashMap<String, String[]>();
         integraionToCountMap = new ConcurrentHashMap<String, Integer>();
         integrationKeyToIdMap = new ConcurrentHashMap<String, String>();
+        integrationToLimitMap = new ConcurrentHashMap<String, _CallLimit>();
+        integrationToGuardMap = new ConcurrentHashMap<String, _CallGuard>();
+        breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+        bulkheads = new ConcurrentHashMap<String, _Bulkhead>();
+
+        // Get all endpoints from the generated table, or by reflection
+
+        EndpointTable table = _endpointTables.get(this.getClass());
+        if (table != null) _loadEndpoints(table);
+        else _scanEndpoints();
 
-        // Get all endpoints by reflection
+        onInit(appConfig, ctx);
 
+        if (ctx != null) ctx.logInfo(_position, "Application initialized");
+    }
+
+    private void _loadEndpoints(EndpointTable table) {
+        for (EndpointTable.Inbound endpoint : table.getInboundEndpoints()) {
+            inboundEndpoints.put(endpoint.name,
+                    new _InboundEndpoint(endpoint.address, endpoint.connectionKeyInReqeust, endpoint.invoker));
+
+            connectionKeyInConfig = endpoint.connectionKeyInConfig;
+            if (connectionKeyInConfig!=null && connectionKeyInConfig.length()==0) connectionKeyInConfig = null;
+        }
+
+        for (EndpointTable.Outbound endpoint : table.getOutboundEndpoints()) {
+            outboundEndpoints.put(endpoint.name, new _OutboundEndpoint(endpoint.invoker, endpoint.batch, endpoint.async));
+        }
+    }
+
+    /**
+     * Bind the endpoint methods to this object as method handles, which are invoked without the overhead of reflection.
+     */
+    private void _scanEndpoints() throws Exception {
         Method[] methods = this.getClass().getMethods();
         for (Method method : methods) {
             Annotation[] anns = method.getAnnotations();
@@ -126,7 +306,7 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
                     _InboundEndpoint endpoint = new _InboundEndpoint(
                             ((InboundEndpoint)ann).address(),
                             ((InboundEndpoint)ann).connectionKeyInReqeust(),
-                            method
+                            _inboundInvoker(_bindEndpoint(method, _inboundType))
                     );
                     inboundEndpoints.put(method.getName(), endpoint);
 
@@ -135,17 +315,63 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
                     if (connectionKeyInConfig!=null && connectionKeyInConfig.length()==0) connectionKeyInConfig = null;
                 }
                 else if (ann instanceof OutboundEndpoint) {
-                    outboundEndpoints.put(method.getName(), method);
+                    outboundEndpoints.put(method.getName(), new _OutboundEndpoint(
+                            _outboundInvoker(_bindEndpoint(method, _outboundType)),
+                            ((OutboundEndpoint)ann).batch(),
+                            CompletionStage.class.isAssignableFrom(method.getReturnType())
+                    ));
                 }
             }
         }
+    }
 
-        onInit(appConfig, ctx);
+    protected void onInit(JSONObject config, Context ctx) throws Exception {}
 
-        if (ctx != null) ctx.logInfo(_position, "Application initialized");
+    private MethodHandle _bindEndpoint(Method method, MethodType type) throws Exception {
+        MethodHandle result;
+        try {
+            result = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException ex) {
+            // The application class is not public
+            method.setAccessible(true);
+            result = MethodHandles.lookup().unreflect(method);
+        }
+
+        try {
+            return result.bindTo(this).asType(type);
+        } catch (WrongMethodTypeException ex) {
+            throw new PhusionException("EP_NONE", "Invalid endpoint method", "method="+method.getName(), ex);
+        }
     }
 
-    protected void onInit(JSONObject config, Context ctx) throws Exception {}
+    private static EndpointTable.InboundInvoker _inboundInvoker(MethodHandle handle) {
+        return (app, request, response, integrationIds, connectionId, ctx) -> {
+            try {
+                handle.invokeExact(request, response, integrationIds, connectionId, ctx);
+            } catch (Throwable t) {
+                throw _toException(t);
+            }
+        };
+    }
+
+    private static EndpointTable.OutboundInvoker _outboundInvoker(MethodHandle handle) {
+        return (app, msg, integrationId, connectionId, ctx) -> {
+            try {
+                return (Object) handle.invokeExact(msg, integrationId, connectionId, ctx);
+            } catch (Throwable t) {
+                throw _toException(t);
+            }
+        };
+    }
+
+    /**
+     * Rethrow the error from a method handle.
+     */
+    private static Exception _toException(Throwable t) {
+        if (t instanceof Exception) return (Exception) t;
+        if (t instanceof Error) throw (Error) t;
+        return new Exception(t);
+    }
 
     @Override
     public void start(Context ctx) throws Exception {
@@ -157,6 +383,7 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         String appRootUrl = "/"+getId();
         Engine engine = ctx!=null ? ctx.getEngine() : null;
         if (pathToEndpointMap == null) pathToEndpointMap = new ConcurrentHashMap<String, String>();
+        PathRouter<String> router = new PathRouter<String>();
 
         Set<String> endpointIds = inboundEndpoints.keySet();
         for (String endpointId: endpointIds) {
@@ -164,6 +391,14 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
 
             pathToEndpointMap.put(appRootUrl + endpoint.httpPath, endpointId);
 
+            try {
+                router.add(appRootUrl + endpoint.httpPath, endpointId);
+            } catch (IllegalArgumentException ex) {
+                // Not a template the router takes (e.g. "/order-{id}"), so the address is only matched as it is
+                if (ctx != null) ctx.logInfo(_position, "Inbound endpoint address is not routed as a template",
+                        String.format("endpointId=%s, address=%s, reason=%s", endpointId, endpoint.httpPath, ex.getMessage()));
+            }
+
             if (engine != null) {
                 if (ctx != null) ctx.setContextInfo("endpointId", endpointId);
                 engine.registerHttpServer(appRootUrl + endpoint.httpPath, this, ctx);
@@ -171,6 +406,8 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
             }
         }
 
+        pathRouter = router;
+
         onStart(ctx);
         stopped = false;
 
@@ -226,6 +463,7 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
             }
 
             pathToEndpointMap = null;
+            pathRouter = null;
         }
 
         // Disconnect all connections
@@ -394,9 +632,12 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
     public void addEndpointForIntegration(String endpointId, String integrationId, String connectionId, DataObject config) throws Exception {
         JSONObject objConfig = config==null ? null : config.getJSONObject();
         if (objConfig == null) objConfig = new JSONObject();
-        integraionToConnMap.put(endpointId+integrationId, connectionId);
+        String oldConnectionId = integraionToConnMap.put(endpointId+integrationId, connectionId);
         integraionToConfigMap.put(endpointId+integrationId, objConfig);
 
+        if (oldConnectionId != null) _unindexIntegration(endpointId, oldConnectionId, integrationId);
+        _indexIntegration(endpointId, connectionId, integrationId);
+
         Integer count = integraionToCountMap.get(integrationId);
         if (count == null) count = new Integer(0);
         count = count + 1;
@@ -404,6 +645,178 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
 
         String key = getIntegrationKeyFromConfig(endpointId, integrationId, connectionId, objConfig);
         if (key != null) integrationKeyToIdMap.put(endpointId+key, integrationId);
+
+        _CallLimit limit = _createCallLimit(endpointId, connectionId, objConfig);
+        if (limit != null) integrationToLimitMap.put(endpointId+integrationId, limit);
+        else integrationToLimitMap.remove(endpointId+integrationId);
+
+        _CallGuard guard = _createCallGuard(endpointId, connectionId, objConfig);
+        _CallGuard oldGuard = guard!=null ? integrationToGuardMap.put(endpointId+integrationId, guard) :
+                integrationToGuardMap.remove(endpointId+integrationId);
+        if (oldGuard != null) _releaseCallGuard(oldGuard);
+
+        MicroBatcher<_BatchItem, DataObject> batcher = _createBatcher(endpointId, connectionId, objConfig);
+        MicroBatcher<_BatchItem, DataObject> oldBatcher = batcher!=null ?
+                integrationToBatcherMap.put(endpointId+integrationId, batcher) :
+                integrationToBatcherMap.remove(endpointId+integrationId);
+        if (oldBatcher != null) _releaseBatcher(oldBatcher);
+    }
+
+    /**
+     * Single calls to a batch endpoint are grouped into batches, if the endpoint config has
+     * "batchLingerTime": Integer (milliseconds to wait for more messages), "batchMaxSize": Integer (100 by default).
+     *
+     * Integrations with the same settings share a batcher, the others get their own.
+     */
+    private MicroBatcher<_BatchItem, DataObject> _createBatcher(String endpointId, String connectionId, JSONObject config) {
+        long lingerTime = config.getLongValue("batchLingerTime");
+        if (lingerTime<=0 || ! _isBatchEndpoint(endpointId)) return null;
+
+        int maxSize = config.getIntValue("batchMaxSize", 100);
+        String key = endpointId + "/" + (connectionId==null ? "" : connectionId) + "/" + maxSize + "/" + lingerTime;
+
+        return batchers.computeIfAbsent(key, k -> new MicroBatcher<_BatchItem, DataObject>(maxSize, lingerTime,
+                items -> _handleBatch(endpointId, connectionId, items), getOutboundCallExecutor()));
+    }
+
+    /**
+     * Drop the shared batcher, if no other integration uses it.
+     */
+    private void _releaseBatcher(MicroBatcher<_BatchItem, DataObject> batcher) {
+        if (integrationToBatcherMap.containsValue(batcher)) return;
+        batchers.values().remove(batcher);
+    }
+
+    private boolean _isBatchEndpoint(String endpointId) {
+        _OutboundEndpoint endpoint = outboundEndpoints.get(endpointId);
+        return endpoint!=null && endpoint.batch;
+    }
+
+    /**
+     * The batch method gets the integration ID if all messages are from the same integration, otherwise null.
+     *
+     * A batch serves several callers, so it gets no context (null). Its result or failure is logged by each caller
+     * in its own context, see _endOutboundCall().
+     */
+    private List<DataObject> _handleBatch(String endpointId, String connectionId, List<_BatchItem> items) throws Exception {
+        List<DataObject> msgs = new ArrayList<DataObject>(items.size());
+        String integrationId = items.get(0).integrationId;
+
+        for (_BatchItem item : items) {
+            msgs.add(item.msg);
+            if (integrationId!=null && ! integrationId.equals(item.integrationId)) integrationId = null;
+        }
+
+        return onCallOutboundEndpointBatch(msgs, endpointId, integrationId, connectionId, null);
+    }
+
+    private _CallGuard _createCallGuard(String endpointId, String connectionId, JSONObject config) {
+        String key = endpointId + "/" + (connectionId==null ? "" : connectionId);
+        CircuitBreaker breaker = null;
+        _Bulkhead bulkhead = null;
+
+        double failureRate = config.getDoubleValue("breakerFailureRate");
+        double slowCallRate = config.getDoubleValue("breakerSlowCallRate");
+        if (failureRate>0 || slowCallRate>0) {
+            CircuitBreaker newBreaker = new CircuitBreaker(
+                    config.getIntValue("breakerWindowSize", 20),
+                    config.getIntValue("breakerMinCalls", 10),
+                    failureRate,
+                    config.getLongValue("breakerSlowCallTime", 0),
+                    slowCallRate,
+                    config.getLongValue("breakerOpenTime", 30000),
+                    config.getIntValue("breakerHalfOpenCalls", 3)
+            );
+
+            // Keep the current state unless the settings change
+            breaker = breakers.compute(key, (k, old) -> newBreaker.hasSameSettings(old) ? old : newBreaker);
+        }
+
+        int maxCalls = config.getIntValue("bulkheadMaxCalls");
+        if (maxCalls > 0) {
+            long timeout = config.getLongValue("bulkheadTimeout", 0);
+            bulkhead = bulkheads.compute(key, (k, old) ->
+                    old!=null && old.maxCalls==maxCalls && old.timeout==timeout ? old : new _Bulkhead(maxCalls, timeout));
+        }
+
+        return breaker==null && bulkhead==null ? null : new _CallGuard(key, breaker, bulkhead);
+    }
+
+    /**
+     * Drop the shared circuit breaker and bulkhead of the guard, if no other integration configures them.
+     */
+    private void _releaseCallGuard(_CallGuard guard) {
+        boolean breakerUsed = false;
+        boolean bulkheadUsed = false;
+
+        for (_CallGuard other : integrationToGuardMap.values()) {
+            if (other.key.equals(guard.key)) {
+                if (other.breaker != null) breakerUsed = true;
+                if (other.bulkhead != null) bulkheadUsed = true;
+            }
+        }
+
+        if (guard.breaker!=null && ! breakerUsed) breakers.remove(guard.key);
+        if (guard.bulkhead!=null && ! bulkheadUsed) bulkheads.remove(guard.key);
+    }
+
+    @Override
+    public CircuitState getCircuitState(String endpointId, String connectionId) {
+        CircuitBreaker breaker = breakers==null ? null :
+                breakers.get(endpointId + "/" + (connectionId==null ? "" : connectionId));
+        return breaker==null ? CircuitState.None : breaker.getState();
+    }
+
+    private void _indexIntegration(String endpointId, String connectionId, String integrationId) {
+        connToIntegrationsMap.compute(endpointId + "/" + connectionId, (k, ids) -> {
+            if (ids == null) return new String[]{integrationId};
+            if (Arrays.asList(ids).contains(integrationId)) return ids;
+
+            String[] result = Arrays.copyOf(ids, ids.length + 1);
+            result[ids.length] = integrationId;
+            return result;
+        });
+    }
+
+    private void _unindexIntegration(String endpointId, String connectionId, String integrationId) {
+        connToIntegrationsMap.computeIfPresent(endpointId + "/" + connectionId, (k, ids) -> {
+            int pos = Arrays.asList(ids).indexOf(integrationId);
+            if (pos < 0) return ids;
+            if (ids.length == 1) return null;
+
+            String[] result = new String[ids.length - 1];
+            System.arraycopy(ids, 0, result, 0, pos);
+            System.arraycopy(ids, pos + 1, result, pos, ids.length - pos - 1);
+            return result;
+        });
+    }
+
+    private _CallLimit _createCallLimit(String endpointId, String connectionId, JSONObject config) throws Exception {
+        double rate = config.getDoubleValue("callLimitPerSecond");
+        if (rate <= 0) return null;
+
+        int burst = config.getIntValue("callLimitBurst", 0);
+        KVStorage storage = "cluster".equals(config.getString("callLimitScope")) && engine!=null ?
+                engine.getKVStorageForApplication(appId) : null;
+
+        CallLimiter limiter;
+        if (storage == null) {
+            limiter = RateLimiterRegistry.getDefault().getLimiter(appId, endpointId, connectionId, rate, burst);
+        }
+        else {
+            DistributedRateLimiter distributed = RateLimiterRegistry.getDefault().getDistributedLimiter(
+                    appId, endpointId, connectionId, storage, engine.getId(), rate, burst);
+            distributed.setMinNodes(config.getIntValue("callLimitNodes", 1));
+            limiter = distributed;
+        }
+
+        RateLimiter.Mode mode;
+        String strMode = config.getString("callLimitMode");
+        if ("reject".equals(strMode)) mode = RateLimiter.Mode.Reject;
+        else if ("wait".equals(strMode)) mode = RateLimiter.Mode.Wait;
+        else mode = RateLimiter.Mode.Block;
+
+        return new _CallLimit(limiter, mode, config.getLongValue("callLimitTimeout", 1000));
     }
 
     protected String getConnectionKeyFromConfig(String connectionId, JSONObject config) {
@@ -422,8 +835,14 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
 
     @Override
     public void removeEndpointForIntegration(String endpointId, String integrationId) throws Exception {
-        integraionToConnMap.remove(endpointId+integrationId);
+        String connectionId = integraionToConnMap.remove(endpointId+integrationId);
+        if (connectionId != null) _unindexIntegration(endpointId, connectionId, integrationId);
         integraionToConfigMap.remove(endpointId+integrationId);
+        integrationToLimitMap.remove(endpointId+integrationId);
+        _CallGuard guard = integrationToGuardMap.remove(endpointId+integrationId);
+        if (guard != null) _releaseCallGuard(guard);
+        MicroBatcher<_BatchItem, DataObject> batcher = integrationToBatcherMap.remove(endpointId+integrationId);
+        if (batcher != null) _releaseBatcher(batcher);
 
         Integer count = integraionToCountMap.get(integrationId);
         count = count - 1;
@@ -448,8 +867,145 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         }
     }
 
+    /**
+     * An outbound call in progress.
+     */
+    private static class _OutboundCall {
+        public String connectionId;
+        public CircuitBreaker breaker;
+        public long breakerPermit;
+        public _Bulkhead bulkhead;
+        public long startTime;
+
+        public _OutboundCall(String connectionId, CircuitBreaker breaker, long breakerPermit, _Bulkhead bulkhead) {
+            super();
+            this.connectionId = connectionId;
+            this.breaker = breaker;
+            this.breakerPermit = breakerPermit;
+            this.bulkhead = bulkhead;
+            this.startTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * If the endpoint config (for the integration) has "callLimitPerSecond", the calls are rate limited,
+     * shared by all integrations calling the endpoint through the same connection. See RateLimiter.
+     *
+     * If it has a circuit breaker or bulkhead, the calls are rejected with "EP_OPEN" when the circuit is open,
+     * or with "EP_BUSY" when there are too many concurrent calls.
+     */
     @Override
     public DataObject callOutboundEndpoint(String endpointId, String integrationId, DataObject msg, Context ctx) throws Exception {
+        _OutboundCall call = _beginOutboundCall(endpointId, integrationId, msg, ctx);
+
+        DataObject result = null;
+        Throwable error = null;
+        try {
+            result = onCallOutboundEndpoint(msg, endpointId, integrationId, call.connectionId, ctx);
+        } catch (Exception ex) {
+            error = ex;
+        } catch (Throwable t) {
+            // Release the breaker and bulkhead as a failed call, before the error goes on
+            _endOutboundCall(call, null, t, null);
+            throw t;
+        }
+
+        return _endOutboundCall(call, result, error, ctx);
+    }
+
+    /**
+     * The endpoint methods returning CompletionStage run without blocking any thread, the others run in the
+     * outbound call executor.
+     *
+     * The checks before the call (rate limit, bulkhead etc.) run in the caller's thread, and may block it
+     * if the limits are configured to wait. Errors are returned through the future.
+     */
+    @Override
+    public CompletableFuture<DataObject> callOutboundEndpointAsync(String endpointId, String integrationId,
+                                                                   DataObject msg, Context ctx) {
+        CompletableFuture<DataObject> result = new CompletableFuture<DataObject>();
+
+        _OutboundCall call;
+        try {
+            call = _beginOutboundCall(endpointId, integrationId, msg, ctx);
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        CompletableFuture<DataObject> future;
+        try {
+            future = onCallOutboundEndpointAsync(msg, endpointId, integrationId, call.connectionId, ctx);
+        } catch (Throwable t) {
+            future = new CompletableFuture<DataObject>();
+            future.completeExceptionally(t);
+        }
+
+        future.whenComplete((value, error) -> {
+            try {
+                result.complete( _endOutboundCall(call, value, error, ctx) );
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * If the endpoint is a batch endpoint, the messages are sent in batches of "batchMaxSize" (from the endpoint
+     * config, unlimited by default), and each batch counts as one call for the rate limit, circuit breaker etc.
+     * Otherwise, the messages are sent one by one.
+     */
+    @Override
+    public List<DataObject> callOutboundEndpointBatch(String endpointId, String integrationId, List<DataObject> msgs,
+                                                      Context ctx) throws Exception {
+        if (! _isBatchEndpoint(endpointId)) {
+            List<DataObject> result = new ArrayList<DataObject>(msgs.size());
+            for (DataObject msg : msgs) result.add( callOutboundEndpoint(endpointId, integrationId, msg, ctx) );
+            return result;
+        }
+
+        JSONObject config = integraionToConfigMap.get(endpointId+integrationId);
+        int maxSize = config==null ? 0 : config.getIntValue("batchMaxSize");
+        if (maxSize <= 0) maxSize = Math.max(1, msgs.size());
+
+        List<DataObject> result = new ArrayList<DataObject>(msgs.size());
+
+        for (int i = 0; i < msgs.size(); i += maxSize) {
+            List<DataObject> batch = msgs.subList(i, Math.min(msgs.size(), i + maxSize));
+            _OutboundCall call = _beginOutboundCall(endpointId, integrationId, batch, ctx);
+
+            List<DataObject> batchResult = null;
+            Throwable error = null;
+            try {
+                batchResult = onCallOutboundEndpointBatch(batch, endpointId, integrationId, call.connectionId, ctx);
+                if (batchResult==null || batchResult.size()!=batch.size()) {
+                    throw new PhusionException("EP_BATCH", "Batch results do not match the messages",
+                            String.format("messages=%d, results=%d", batch.size(), batchResult==null ? 0 : batchResult.size()));
+                }
+            } catch (Exception ex) {
+                error = ex;
+            } catch (Throwable t) {
+                _endOutboundCall(call, null, t, null);
+                throw t;
+            }
+
+            batchResult = _endOutboundCall(call, batchResult, error, ctx);
+
+            if (batchResult == null) {
+                // Failure is ignored without context, as the single calls
+                for (int j = 0; j < batch.size(); j++) result.add(null);
+            }
+            else result.addAll(batchResult);
+        }
+
+        return result;
+    }
+
+    /**
+     * @param msg DataObject, or List of DataObject for batch calls
+     */
+    private _OutboundCall _beginOutboundCall(String endpointId, String integrationId, Object msg, Context ctx) throws Exception {
         if (ctx!=null && stopped) {
             throw new PhusionException("APP_STOP", "Failed to call outbound endpoint", ctx);
         }
@@ -463,28 +1019,53 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
             ctx.setContextInfo("integrationId", integrationId);
             ctx.setContextInfo("connectionId", connectionId == null ? "" : connectionId);
 
-            ctx.logInfo(_position, "Calling outbound endpoint", "msg="+(msg==null?"":msg.getString(500)));
+            ctx.logInfo(_position, "Calling outbound endpoint", "msg="+_preview(msg));
         }
 
         if (ctx!=null && connectionId!=null && getConnectionStatus(connectionId) != ConnectionStatus.Connected) {
             throw new PhusionException("CONN_NONE_STOP", "Failed to call outbound endpoint", ctx);
         }
 
-        long t1 = System.nanoTime();
+        _CallLimit limit = integrationToLimitMap.get(endpointId+integrationId);
+        if (limit!=null && ! limit.limiter.acquire(1, limit.mode, limit.timeout, TimeUnit.MILLISECONDS)) {
+            throw new PhusionException("EP_LIMIT", "Call limit of outbound endpoint exceeded",
+                    String.format("limit=%.1f/s", limit.limiter.getRate()), ctx);
+        }
 
-        DataObject result = null;
-        try {
-            result = onCallOutboundEndpoint(msg, endpointId, integrationId, connectionId, ctx);
-        } catch (Exception ex) {
-            if (ctx != null)
-                throw new PhusionException("EP_FAIL", "Failed to call outbound endpoint", ctx, ex);
+        // Shared by all integrations calling the endpoint through the connection
+        String guardKey = endpointId + "/" + (connectionId==null ? "" : connectionId);
+        _Bulkhead bulkhead = bulkheads.isEmpty() ? null : bulkheads.get(guardKey);
+        CircuitBreaker breaker = breakers.isEmpty() ? null : breakers.get(guardKey);
+
+        if (bulkhead!=null && ! bulkhead.slots.tryAcquire(bulkhead.timeout, TimeUnit.MILLISECONDS)) {
+            throw new PhusionException("EP_BUSY", "Too many concurrent calls to outbound endpoint",
+                    "maxCalls="+bulkhead.maxCalls, ctx);
+        }
+
+        long breakerPermit = breaker==null ? 0 : breaker.tryAcquire();
+        if (breakerPermit < 0) {
+            if (bulkhead != null) bulkhead.slots.release();
+            throw new PhusionException("EP_OPEN", "Circuit of outbound endpoint is open",
+                    "state="+breaker.getState(), ctx);
         }
 
+        return new _OutboundCall(connectionId, breaker, breakerPermit, bulkhead);
+    }
+
+    private <R> R _endOutboundCall(_OutboundCall call, R result, Throwable error, Context ctx) throws Exception {
         long t2 = System.nanoTime();
 
+        if (call.breaker != null) call.breaker.onComplete(call.breakerPermit, error!=null, t2 - call.startTime);
+        if (call.bulkhead != null) call.bulkhead.slots.release();
+
+        if (error!=null && ctx!=null) {
+            if (error instanceof CompletionException && error.getCause()!=null) error = error.getCause();
+            throw new PhusionException("EP_FAIL", "Failed to call outbound endpoint", ctx, error);
+        }
+
         if (ctx != null) {
             ctx.logInfo(_position, "Outbound endpoint called", String.format("result=%s, time=%.1fms",
-                    result==null?"":result.getString(500), (t2 - t1) / 100000 / 10.0));
+                    _preview(result), (t2 - call.startTime) / 100000 / 10.0));
 
             ctx.removeContextInfo("applicationId");
             ctx.removeContextInfo("endpointId");
@@ -494,13 +1075,116 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         return result;
     }
 
+    private static String _preview(Object data) {
+        if (data == null) return "";
+        else if (data instanceof DataObject) return ((DataObject) data).getString(500);
+        else if (data instanceof List) return "("+((List<?>) data).size()+" messages)";
+        else return data.toString();
+    }
+
+    /**
+     * If the endpoint method returns CompletionStage, waits for it.
+     */
     protected DataObject onCallOutboundEndpoint(DataObject msg, String endpointId, String integrationId,
                                             String connectionId, Context ctx) throws Exception {
-        Method method = outboundEndpoints.get(endpointId);
+        _OutboundEndpoint endpoint = outboundEndpoints.get(endpointId);
+
+        if (endpoint == null) throw new PhusionException("EP_NONE", "Failed to execute outbound endpoint");
+
+        if (endpoint.batch) {
+            MicroBatcher<_BatchItem, DataObject> batcher = integrationToBatcherMap.get(endpointId+integrationId);
+            if (batcher == null) {
+                List<DataObject> result = onCallOutboundEndpointBatch(Collections.singletonList(msg),
+                        endpointId, integrationId, connectionId, ctx);
+                return result==null || result.isEmpty() ? null : result.get(0);
+            }
+
+            try {
+                return batcher.submit(new _BatchItem(msg, integrationId)).get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof Exception ? (Exception) cause : ex;
+            }
+        }
+
+        Object result = endpoint.method.invoke(this, msg, integrationId, connectionId, ctx);
+
+        if (result instanceof CompletionStage) {
+            @SuppressWarnings("unchecked")
+            CompletionStage<DataObject> stage = (CompletionStage<DataObject>) result;
 
-        if (method == null) throw new PhusionException("EP_NONE", "Failed to execute outbound endpoint");
+            try {
+                return stage.toCompletableFuture().get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof Exception ? (Exception) cause : ex;
+            }
+        }
+        else return (DataObject) result;
+    }
+
+    /**
+     * Calls the batch endpoint method.
+     */
+    protected List<DataObject> onCallOutboundEndpointBatch(List<DataObject> msgs, String endpointId, String integrationId,
+                                                           String connectionId, Context ctx) throws Exception {
+        _OutboundEndpoint endpoint = outboundEndpoints.get(endpointId);
 
-        return (DataObject) method.invoke(this, msg, integrationId, connectionId, ctx);
+        if (endpoint==null || ! endpoint.batch) throw new PhusionException("EP_NONE", "Failed to execute outbound endpoint");
+
+        @SuppressWarnings("unchecked")
+        List<DataObject> result = (List<DataObject>) endpoint.method.invoke(this, msgs, integrationId, connectionId, ctx);
+        return result;
+    }
+
+    /**
+     * If the endpoint method returns CompletionStage, calls it directly, otherwise runs onCallOutboundEndpoint()
+     * in the outbound call executor.
+     */
+    protected CompletableFuture<DataObject> onCallOutboundEndpointAsync(DataObject msg, String endpointId, String integrationId,
+                                                                        String connectionId, Context ctx) throws Exception {
+        _OutboundEndpoint endpoint = outboundEndpoints.get(endpointId);
+
+        MicroBatcher<_BatchItem, DataObject> batcher = integrationToBatcherMap.get(endpointId+integrationId);
+        if (batcher != null) return batcher.submit(new _BatchItem(msg, integrationId));
+
+        if (endpoint!=null && endpoint.async) {
+            @SuppressWarnings("unchecked")
+            CompletionStage<DataObject> result = (CompletionStage<DataObject>) endpoint.method.invoke(
+                    this, msg, integrationId, connectionId, ctx);
+            return result.toCompletableFuture();
+        }
+
+        CompletableFuture<DataObject> result = new CompletableFuture<DataObject>();
+        getOutboundCallExecutor().execute(() -> {
+            try {
+                result.complete( onCallOutboundEndpoint(msg, endpointId, integrationId, connectionId, ctx) );
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * The executor running the blocking endpoint methods for callOutboundEndpointAsync(). By default, a cached
+     * thread pool shared by all applications.
+     */
+    protected Executor getOutboundCallExecutor() {
+        Executor result = _outboundCallExecutor;
+        if (result == null) {
+            synchronized (HttpBaseApplication.class) {
+                if (_outboundCallExecutor == null) {
+                    _outboundCallExecutor = Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "phusion-outbound-call");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+                result = _outboundCallExecutor;
+            }
+        }
+        return result;
     }
 
     @Override
@@ -513,6 +1197,13 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         String path = request.getRelativeUrl();
         String endpointId = pathToEndpointMap.get(path);
 
+        if (endpointId==null && pathRouter!=null) {
+            // The raw path, e.g. "/object/12345" for "/object/{id}"
+            Map<String, String> variables = new HashMap<String, String>();
+            endpointId = pathRouter.match(path, variables);
+            if (endpointId!=null && variables.size()>0) request.addParameters(variables);
+        }
+
         if (ctx!=null && endpointId==null) {
             throw new PhusionException("EP_NONE", "Failed to process inbound endpoint", "path="+path, ctx);
         }
@@ -553,27 +1244,15 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
             else {
                 // From connection ID to locate the integration
 
-                ArrayList<String> arr = new ArrayList<String>();
-                int len = endpointId.length();
-
-                Enumeration<String> keys = integraionToConnMap.keys();
-                String key;
-                while (keys.hasMoreElements()) {
-                    key = keys.nextElement();
-
-                    // "startsWith" is not accurate enough, it may match the wrong endpoint, e.g. order and orderList
-                    if (key.startsWith(endpointId) && connectionId.equals(integraionToConnMap.get(key))) {
-                        arr.add( key.substring(len) );
-                    }
-                }
+                String[] integrationIds = connToIntegrationsMap.get(endpointId + "/" + connectionId);
 
-                if (arr.size() == 0) {
+                if (integrationIds == null) {
                     // No integration bound to the endpoint
                     onCallInboundEndpoint(request, response, endpointId, null, connectionId, ctx);
                 }
                 else {
-                    // Multiple integrations bound to the endpoint
-                    String[] integrationIds = arr.toArray(new String[]{});
+                    // Multiple integrations bound to the endpoint. The indexed array is shared, so pass a copy
+                    integrationIds = integrationIds.clone();
                     if (ctx != null) ctx.setContextInfo("integrationId", Arrays.toString(integrationIds));
 
                     onCallInboundEndpoint(request, response, endpointId, integrationIds, connectionId, ctx);
@@ -609,6 +1288,10 @@ public abstract class HttpBaseApplication implements Application, HttpServer {
         return endpoint==null ? null : request.getParameter(endpoint.connectionKeyInReqeust);
     }
 
+    /**
+     * Override it to route by the request. To pick a field from a large body, prefer
+     * request.getBody().getPathString("$.some.field"), which does not parse the whole body.
+     */
     protected String getIntegrationKeyFromHttpRequest(String endpointId, HttpRequest request) {
         return null;
     }
@@ -0,0 +1,124 @@
+package cloud.phusion.application;
+
+import cloud.phusion.PhusionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Groups concurrent single calls into batches, by max size and max linger time, and splits the results back to
+ * the callers.
+ *
+ * A batch is handled when it reaches the max size, or when its first item has waited for the linger time.
+ * The handler must return one result for each item, in the same order, or all items of the batch fail.
+ *
+ * It is thread-safe.
+ */
+public final class MicroBatcher<T, R> {
+
+    public interface Handler<T, R> {
+        List<R> handle(List<T> items) throws Exception;
+    }
+
+    private static final ScheduledExecutorService _timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "phusion-microbatch-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int maxSize;
+    private final long lingerMillis;
+    private final Handler<T, R> handler;
+    private final Executor executor;
+
+    // The batch being filled, guarded by "this"
+    private List<T> items = null;
+    private List<CompletableFuture<R>> futures = null;
+
+    /**
+     * @param executor runs the handler
+     */
+    public MicroBatcher(int maxSize, long lingerMillis, Handler<T, R> handler, Executor executor) {
+        super();
+
+        this.maxSize = Math.max(1, maxSize);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.handler = handler;
+        this.executor = executor;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getLingerTime() {
+        return lingerMillis;
+    }
+
+    public CompletableFuture<R> submit(T item) {
+        CompletableFuture<R> result = new CompletableFuture<R>();
+        List<T> fullItems = null;
+        List<CompletableFuture<R>> fullFutures = null;
+
+        synchronized (this) {
+            if (items == null) {
+                items = new ArrayList<T>();
+                futures = new ArrayList<CompletableFuture<R>>();
+
+                List<T> batch = items;
+                _timer.schedule(() -> _flush(batch), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+
+            items.add(item);
+            futures.add(result);
+
+            if (items.size() >= maxSize) {
+                fullItems = items;
+                fullFutures = futures;
+                items = null;
+                futures = null;
+            }
+        }
+
+        if (fullItems != null) _handle(fullItems, fullFutures);
+        return result;
+    }
+
+    //***************************************************************************************
+
+    private void _flush(List<T> batch) {
+        List<CompletableFuture<R>> batchFutures;
+
+        synchronized (this) {
+            if (items != batch) return; // Already handled because it is full
+            batchFutures = futures;
+            items = null;
+            futures = null;
+        }
+
+        _handle(batch, batchFutures);
+    }
+
+    private void _handle(List<T> batch, List<CompletableFuture<R>> batchFutures) {
+        try {
+            executor.execute(() -> {
+                try {
+                    List<R> results = handler.handle(batch);
+
+                    if (results==null || results.size()!=batch.size()) {
+                        throw new PhusionException("EP_BATCH", "Batch results do not match the items",
+                                String.format("items=%d, results=%d", batch.size(), results==null ? 0 : results.size()));
+                    }
+
+                    for (int i = 0; i < results.size(); i++) batchFutures.get(i).complete(results.get(i));
+                } catch (Throwable t) {
+                    for (CompletableFuture<R> future : batchFutures) future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            for (CompletableFuture<R> future : batchFutures) future.completeExceptionally(ex);
+        }
+    }
+
+}
@@ -5,7 +5,15 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/**
+ * The method must be: DataObject (or CompletionStage&lt;DataObject&gt;) method(DataObject msg, String integrationId,
+ * String connectionId, Context ctx).
+ *
+ * For batch endpoints: List&lt;DataObject&gt; method(List&lt;DataObject&gt; msgs, String integrationId,
+ * String connectionId, Context ctx), returning one result for each message, in the same order.
+ */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface OutboundEndpoint {
+    boolean batch() default false;
 }
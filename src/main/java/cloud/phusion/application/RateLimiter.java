@@ -0,0 +1,167 @@
+package cloud.phusion.application;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket.
+ *
+ * The whole bucket is one long: the time (in nanoseconds, relative to the creation of the limiter) when the bucket
+ * would be full again, i.e. "theoretical arrival time" of the generic cell rate algorithm. The available tokens are
+ * (burst - (state - now) / interval). Acquiring permits is a compare-and-set on it, without any locks.
+ *
+ * Waiting callers reserve their permits first and then park until the reserved time, so they are served in order.
+ *
+ * It is thread-safe.
+ */
+public final class RateLimiter implements CallLimiter {
+
+    public enum Mode {
+        Block, // Wait until the permits are available
+        Wait, // Wait up to the timeout, or fail
+        Reject // Fail immediately if the permits are not available
+    }
+
+    private final long start = System.nanoTime();
+    private final AtomicLong state = new AtomicLong(0);
+
+    private volatile long interval; // Nanoseconds per permit
+    private volatile long burstTime; // Nanoseconds of the full bucket: burst * interval
+    private volatile double permitsPerSecond;
+    private volatile int burst;
+
+    /**
+     * The bucket holds one second of permits (at least 1).
+     */
+    public RateLimiter(double permitsPerSecond) {
+        this(permitsPerSecond, 0);
+    }
+
+    /**
+     * @param burst max permits that can be acquired at once after idling. 0 indicates one second of permits
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        super();
+        setRate(permitsPerSecond, burst);
+    }
+
+    /**
+     * Change the rate. The permits already reserved are not affected.
+     */
+    public void setRate(double permitsPerSecond, int burst) {
+        if (! (permitsPerSecond > 0)) throw new IllegalArgumentException("Rate must be positive: "+permitsPerSecond);
+        if (burst <= 0) burst = (int) Math.max(1, Math.ceil(permitsPerSecond));
+
+        long newInterval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.interval = newInterval;
+        this.burstTime = newInterval * burst;
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+    }
+
+    @Override
+    public double getRate() {
+        return permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Reject-fast mode.
+     *
+     * @return false if the permit is not available now
+     */
+    public boolean tryAcquire() {
+        return _reserve(1, 0) == 0;
+    }
+
+    /**
+     * Timed-wait mode.
+     *
+     * @return false if the permits can not be available within the timeout, then nothing is acquired
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = _reserve(permits, unit.toNanos(timeout));
+        if (wait < 0) return false;
+
+        _park(wait);
+        return true;
+    }
+
+    /**
+     * Blocking mode.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        _park( _reserve(permits, Long.MAX_VALUE) );
+    }
+
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    @Override
+    public boolean acquire(int permits, Mode mode, long timeout, TimeUnit unit) throws InterruptedException {
+        switch (mode) {
+            case Reject:
+                return _reserve(permits, 0) == 0;
+            case Wait:
+                return tryAcquire(permits, timeout, unit);
+            default:
+                acquire(permits);
+                return true;
+        }
+    }
+
+    /**
+     * Number of permits which can be acquired immediately.
+     */
+    public int getAvailablePermits() {
+        long now = System.nanoTime() - start;
+        long full = state.get();
+        long used = Math.max(0, full - now);
+        return (int) Math.max(0, (burstTime - used) / interval);
+    }
+
+    //***************************************************************************************
+
+    /**
+     * @param maxWait nanoseconds
+     * @return nanoseconds to wait before the reserved permits are available, or -1 if it would exceed maxWait
+     */
+    private long _reserve(int permits, long maxWait) {
+        if (permits < 1) permits = 1;
+
+        while (true) {
+            long now = System.nanoTime() - start;
+            long current = state.get();
+            long step = interval;
+            long cost = step * permits;
+
+            // The bucket can not be fuller than "burst"
+            long base = Math.max(current, now);
+            long next = base + cost;
+            long wait = next - now - burstTime;
+            if (wait < 0) wait = 0;
+
+            if (wait > maxWait) return -1;
+            if (state.compareAndSet(current, next)) return wait;
+        }
+    }
+
+    private static void _park(long nanos) throws InterruptedException {
+        if (nanos <= 0) return;
+
+        long deadline = System.nanoTime() + nanos;
+        while (true) {
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return;
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package cloud.phusion.application;
+
+import cloud.phusion.storage.KVStorage;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rate limiters keyed by application, endpoint and connection, so that all integrations calling the same
+ * endpoint through the same connection share one limit.
+ *
+ * It is thread-safe.
+ */
+public class RateLimiterRegistry {
+
+    private static final RateLimiterRegistry _default = new RateLimiterRegistry();
+
+    // applicationId + endpointId + connectionId -> Limiter
+    private final ConcurrentHashMap<String, RateLimiter> limiters = new ConcurrentHashMap<String, RateLimiter>();
+    private final ConcurrentHashMap<String, DistributedRateLimiter> distributedLimiters = new ConcurrentHashMap<String, DistributedRateLimiter>();
+
+    /**
+     * The registry shared by all applications in the JVM.
+     */
+    public static RateLimiterRegistry getDefault() {
+        return _default;
+    }
+
+    /**
+     * Get the limiter, create it if it does not exist, or update its rate if it is different.
+     *
+     * @param burst 0 indicates one second of permits
+     */
+    public RateLimiter getLimiter(String applicationId, String endpointId, String connectionId, double permitsPerSecond, int burst) {
+        String key = _key(applicationId, endpointId, connectionId);
+
+        RateLimiter result = limiters.get(key);
+        if (result == null) {
+            result = limiters.computeIfAbsent(key, k -> new RateLimiter(permitsPerSecond, burst));
+        }
+
+        if (result.getRate()!=permitsPerSecond || (burst>0 && result.getBurst()!=burst)) result.setRate(permitsPerSecond, burst);
+        return result;
+    }
+
+    /**
+     * @return null if the limiter does not exist
+     */
+    public RateLimiter getLimiter(String applicationId, String endpointId, String connectionId) {
+        return limiters.get(_key(applicationId, endpointId, connectionId));
+    }
+
+    /**
+     * Get the cluster-wide limiter, create it if it does not exist, or update its rate if it is different.
+     * The limiters with the same key on all engines share the limit through the KV storage.
+     *
+     * @param nodeId ID of the engine
+     * @param burst for the local fallback limiter. 0 indicates one second of permits
+     */
+    public DistributedRateLimiter getDistributedLimiter(String applicationId, String endpointId, String connectionId,
+                                                        KVStorage storage, String nodeId, double permitsPerSecond, int burst) {
+        String key = _key(applicationId, endpointId, connectionId);
+
+        DistributedRateLimiter result = distributedLimiters.get(key);
+        if (result == null) {
+            result = distributedLimiters.computeIfAbsent(key,
+                    k -> new DistributedRateLimiter(storage, k, nodeId, permitsPerSecond, burst));
+        }
+
+        if (result.getRate() != permitsPerSecond) result.setRate(permitsPerSecond, burst);
+        return result;
+    }
+
+    public void removeLimiter(String applicationId, String endpointId, String connectionId) {
+        String key = _key(applicationId, endpointId, connectionId);
+        limiters.remove(key);
+        distributedLimiters.remove(key);
+    }
+
+    private static String _key(String applicationId, String endpointId, String connectionId) {
+        return (applicationId==null ? "" : applicationId) + "/" + endpointId + "/" + (connectionId==null ? "" : connectionId);
+    }
+
+}
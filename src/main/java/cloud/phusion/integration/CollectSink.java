@@ -0,0 +1,39 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.DataObject;
+
+/**
+ * Destination of the item results of a ForEach loop, so that they are not buffered into one JSON array.
+ *
+ * The executor calls write() for each item result, one at a time and in the order of the items if the loop is
+ * ordered, then close() after the last item, or abort() if the loop fails.
+ *
+ * write() may block (e.g. when the storage is slow), which stops the ForEach step from starting new items.
+ */
+public interface CollectSink {
+
+    /**
+     * Create the sink for a Collect step, according to StepCollect.getSink().
+     */
+    interface Factory {
+        CollectSink createSink(StepCollect step, Transaction trx) throws Exception;
+    }
+
+    /**
+     * @param item JSONObject, JSONArray, String or null, the output message of the item
+     */
+    void write(Object item) throws Exception;
+
+    /**
+     * Flush all the item results.
+     *
+     * @return the output message of the Collect step, e.g. a summary of the results
+     */
+    DataObject close() throws Exception;
+
+    /**
+     * Discard the item results not flushed yet. It must not throw exceptions.
+     */
+    void abort(Exception reason);
+
+}
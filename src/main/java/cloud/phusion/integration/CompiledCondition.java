@@ -0,0 +1,780 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Start condition of an integration, compiled into a tree of Java predicates, so that it is evaluated against
+ * the message and the integration config without a script engine or re-parsing.
+ *
+ * Condition, as a String expression, or a JSON object (JSONObject or its JSON string):
+ * {
+ *   "expression": String,
+ *   "vars": { // Optional
+ *     "name": String // Path of the variable, "msg.xxx.xxx" or "config.xxx[0].xxx"
+ *   }
+ * }
+ *
+ * Expression, with a JavaScript-like syntax but its own semantics:
+ * - Operators, from low to high precedence: ||, &&, !, == != === !== < <= > >= in, and parentheses.
+ * - Values: numbers, 'string' or "string", true, false, null, arrays like [1, 'a'] (right side of "in"),
+ *   variables, and paths starting with "msg" or "config", e.g. msg.order.items[0].sku, config['key'].
+ * - Missing values are null. A value alone is true unless it is null, false, 0 or empty string.
+ * - == and !=: if either side is a number, both are compared as numbers, and numeric strings are converted
+ *   ('1' == 1, but '' == 0 is false). Otherwise by equals(), so null equals only null, and true != 1.
+ * - === and !==: numbers by value, other values by equals(), a number never equals a non-number.
+ * - < <= > >=: numbers (numeric strings converted), strings in lexicographic order, or false < true. Other
+ *   values, including null, are not comparable and the result is false (null >= 0 is false).
+ * - in: whether the array on the right side has an item == the left side ('a' in ['a', 'b'] is true). It is
+ *   false if the right side is not an array.
+ *
+ * Example: msg.type == 'order' && (amount > config.threshold || !msg.paid)
+ *
+ * It is immutable and thread-safe.
+ */
+public final class CompiledCondition {
+
+    public static final CompiledCondition ALWAYS_TRUE = new CompiledCondition(null, new _Const(Boolean.TRUE));
+
+    private final String source;
+    private final _Node root;
+
+    private CompiledCondition(String source, _Node root) {
+        this.source = source;
+        this.root = root;
+    }
+
+    /**
+     * @param condition String or JSONObject, see the class description. null indicates always true
+     * @throws PhusionException with code "COND_INVALID" if the condition can not be compiled
+     */
+    public static CompiledCondition compile(Object condition) throws PhusionException {
+        if (condition == null) return ALWAYS_TRUE;
+
+        String expression;
+        Map<String, Object> vars = null;
+
+        if (condition instanceof Map) {
+            Map<?,?> obj = (Map<?,?>) condition;
+            expression = obj.get("expression")==null ? null : obj.get("expression").toString();
+            vars = _toVars(obj.get("vars"));
+        }
+        else {
+            String str = condition.toString().trim();
+            if (str.startsWith("{")) {
+                JSONObject obj;
+                try {
+                    obj = JSON.parseObject(str);
+                } catch (Exception ex) {
+                    throw new PhusionException("COND_INVALID", "Failed to parse condition", "condition="+str, ex);
+                }
+                return compile(obj);
+            }
+            expression = str;
+        }
+
+        if (expression==null || expression.trim().length()==0) return ALWAYS_TRUE;
+
+        _Parser parser = new _Parser(expression, vars);
+        _Node root = parser.parse();
+        return new CompiledCondition(expression, root);
+    }
+
+    /**
+     * @param msg can be null
+     * @param config can be null
+     */
+    public boolean test(DataObject msg, DataObject config) {
+        return _isTrue( root.eval(_toTree(msg), _toTree(config)) );
+    }
+
+    /**
+     * Evaluate against the JSON trees directly (JSONObject, JSONArray, or null).
+     */
+    public boolean test(Object msg, Object config) {
+        return _isTrue( root.eval(msg, config) );
+    }
+
+    /**
+     * Replace the config values referenced in the condition with the constants from the config, and simplify it.
+     * The engine should keep the result per integration and bind again when the integration config is updated.
+     */
+    public CompiledCondition bind(DataObject config) {
+        _Node bound = root.bind(_toTree(config));
+        return bound==root ? this : new CompiledCondition(source, bound);
+    }
+
+    /**
+     * Whether the condition is always true (e.g. no condition).
+     */
+    public boolean isAlwaysTrue() {
+        return root instanceof _Const && _isTrue(((_Const) root).value);
+    }
+
+    /**
+     * Whether the condition is always false, e.g. after binding the config.
+     */
+    public boolean isAlwaysFalse() {
+        return root instanceof _Const && ! _isTrue(((_Const) root).value);
+    }
+
+    /**
+     * Necessary conditions on the message for the condition to be true, used by RoutingIndex.
+     *
+     * Each guard is on one message path: an equality (path == constant, path in [constants], or an "or" of them),
+     * or a numeric range (path < constant, etc., merged for the same path). A message that fails any guard
+     * never matches the condition. Empty list if there's no such guard.
+     */
+    List<ConditionGuard> getGuards() {
+        List<ConditionGuard> result = new ArrayList<ConditionGuard>();
+
+        _Node[] conjuncts = (root instanceof _Logical && ((_Logical) root).and) ? ((_Logical) root).operands : new _Node[]{root};
+        Map<String, ConditionGuard> ranges = new LinkedHashMap<String, ConditionGuard>();
+
+        for (_Node node : conjuncts) {
+            ConditionGuard guard = _toGuard(node);
+            if (guard == null) continue;
+
+            if (guard.isEquality()) result.add(guard);
+            else {
+                ConditionGuard existing = ranges.get(guard.getPathKey());
+                ranges.put(guard.getPathKey(), existing==null ? guard : existing.intersect(guard));
+            }
+        }
+
+        result.addAll(ranges.values());
+        return result;
+    }
+
+    private static ConditionGuard _toGuard(_Node node) {
+        if (node instanceof _Logical && ! ((_Logical) node).and) {
+            // Equalities on the same path, joined by "or"
+            ConditionGuard result = null;
+            for (_Node operand : ((_Logical) node).operands) {
+                ConditionGuard guard = _toGuard(operand);
+                if (guard==null || ! guard.isEquality()) return null;
+                if (result == null) result = guard;
+                else {
+                    result = result.union(guard);
+                    if (result == null) return null;
+                }
+            }
+            return result;
+        }
+
+        if (! (node instanceof _Comparison)) return null;
+
+        _Comparison c = (_Comparison) node;
+        String op = c.op;
+        _Node ref = c.left;
+        _Node constant = c.right;
+
+        if (! (ref instanceof _Ref && constant instanceof _Const)) {
+            if (op.equals("in")) return null;
+
+            // Flip "constant OP path"
+            ref = c.right;
+            constant = c.left;
+            switch (op) {
+                case "<": op = ">"; break;
+                case "<=": op = ">="; break;
+                case ">": op = "<"; break;
+                case ">=": op = "<="; break;
+            }
+        }
+
+        if (! (ref instanceof _Ref && constant instanceof _Const) || ((_Ref) ref).inConfig) return null;
+
+        Object[] path = ((_Ref) ref).keys;
+        Object value = ((_Const) constant).value;
+
+        switch (op) {
+            case "==":
+            case "===":
+                return ConditionGuard.equality(path, Collections.singletonList(value));
+            case "in":
+                return value instanceof List ? ConditionGuard.equality(path, (List<?>) value) : null;
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                BigDecimal number = value instanceof Number ? _toDecimal(value) : null;
+                if (number == null) return null;
+                double bound = number.doubleValue();
+
+                // The index compares the doubles rounded from the bound and the value. Rounding keeps the order
+                // but not the strictness (e.g. 2^53+1 > 2^53, but both round to 2^53), so the bound is inclusive
+                if (op.charAt(0) == '<') return ConditionGuard.range(path, Double.NEGATIVE_INFINITY, false, bound, true);
+                return ConditionGuard.range(path, bound, true, Double.POSITIVE_INFINITY, false);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The source expression.
+     */
+    @Override
+    public String toString() {
+        return source==null ? "true" : source;
+    }
+
+    //***************************************************************************************
+
+    private static Object _toTree(DataObject data) {
+        if (data == null) return null;
+
+        Object result = data.getJSONObject();
+        if (result == null) result = data.getJSONArray();
+        return result;
+    }
+
+    private static Map<String, Object> _toVars(Object vars) throws PhusionException {
+        if (vars == null) return null;
+        if (vars instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) vars;
+            return result;
+        }
+
+        try {
+            return JSON.parseObject(vars.toString());
+        } catch (Exception ex) {
+            throw new PhusionException("COND_INVALID", "Failed to parse condition vars", "vars="+vars, ex);
+        }
+    }
+
+    static boolean _isTrue(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        if (value instanceof String) return ((String) value).length() > 0;
+        return true;
+    }
+
+    /**
+     * Loose equality: numbers by value (numeric strings are converted), others by equals().
+     */
+    static boolean _equals(Object a, Object b) {
+        if (a == null || b == null) return a == b;
+        if (a instanceof Number || b instanceof Number) {
+            Integer c = _compareNumbers(a, b);
+            return c!=null && c==0;
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Strict equality: same kind of value.
+     */
+    static boolean _strictEquals(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) return _equals(a, b);
+        if (a instanceof Number || b instanceof Number) return false;
+        return a==null ? b==null : a.equals(b);
+    }
+
+    /**
+     * @return null if not comparable
+     */
+    static Integer _compare(Object a, Object b) {
+        if (a == null || b == null) return null;
+
+        if (a instanceof Number || b instanceof Number) return _compareNumbers(a, b);
+        if (a instanceof String && b instanceof String) return ((String) a).compareTo((String) b);
+        if (a instanceof Boolean && b instanceof Boolean) return ((Boolean) a).compareTo((Boolean) b);
+        return null;
+    }
+
+    private static Integer _compareNumbers(Object a, Object b) {
+        // Fast paths for the common cases, without BigDecimal
+        if (_isIntegral(a) && _isIntegral(b)) return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        if ((a instanceof Double || a instanceof Float || _isIntegral(a)) && (b instanceof Double || b instanceof Float || _isIntegral(b))) {
+            double x = ((Number) a).doubleValue();
+            double y = ((Number) b).doubleValue();
+            if (Double.isNaN(x) || Double.isNaN(y)) return null;
+            return x<y ? -1 : (x>y ? 1 : 0);
+        }
+
+        BigDecimal x = _toDecimal(a);
+        BigDecimal y = _toDecimal(b);
+        return (x==null || y==null) ? null : x.compareTo(y);
+    }
+
+    private static boolean _isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    static BigDecimal _toDecimal(Object value) {
+        if (value instanceof BigDecimal) return (BigDecimal) value;
+        if (value instanceof BigInteger) return new BigDecimal((BigInteger) value);
+        if (_isIntegral(value)) return BigDecimal.valueOf(((Number) value).longValue());
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return (Double.isNaN(d) || Double.isInfinite(d)) ? null : BigDecimal.valueOf(d);
+        }
+        if (value instanceof String) {
+            try {
+                return new BigDecimal(((String) value).trim());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    //***************************************************************************************
+    // Predicate tree
+
+    private interface _Node {
+        Object eval(Object msg, Object config);
+
+        /**
+         * @return this if nothing is changed
+         */
+        _Node bind(Object config);
+    }
+
+    private static class _Const implements _Node {
+        final Object value;
+
+        _Const(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object eval(Object msg, Object config) {
+            return value;
+        }
+
+        @Override
+        public _Node bind(Object config) {
+            return this;
+        }
+    }
+
+    /**
+     * Value in the message or config, by the keys (String) and indexes (Integer).
+     */
+    private static class _Ref implements _Node {
+        final boolean inConfig;
+        final Object[] keys;
+
+        _Ref(boolean inConfig, Object[] keys) {
+            this.inConfig = inConfig;
+            this.keys = keys;
+        }
+
+        @Override
+        public Object eval(Object msg, Object config) {
+            return _walk(inConfig ? config : msg);
+        }
+
+        @Override
+        public _Node bind(Object config) {
+            return inConfig ? new _Const(_walk(config)) : this;
+        }
+
+        Object _walk(Object current) {
+            return walk(current, keys);
+        }
+    }
+
+    /**
+     * Value in the JSON tree, by the keys (String) and indexes (Integer). null if missing.
+     */
+    static Object walk(Object current, Object[] keys) {
+        for (Object key : keys) {
+            if (current == null) return null;
+
+            if (current instanceof Map) {
+                current = ((Map<?,?>) current).get(key instanceof Integer ? key.toString() : key);
+            }
+            else if (current instanceof List) {
+                if (! (key instanceof Integer)) return null;
+                List<?> list = (List<?>) current;
+                int index = (Integer) key;
+                current = (index>=0 && index<list.size()) ? list.get(index) : null;
+            }
+            else return null;
+        }
+        return current;
+    }
+
+    private static class _Not implements _Node {
+        final _Node operand;
+
+        _Not(_Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Object eval(Object msg, Object config) {
+            return ! _isTrue(operand.eval(msg, config));
+        }
+
+        @Override
+        public _Node bind(Object config) {
+            _Node bound = operand.bind(config);
+            if (bound instanceof _Const) return new _Const(! _isTrue(((_Const) bound).value));
+            return bound==operand ? this : new _Not(bound);
+        }
+    }
+
+    /**
+     * && and ||, evaluated to boolean.
+     */
+    private static class _Logical implements _Node {
+        final boolean and;
+        final _Node[] operands;
+
+        _Logical(boolean and, _Node[] operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        @Override
+        public Object eval(Object msg, Object config) {
+            for (_Node operand : operands) {
+                boolean value = _isTrue(operand.eval(msg, config));
+                if (value != and) return value;
+            }
+            return and;
+        }
+
+        @Override
+        public _Node bind(Object config) {
+            List<_Node> result = new ArrayList<_Node>(operands.length);
+            boolean changed = false;
+
+            for (_Node operand : operands) {
+                _Node bound = operand.bind(config);
+                if (bound != operand) changed = true;
+
+                if (bound instanceof _Const) {
+                    // Short-circuit, or drop the operand which does not matter
+                    if (_isTrue(((_Const) bound).value) != and) return new _Const(! and);
+                    changed = true;
+                }
+                else result.add(bound);
+            }
+
+            if (! changed) return this;
+            if (result.size() == 0) return new _Const(and);
+            return new _Logical(and, result.toArray(new _Node[0]));
+        }
+    }
+
+    private static class _Comparison implements _Node {
+        final String op;
+        final _Node left;
+        final _Node right;
+
+        _Comparison(String op, _Node left, _Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Object eval(Object msg, Object config) {
+            return _apply(left.eval(msg, config), right.eval(msg, config));
+        }
+
+        @Override
+        public _Node bind(Object config) {
+            _Node l = left.bind(config);
+            _Node r = right.bind(config);
+            if (l instanceof _Const && r instanceof _Const) return new _Const(_apply(((_Const) l).value, ((_Const) r).value));
+            return (l==left && r==right) ? this : new _Comparison(op, l, r);
+        }
+
+        boolean _apply(Object a, Object b) {
+            switch (op) {
+                case "==": return _equals(a, b);
+                case "!=": return ! _equals(a, b);
+                case "===": return _strictEquals(a, b);
+                case "!==": return ! _strictEquals(a, b);
+                case "in":
+                    if (b instanceof List) {
+                        for (Object item : (List<?>) b) {
+                            if (_equals(a, item)) return true;
+                        }
+                    }
+                    return false;
+                default:
+                    Integer c = _compare(a, b);
+                    if (c == null) return false;
+                    switch (op) {
+                        case "<": return c < 0;
+                        case "<=": return c <= 0;
+                        case ">": return c > 0;
+                        default: return c >= 0;
+                    }
+            }
+        }
+    }
+
+    //***************************************************************************************
+    // Recursive descent parser
+
+    private static class _Parser {
+        final String text;
+        final Map<String, Object> vars;
+        int pos = 0;
+
+        _Parser(String text, Map<String, Object> vars) {
+            this.text = text;
+            this.vars = vars;
+        }
+
+        _Node parse() throws PhusionException {
+            _Node result = _or();
+            _skipSpaces();
+            if (pos < text.length()) throw _error("Unexpected character");
+            return result;
+        }
+
+        _Node _or() throws PhusionException {
+            List<_Node> operands = new ArrayList<_Node>();
+            operands.add(_and());
+            while (_accept("||")) operands.add(_and());
+            return operands.size()==1 ? operands.get(0) : new _Logical(false, operands.toArray(new _Node[0]));
+        }
+
+        _Node _and() throws PhusionException {
+            List<_Node> operands = new ArrayList<_Node>();
+            operands.add(_not());
+            while (_accept("&&")) operands.add(_not());
+            return operands.size()==1 ? operands.get(0) : new _Logical(true, operands.toArray(new _Node[0]));
+        }
+
+        _Node _not() throws PhusionException {
+            _skipSpaces();
+            if (pos<text.length() && text.charAt(pos)=='!' && ! text.startsWith("!=", pos)) {
+                pos++;
+                return new _Not(_not());
+            }
+            return _comparison();
+        }
+
+        _Node _comparison() throws PhusionException {
+            _Node left = _value();
+
+            String[] ops = {"===", "!==", "==", "!=", "<=", ">=", "<", ">"};
+            for (String op : ops) {
+                if (_accept(op)) return new _Comparison(op, left, _value());
+            }
+            if (_acceptWord("in")) return new _Comparison("in", left, _value());
+
+            return left;
+        }
+
+        _Node _value() throws PhusionException {
+            _skipSpaces();
+            if (pos >= text.length()) throw _error("Unexpected end");
+
+            char c = text.charAt(pos);
+
+            if (c == '(') {
+                pos++;
+                _Node result = _or();
+                if (! _accept(")")) throw _error("Missing )");
+                return result;
+            }
+            if (c == '[') return new _Const(_array());
+            if (c=='\'' || c=='"') return new _Const(_string());
+            if (c=='-' || (c>='0' && c<='9')) return new _Const(_number());
+            if (Character.isJavaIdentifierStart(c)) return _reference();
+
+            throw _error("Unexpected character");
+        }
+
+        List<Object> _array() throws PhusionException {
+            pos++; // [
+            List<Object> result = new ArrayList<Object>();
+
+            if (_accept("]")) return result;
+            do {
+                _Node item = _value();
+                if (! (item instanceof _Const)) throw _error("Array items must be constants");
+                result.add(((_Const) item).value);
+            } while (_accept(","));
+
+            if (! _accept("]")) throw _error("Missing ]");
+            return result;
+        }
+
+        String _string() throws PhusionException {
+            char quote = text.charAt(pos++);
+            StringBuilder result = new StringBuilder();
+
+            while (pos < text.length()) {
+                char c = text.charAt(pos++);
+                if (c == quote) return result.toString();
+                if (c == '\\' && pos < text.length()) {
+                    char e = text.charAt(pos++);
+                    switch (e) {
+                        case 'n': result.append('\n'); break;
+                        case 't': result.append('\t'); break;
+                        case 'r': result.append('\r'); break;
+                        case 'u':
+                            if (pos+4 > text.length()) throw _error("Invalid escape");
+                            result.append((char) Integer.parseInt(text.substring(pos, pos+4), 16));
+                            pos += 4;
+                            break;
+                        default: result.append(e);
+                    }
+                }
+                else result.append(c);
+            }
+
+            throw _error("Missing "+quote);
+        }
+
+        Number _number() throws PhusionException {
+            int start = pos;
+            if (text.charAt(pos) == '-') pos++;
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if ((c>='0' && c<='9') || c=='.' || c=='e' || c=='E' || ((c=='+' || c=='-') && (text.charAt(pos-1)=='e' || text.charAt(pos-1)=='E'))) pos++;
+                else break;
+            }
+
+            String str = text.substring(start, pos);
+            try {
+                if (str.indexOf('.')<0 && str.indexOf('e')<0 && str.indexOf('E')<0) {
+                    long value = Long.parseLong(str);
+                    if (value>=Integer.MIN_VALUE && value<=Integer.MAX_VALUE) return (int) value;
+                    return value;
+                }
+                return new BigDecimal(str);
+            } catch (NumberFormatException ex) {
+                pos = start;
+                throw _error("Invalid number");
+            }
+        }
+
+        _Node _reference() throws PhusionException {
+            int start = pos;
+            String name = _identifier();
+
+            switch (name) {
+                case "true": return new _Const(Boolean.TRUE);
+                case "false": return new _Const(Boolean.FALSE);
+                case "null": return new _Const(null);
+            }
+
+            List<Object> keys = new ArrayList<Object>();
+            _Ref base;
+
+            if (vars != null && vars.containsKey(name)) {
+                base = _parsePath(String.valueOf(vars.get(name)), name);
+            }
+            else if (name.equals("msg") || name.equals("config")) {
+                base = new _Ref(name.equals("config"), new Object[0]);
+            }
+            else {
+                pos = start;
+                throw _error("Unknown variable "+name);
+            }
+
+            _suffix(keys);
+
+            if (keys.size() == 0) return base;
+            Object[] all = new Object[base.keys.length + keys.size()];
+            System.arraycopy(base.keys, 0, all, 0, base.keys.length);
+            for (int i = 0; i < keys.size(); i++) all[base.keys.length+i] = keys.get(i);
+            return new _Ref(base.inConfig, all);
+        }
+
+        /**
+         * Parse ".key", "[0]" and "['key']" after a reference.
+         */
+        void _suffix(List<Object> keys) throws PhusionException {
+            while (pos < text.length()) {
+                char c = text.charAt(pos);
+                if (c == '.') {
+                    pos++;
+                    keys.add(_identifier());
+                }
+                else if (c == '[') {
+                    pos++;
+                    _skipSpaces();
+                    if (pos >= text.length()) throw _error("Unexpected end");
+
+                    char k = text.charAt(pos);
+                    if (k=='\'' || k=='"') keys.add(_string());
+                    else {
+                        Number index = _number();
+                        if (! (index instanceof Integer)) throw _error("Invalid index");
+                        keys.add(index);
+                    }
+                    if (! _accept("]")) throw _error("Missing ]");
+                }
+                else break;
+            }
+        }
+
+        _Ref _parsePath(String path, String var) throws PhusionException {
+            if (path.startsWith("$.")) path = path.substring(2);
+
+            _Parser parser = new _Parser(path, null);
+            _Node node;
+            try {
+                node = parser._reference();
+                if (parser.pos < path.length()) throw parser._error("Unexpected character");
+            } catch (PhusionException ex) {
+                throw new PhusionException("COND_INVALID", "Invalid path of variable", "var="+var+", path="+path, ex);
+            }
+            if (! (node instanceof _Ref)) throw new PhusionException("COND_INVALID", "Invalid path of variable", "var="+var+", path="+path);
+            return (_Ref) node;
+        }
+
+        String _identifier() throws PhusionException {
+            int start = pos;
+            if (pos>=text.length() || ! Character.isJavaIdentifierStart(text.charAt(pos))) throw _error("Identifier expected");
+            pos++;
+            while (pos<text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) pos++;
+            return text.substring(start, pos);
+        }
+
+        boolean _accept(String token) {
+            _skipSpaces();
+            if (text.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        boolean _acceptWord(String word) {
+            _skipSpaces();
+            int end = pos + word.length();
+            if (text.startsWith(word, pos) && (end>=text.length() || ! Character.isJavaIdentifierPart(text.charAt(end)))) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        void _skipSpaces() {
+            while (pos<text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        PhusionException _error(String msg) {
+            return new PhusionException("COND_INVALID", "Failed to compile condition",
+                    String.format("error=%s, position=%d, expression=%s", msg, pos, text));
+        }
+    }
+
+}
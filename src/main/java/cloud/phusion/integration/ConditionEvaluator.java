@@ -0,0 +1,124 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Batch evaluation of conditions against one message, usable without an engine.
+ *
+ * evaluate(): the message and config are parsed once for all conditions, identical conditions are evaluated once,
+ * and the compiled conditions are cached across calls. Its results follow the semantics of CompiledCondition, which
+ * may differ from the engine's evaluateCondition(), so an engine uses it in evaluateConditions() only if it opts in.
+ *
+ * evaluateEach(): identical conditions are evaluated once, all by the given evaluator. It is the default of
+ * Engine.evaluateConditions().
+ *
+ * It is thread-safe.
+ */
+public final class ConditionEvaluator {
+
+    /**
+     * Evaluates the conditions which are not in the syntax of CompiledCondition (all of them in evaluateEach()),
+     * e.g. by a script engine.
+     */
+    public interface Fallback {
+        boolean evaluate(String condition, DataObject msg, DataObject config) throws Exception;
+    }
+
+    // Condition -> CompiledCondition, or _UNSUPPORTED. Stop caching when too many distinct conditions are used
+    private static final int _MAX_CACHED_CONDITIONS = 4096;
+    private static final Object _UNSUPPORTED = new Object();
+    private static final ConcurrentHashMap<String, Object> _compiledConditions = new ConcurrentHashMap<String, Object>();
+
+    private ConditionEvaluator() {
+        super();
+    }
+
+    /**
+     * @throws PhusionException with code "COND_INVALID" if some condition is not in the syntax of CompiledCondition
+     */
+    public static boolean[] evaluate(List<String> conditions, DataObject msg, DataObject config) throws Exception {
+        return evaluate(conditions, msg, config, null);
+    }
+
+    /**
+     * @param fallback for the conditions not in the syntax of CompiledCondition. If null, such conditions fail
+     * @return results in the order of the conditions
+     */
+    public static boolean[] evaluate(List<String> conditions, DataObject msg, DataObject config, Fallback fallback) throws Exception {
+        return _evaluate(conditions, msg, config, fallback, true);
+    }
+
+    /**
+     * Evaluate the conditions without CompiledCondition, identical conditions are evaluated once.
+     *
+     * @return results in the order of the conditions
+     */
+    public static boolean[] evaluateEach(List<String> conditions, DataObject msg, DataObject config, Fallback evaluator) throws Exception {
+        return _evaluate(conditions, msg, config, evaluator, false);
+    }
+
+    /**
+     * Compile the condition, or get it from the cache.
+     *
+     * @return null if the condition is not in the syntax of CompiledCondition
+     */
+    public static CompiledCondition compile(String condition) {
+        if (condition == null) return CompiledCondition.ALWAYS_TRUE;
+
+        Object result = _compiledConditions.get(condition);
+        if (result == null) {
+            try {
+                result = CompiledCondition.compile(condition);
+            } catch (PhusionException ex) {
+                result = _UNSUPPORTED;
+            }
+            if (_compiledConditions.size() < _MAX_CACHED_CONDITIONS) _compiledConditions.put(condition, result);
+        }
+
+        return result==_UNSUPPORTED ? null : (CompiledCondition) result;
+    }
+
+    //***************************************************************************************
+
+    private static boolean[] _evaluate(List<String> conditions, DataObject msg, DataObject config, Fallback fallback,
+                                       boolean compiling) throws Exception {
+        boolean[] result = new boolean[conditions.size()];
+
+        Object msgTree = compiling ? _toTree(msg) : null;
+        Object configTree = compiling ? _toTree(config) : null;
+        Map<String, Boolean> evaluated = new HashMap<String, Boolean>();
+
+        for (int i = 0; i < result.length; i++) {
+            String condition = conditions.get(i);
+            Boolean value = evaluated.get(condition);
+
+            if (value == null) {
+                CompiledCondition compiled = compiling ? compile(condition) : null;
+                if (compiled != null) value = compiled.test(msgTree, configTree);
+                else if (fallback != null) value = fallback.evaluate(condition, msg, config);
+                else throw new PhusionException("COND_INVALID", "Unsupported condition", "condition="+condition);
+
+                evaluated.put(condition, value);
+            }
+
+            result[i] = value;
+        }
+
+        return result;
+    }
+
+    private static Object _toTree(DataObject data) {
+        if (data == null) return null;
+
+        Object result = data.getJSONObject();
+        if (result == null) result = data.getJSONArray();
+        return result;
+    }
+
+}
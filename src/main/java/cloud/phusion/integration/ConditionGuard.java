@@ -0,0 +1,139 @@
+package cloud.phusion.integration;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Necessary condition on one message path, extracted from a CompiledCondition: the value at the path is one of
+ * the constants (equality), or a number in the interval (range).
+ *
+ * It is immutable.
+ */
+final class ConditionGuard {
+
+    private final Object[] path;
+    private final String pathKey;
+    private final Set<String> values; // Normalized keys of the constants, null for range
+
+    private final double low;
+    private final boolean lowInclusive;
+    private final double high;
+    private final boolean highInclusive;
+
+    private ConditionGuard(Object[] path, Set<String> values, double low, boolean lowInclusive, double high, boolean highInclusive) {
+        this.path = path;
+        this.pathKey = Arrays.toString(path);
+        this.values = values;
+        this.low = low;
+        this.lowInclusive = lowInclusive;
+        this.high = high;
+        this.highInclusive = highInclusive;
+    }
+
+    static ConditionGuard equality(Object[] path, List<?> constants) {
+        Set<String> values = new LinkedHashSet<String>();
+        for (Object constant : constants) values.add(normalize(constant));
+        return new ConditionGuard(path, values, 0, false, 0, false);
+    }
+
+    static ConditionGuard range(Object[] path, double low, boolean lowInclusive, double high, boolean highInclusive) {
+        return new ConditionGuard(path, null, low, lowInclusive, high, highInclusive);
+    }
+
+    /**
+     * Key of a value for hashing, consistent with the loose equality of CompiledCondition:
+     * numbers and numeric strings by value, others by type and string.
+     */
+    static String normalize(Object value) {
+        if (value == null) return "null:";
+        if (value instanceof Boolean) return "b:" + value;
+
+        if (value instanceof Number || value instanceof String) {
+            BigDecimal number = CompiledCondition._toDecimal(value);
+            if (number != null) return "n:" + (number.signum()==0 ? "0" : number.stripTrailingZeros().toPlainString());
+        }
+
+        if (value instanceof String) return "s:" + value;
+        return "o:" + value;
+    }
+
+    boolean isEquality() {
+        return values != null;
+    }
+
+    Object[] getPath() {
+        return path;
+    }
+
+    String getPathKey() {
+        return pathKey;
+    }
+
+    Set<String> getValues() {
+        return values;
+    }
+
+    double getLow() {
+        return low;
+    }
+
+    double getHigh() {
+        return high;
+    }
+
+    /**
+     * Whether no value can hold, e.g. a range with low > high.
+     */
+    boolean isEmpty() {
+        if (values != null) return values.size() == 0;
+        return low > high || (low == high && ! (lowInclusive && highInclusive));
+    }
+
+    boolean contains(double value) {
+        if (value < low || (value == low && ! lowInclusive)) return false;
+        if (value > high || (value == high && ! highInclusive)) return false;
+        return true;
+    }
+
+    /**
+     * Both ranges on the same path must hold.
+     */
+    ConditionGuard intersect(ConditionGuard other) {
+        double l = low, h = high;
+        boolean li = lowInclusive, hi = highInclusive;
+
+        if (other.low > l || (other.low == l && ! other.lowInclusive)) {
+            l = other.low;
+            li = other.lowInclusive;
+        }
+        if (other.high < h || (other.high == h && ! other.highInclusive)) {
+            h = other.high;
+            hi = other.highInclusive;
+        }
+        return new ConditionGuard(path, null, l, li, h, hi);
+    }
+
+    /**
+     * Either equality holds.
+     *
+     * @return null if the guards are on different paths
+     */
+    ConditionGuard union(ConditionGuard other) {
+        if (! pathKey.equals(other.pathKey)) return null;
+
+        Set<String> all = new LinkedHashSet<String>(values);
+        all.addAll(other.values);
+        return new ConditionGuard(path, all, 0, false, 0, false);
+    }
+
+    @Override
+    public String toString() {
+        if (values != null) return pathKey + " in " + new ArrayList<String>(values);
+        return pathKey + " in " + (lowInclusive ? "[" : "(") + low + "," + high + (highInclusive ? "]" : ")");
+    }
+
+}
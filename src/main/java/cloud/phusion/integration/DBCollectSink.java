@@ -0,0 +1,82 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import cloud.phusion.storage.DBStorage;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collect sink which inserts the item results into a table, in batches.
+ *
+ * Each item result must be a JSON object, the values of the fields go into the columns of the same names.
+ * The batches inserted before a failure are kept.
+ *
+ * It is not thread-safe.
+ */
+public class DBCollectSink implements CollectSink {
+
+    private final DBStorage storage;
+    private final String table;
+    private final String[] fields;
+    private final String fieldList;
+    private final int batchSize;
+    private final Context ctx;
+
+    private List<Object> params;
+    private int rowsInBatch = 0;
+    private long count = 0;
+
+    public DBCollectSink(DBStorage storage, String table, String[] fields, int batchSize, Context ctx) {
+        super();
+
+        this.storage = storage;
+        this.table = table;
+        this.fields = fields;
+        this.fieldList = String.join(",", fields);
+        this.batchSize = batchSize<1 ? 1 : batchSize;
+        this.ctx = ctx;
+        this.params = new ArrayList<Object>(this.batchSize * fields.length);
+    }
+
+    @Override
+    public void write(Object item) throws Exception {
+        if (! (item instanceof Map)) throw new PhusionException("WF_SINK", "Item result is not a JSON object",
+                "table="+table+", item="+count);
+
+        Map<?,?> row = (Map<?,?>) item;
+        for (String field : fields) params.add(row.get(field));
+        rowsInBatch++;
+        count++;
+
+        if (rowsInBatch >= batchSize) _flush();
+    }
+
+    @Override
+    public DataObject close() throws Exception {
+        if (rowsInBatch > 0) _flush();
+
+        JSONObject result = new JSONObject();
+        result.put("table", table);
+        result.put("count", count);
+        return new DataObject(result);
+    }
+
+    @Override
+    public void abort(Exception reason) {
+        params.clear();
+        rowsInBatch = 0;
+    }
+
+    private void _flush() throws Exception {
+        storage.insertRecords(table, fieldList, params, ctx);
+
+        params = new ArrayList<Object>(batchSize * fields.length);
+        rowsInBatch = 0;
+    }
+
+}
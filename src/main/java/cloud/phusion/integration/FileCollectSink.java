@@ -0,0 +1,196 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import cloud.phusion.storage.FileStorage;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Collect sink which streams the item results into a file, as one JSON array.
+ *
+ * FileStorage.saveToFile() reads the content from a stream in the writer executor, the items are handed over
+ * through a bounded queue of buffers, so write() blocks when the storage can not keep up. The writer lives as long
+ * as the loop and write() waits for it, so the executor must not be the one running the loop.
+ *
+ * If the storage makes no progress within the timeout (e.g. it hangs, or the writer never starts), the sink is
+ * aborted and write() or close() fails, instead of blocking the loop forever.
+ *
+ * write(), close() and abort() should be called from one thread at a time.
+ */
+public class FileCollectSink implements CollectSink {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int QUEUE_CAPACITY = 16;
+    private static final byte[] _EOF = new byte[0];
+
+    private final String path;
+    private final long timeout;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+    private final CompletableFuture<Void> saved = new CompletableFuture<Void>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE);
+
+    private volatile Exception aborted = null;
+    private Thread writer = null; // Guarded by "this"
+    private long count = 0;
+
+    /**
+     * @param executor runs the writer, one thread per sink for its whole life
+     * @param timeout milliseconds to wait for the storage to make progress
+     */
+    public FileCollectSink(FileStorage storage, String path, Executor executor, long timeout, Context ctx) {
+        super();
+
+        this.path = path;
+        this.timeout = timeout;
+
+        buffer.write('[');
+
+        try {
+            executor.execute(() -> {
+                synchronized (this) {
+                    writer = Thread.currentThread();
+                }
+
+                try {
+                    if (aborted == null) storage.saveToFile(path, new _QueueInputStream(), ctx);
+                    saved.complete(null);
+                } catch (Throwable t) {
+                    saved.completeExceptionally(t);
+                } finally {
+                    synchronized (this) {
+                        writer = null;
+                        Thread.interrupted(); // Clear the interruption by abort(), the thread is reused
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            saved.completeExceptionally(ex);
+        }
+    }
+
+    @Override
+    public void write(Object item) throws Exception {
+        if (count > 0) buffer.write(',');
+        byte[] bytes = JSON.toJSONBytes(item);
+        buffer.write(bytes, 0, bytes.length);
+        count++;
+
+        if (buffer.size() >= BUFFER_SIZE) _offer(_takeBuffer());
+    }
+
+    @Override
+    public DataObject close() throws Exception {
+        buffer.write(']');
+        _offer(_takeBuffer());
+        _offer(_EOF);
+
+        try {
+            saved.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof Exception ? (Exception) cause : ex;
+        } catch (TimeoutException ex) {
+            throw _timeout();
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("path", path);
+        result.put("count", count);
+        return new DataObject(result);
+    }
+
+    @Override
+    public void abort(Exception reason) {
+        aborted = reason==null ? new Exception("Aborted") : reason;
+        queue.clear();
+        queue.offer(_EOF);
+
+        synchronized (this) {
+            if (writer != null) writer.interrupt(); // In case the storage is stuck
+        }
+    }
+
+    //***************************************************************************************
+
+    private byte[] _takeBuffer() {
+        byte[] result = buffer.toByteArray();
+        buffer.reset();
+        return result;
+    }
+
+    private void _offer(byte[] data) throws Exception {
+        // Block while the queue is full, unless the storage has failed or is stuck
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (! queue.offer(data, 100, TimeUnit.MILLISECONDS)) {
+            if (saved.isDone()) {
+                saved.get();
+                throw new IOException("File is closed before all data is written: "+path);
+            }
+            if (System.currentTimeMillis() >= deadline) throw _timeout();
+        }
+    }
+
+    private PhusionException _timeout() {
+        PhusionException result = new PhusionException("WF_SINK_TIMEOUT", "File storage makes no progress",
+                "path="+path+", timeout="+timeout+"ms");
+        abort(result);
+        return result;
+    }
+
+    private class _QueueInputStream extends InputStream {
+        private byte[] current = null;
+        private int position = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n<0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            while (current==null || position>=current.length) {
+                if (current == _EOF) return _eof();
+
+                try {
+                    current = queue.take();
+                    position = 0;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for data", ex);
+                }
+            }
+
+            if (aborted != null) return _eof();
+
+            int n = Math.min(len, current.length-position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        private int _eof() throws IOException {
+            if (aborted != null) throw new IOException("Collect is aborted: "+aborted.getMessage(), aborted);
+            return -1;
+        }
+    }
+
+}
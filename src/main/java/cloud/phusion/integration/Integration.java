@@ -34,6 +34,10 @@ public interface Integration {
 
     /**
      * Check whether the incoming message and integration configuration matches the start condition.
+     *
+     * The condition is written for the JavaScript evaluator. IntegrationDefinition.getCompiledStartCondition()
+     * avoids the evaluation per message, but its operators differ (e.g. '' == 0 is false, see CompiledCondition),
+     * so using it instead changes the results of some conditions, and must be opted in for.
      */
     boolean canStart(DataObject msg) throws Exception;
 
@@ -6,10 +6,12 @@ import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Definition of an integration.
@@ -20,10 +22,11 @@ public class IntegrationDefinition {
 
     public static final String EXCEPTION_STEP_ID = "exception";
 
-    private Step firstStep;
-    private Step[] steps;
-    private Map<String, Step> stepsMap; // Step ID -> Step Object
-    private Map<String, Step[]> nextSteps; // Step ID -> Next steps
+    private static final int _MAX_CACHED_WORKFLOWS = 256;
+    private static final Map<String, _CachedDocument> _documentsByPath = _newCache(); // Absolute path -> Document
+    private static final Map<String, JSONArray> _documentsByContent = _newCache(); // SHA-256 -> Document
+
+    private volatile _Workflow workflow;
 
     private boolean clustered;
     private boolean periodic;
@@ -33,6 +36,7 @@ public class IntegrationDefinition {
     private boolean cronScheduled;
     private String cron;
     private Object startCondition;
+    private CompiledCondition compiledStartCondition;
 
     public IntegrationDefinition() {
         super();
@@ -41,6 +45,8 @@ public class IntegrationDefinition {
         this.clustered = false;
         this.cronScheduled = false;
         this.startCondition = null;
+        this.compiledStartCondition = CompiledCondition.ALWAYS_TRUE;
+        this.workflow = new _Workflow(new Step[]{});
     }
 
     /**
@@ -141,10 +147,19 @@ public class IntegrationDefinition {
      *     "config": Object, // Config for the endpoint. Optional
      *
      *     "type": "forEach",
-     *     "type": "collect"
+     *     "parallelism": Integer, // Max number of items executed at the same time. Optional, 1 by default
+     *     "ordered": Boolean, // Whether the Collect step keeps the order of the items. Optional, true by default
+     *
+     *     "type": "collect",
+     *     "sink": Object, // Where the item results go, see StepCollect. Optional, into one JSON array by default
+     *     "bufferSize": Integer, // Max number of item results waiting to be collected. Optional
      *   }
      * ]
      *
+     * Workflow files are parsed once and cached (until the modified time or size of the file changes), the parsed
+     * document is shared by the integrations loaded from the same file or from files with the same content. Each
+     * integration still gets its own steps, so they can be modified (e.g. by StepEndpoint.setConnectionId()).
+     *
      * @param doc：JSON string, or path to the .json file
      */
     public void setWorkflow(String doc) throws Exception {
@@ -154,7 +169,8 @@ public class IntegrationDefinition {
             String c = doc.substring(0,1);
             if (!c.equals("[") && !c.equals("{")) {
                 // Here, doc is the file path
-                doc = _readWorkflowDefinitionFromFile(doc);
+                _initWorkflowDefinition( _parseWorkflowDefinition(_loadWorkflowFromFile(doc)) );
+                return;
             }
 
             JSONArray docSteps = JSON.parseArray(doc);
@@ -163,6 +179,14 @@ public class IntegrationDefinition {
         }
     }
 
+    /**
+     * Drop the cached workflow files, see setWorkflow(String).
+     */
+    public static void clearWorkflowCache() {
+        _documentsByPath.clear();
+        _documentsByContent.clear();
+    }
+
     public void setWorkflow(JSONArray docSteps) {
         Step[] steps = _parseWorkflowDefinition(docSteps);
         _initWorkflowDefinition(steps);
@@ -175,134 +199,210 @@ public class IntegrationDefinition {
     /**
      * Condition to start (match) the integration.
      *
-     * Sometimes it is better to load condition as JSONObject, so String and JSONObject are both acceptable
+     * Sometimes it is better to load condition as JSONObject, so String and JSONObject are both acceptable.
+     * The condition is compiled once here, see CompiledCondition for the syntax.
      */
     public void setStartCondition(Object condition) {
+        CompiledCondition compiled;
+        try {
+            compiled = CompiledCondition.compile(condition);
+        } catch (PhusionException ex) {
+            compiled = null;
+        }
+
         this.startCondition = condition;
+        this.compiledStartCondition = compiled;
     }
 
     public Object getStartCondition() {
         return startCondition;
     }
 
+    /**
+     * The compiled start condition, shared by the instances of the integration. Use CompiledCondition.bind()
+     * to fold in the integration config, and bind again in Integration.updateConfig().
+     *
+     * @return null if the condition is not in the syntax of CompiledCondition (e.g. a script for the engine),
+     * then use Engine.evaluateCondition() instead
+     */
+    public CompiledCondition getCompiledStartCondition() {
+        return compiledStartCondition;
+    }
+
     /**
      * Get first step of the integration.
      */
     public Step getFirstStep() {
-        return firstStep;
+        return workflow.firstStep;
     }
 
     /**
      * Get the step to handle exceptions.
      */
-    public Step getExceptionStep() { return stepsMap.get(IntegrationDefinition.EXCEPTION_STEP_ID); }
+    public Step getExceptionStep() { return workflow.stepsMap.get(IntegrationDefinition.EXCEPTION_STEP_ID); }
 
     /**
      * Get all steps in the integration.
      */
     public Step[] getSteps() {
-        return steps;
+        return workflow.steps;
     }
 
     public Step getStepById(String stepId) {
-        return stepsMap.get(stepId);
+        return workflow.stepsMap.get(stepId);
     }
 
     /**
      * Get all possible next steps. Null indicates the currect step is the last one.
+     *
+     * When there are multiple next steps, give each of them DataObject.copyOnWrite() of the message.
      */
     public Step[] getNextSteps(String stepId) {
-        return nextSteps.get(stepId);
+        return workflow.nextSteps.get(stepId);
     }
 
     /**
      * Find the paired Collect step for a ForEach step.
      */
     public Step getNextCollectStep(String foreachStepId) {
-        Step[] steps = nextSteps.get(foreachStepId);
-        // All steps in a loop should always flow to the Collect step, so take the 0-th item only
-        Step step = (steps!=null && steps.length>0) ? steps[0] : null;
+        WorkflowPlan plan = workflow.plan;
+        int index = plan.getStepIndex(foreachStepId);
+        if (index == WorkflowPlan.NONE) return null;
 
-        while (step!=null && !(step instanceof StepCollect)) {
-            steps = nextSteps.get(step.getId());
-            step = (steps!=null && steps.length>0) ? steps[0] : null;
-        }
+        int collectIndex = plan.getCollectStep(index);
+        return collectIndex==WorkflowPlan.NONE ? null : plan.getStep(collectIndex);
+    }
 
-        return step;
+    /**
+     * Get the compiled workflow, for running transactions with step indexes instead of step IDs.
+     */
+    public WorkflowPlan getWorkflowPlan() {
+        return workflow.plan;
     }
 
     //***************************************************************************************
 
     private void _initWorkflowDefinition(Step[] steps) {
-        this.steps = steps;
-        this.stepsMap = new ConcurrentHashMap<String, Step>();
-        this.nextSteps = new ConcurrentHashMap<String, Step[]>();
-
-        ConcurrentHashMap<String, List<Step>> nextStepsMap = new ConcurrentHashMap<String, List<Step>>();
-
-        for (Step step : steps) {
-            this.stepsMap.put(step.getId(), step);
-            String[] fromSteps = step.getFromSteps();
+        this.workflow = new _Workflow(steps);
+    }
 
-            if (fromSteps == null || fromSteps.length == 0) {
-                // No previous step and not exception step, then this is the first step
-                if (! IntegrationDefinition.EXCEPTION_STEP_ID.equals(step.getId())) this.firstStep = step;
-            }
-            else {
-                // Based on fromSteps (previous steps) to fill out nextSteps
-
-                for (String fromStep : fromSteps) {
-                    List<Step> list = nextStepsMap.get(fromStep);
-                    if (list == null) {
-                        list = new ArrayList<Step>();
-                        nextStepsMap.put(fromStep, list);
+    /**
+     * Compiled workflow. It is not modified after construction, so that the definition can swap it atomically.
+     */
+    private static class _Workflow {
+        final Step firstStep;
+        final Step[] steps;
+        final Map<String, Step> stepsMap; // Step ID -> Step Object
+        final Map<String, Step[]> nextSteps; // Step ID -> Next steps
+        final WorkflowPlan plan;
+
+        _Workflow(Step[] steps) {
+            Step first = null;
+            Map<String, Step> stepsMap = new HashMap<String, Step>();
+            Map<String, List<Step>> nextStepsMap = new HashMap<String, List<Step>>();
+
+            for (Step step : steps) {
+                stepsMap.put(step.getId(), step);
+                String[] fromSteps = step.getFromSteps();
+
+                if (fromSteps == null || fromSteps.length == 0) {
+                    // No previous step and not exception step, then this is the first step
+                    if (! IntegrationDefinition.EXCEPTION_STEP_ID.equals(step.getId())) first = step;
+                }
+                else {
+                    // Based on fromSteps (previous steps) to fill out nextSteps
+
+                    for (String fromStep : fromSteps) {
+                        List<Step> list = nextStepsMap.get(fromStep);
+                        if (list == null) {
+                            list = new ArrayList<Step>();
+                            nextStepsMap.put(fromStep, list);
+                        }
+                        list.add(step);
                     }
-                    list.add(step);
                 }
             }
-        }
 
-        // Transfer Map<String, List<Step>> to Map<String, Step[]>
+            // Transfer Map<String, List<Step>> to Map<String, Step[]>
+
+            Map<String, Step[]> nextSteps = new HashMap<String, Step[]>();
+            for (String key : nextStepsMap.keySet()) {
+                Step[] arr = new Step[ nextStepsMap.get(key).size() ];
+                nextStepsMap.get(key).toArray(arr);
+                nextSteps.put(key, arr);
+            }
 
-        for (String key : nextStepsMap.keySet()) {
-            Step[] arr = new Step[ nextStepsMap.get(key).size() ];
-            nextStepsMap.get(key).toArray(arr);
-            this.nextSteps.put(key, arr);
+            this.firstStep = first;
+            this.steps = steps;
+            this.stepsMap = stepsMap;
+            this.nextSteps = nextSteps;
+            this.plan = new WorkflowPlan(steps);
         }
     }
 
-    private String _readWorkflowDefinitionFromFile(String file) throws Exception {
-        FileInputStream is = null;
-        ByteArrayOutputStream os = null;
-        try {
-            is = new FileInputStream(file);
-            os = new ByteArrayOutputStream();
+    private static class _CachedDocument {
+        final long modifiedTime;
+        final long size;
+        final JSONArray docSteps;
 
-            byte[] buff = new byte[1024];
+        _CachedDocument(long modifiedTime, long size, JSONArray docSteps) {
+            this.modifiedTime = modifiedTime;
+            this.size = size;
+            this.docSteps = docSteps;
+        }
+    }
 
-            int len;
-            while ((len = is.read(buff)) > 0) {
-                os.write(buff, 0, len);
+    /**
+     * LRU map of at most _MAX_CACHED_WORKFLOWS entries.
+     */
+    private static <V> Map<String, V> _newCache() {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > _MAX_CACHED_WORKFLOWS;
             }
+        });
+    }
 
-            return os.toString();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (Exception e) {
-                }
-            }
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (Exception e) {
-                }
-            }
+    /**
+     * Load the parsed document from the cache, if the file is not changed (by modified time and size) since last
+     * read. Files with the same content share one document. The document is only read afterwards, never modified.
+     */
+    private static JSONArray _loadWorkflowFromFile(String file) throws Exception {
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        String key = path.toString();
+
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        long modifiedTime = attrs.lastModifiedTime().toMillis();
+        long size = attrs.size();
+
+        _CachedDocument cached = _documentsByPath.get(key);
+        if (cached!=null && cached.modifiedTime==modifiedTime && cached.size==size) return cached.docSteps;
+
+        byte[] content = Files.readAllBytes(path);
+        String hash = _hash(content);
+
+        JSONArray result = _documentsByContent.get(hash);
+        if (result == null) {
+            result = content.length<10 ? new JSONArray() : JSON.parseArray(content);
+
+            JSONArray existing = _documentsByContent.putIfAbsent(hash, result);
+            if (existing != null) result = existing;
         }
+
+        _documentsByPath.put(key, new _CachedDocument(modifiedTime, size, result));
+        return result;
+    }
+
+    private static String _hash(byte[] content) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+
+        StringBuilder result = new StringBuilder(digest.length * 2);
+        for (byte b : digest) result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return result.toString();
     }
 
-    private Step[] _parseWorkflowDefinition(JSONArray docSteps) {
+    private static Step[] _parseWorkflowDefinition(JSONArray docSteps) {
         ArrayList<Step> listSteps = new ArrayList<Step>();
 
         for (int i=0; i<docSteps.size(); i++) {
@@ -337,10 +437,13 @@ public class IntegrationDefinition {
                     );
                     break;
                 case "forEach":
-                    step = new StepForEach(stepId, stepFrom);
+                    step = new StepForEach(stepId, stepFrom,
+                            objStep.getIntValue("parallelism", 1), objStep.getBooleanValue("ordered", true));
                     break;
                 case "collect":
-                    step = new StepCollect(stepId, stepFrom);
+                    step = new StepCollect(stepId, stepFrom,
+                            objStep.containsKey("sink") ? new DataObject(objStep.getString("sink")) : null,
+                            objStep.getIntValue("bufferSize", 0));
                     break;
             }
 
@@ -352,7 +455,7 @@ public class IntegrationDefinition {
         return arrSteps;
     }
 
-    private String[] _parseStepFrom(String from) {
+    private static String[] _parseStepFrom(String from) {
         // "from" can a normal string, or a JSON string of an array
 
         if (from==null || from.length()==0)
@@ -0,0 +1,318 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.DataObject;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index over the start conditions of many integrations, to find the integrations an inbound message may start,
+ * without calling Integration.canStart() one by one.
+ *
+ * Each condition is indexed by one of its guards (see CompiledCondition): preferably a hash on an equality field,
+ * otherwise an interval tree on a numeric range; conditions without guards go to the fallback list.
+ * For a message, the lookup costs one hash lookup or tree query per indexed path, plus the fallback list.
+ *
+ * Register the conditions bound with the integration config (CompiledCondition.bind()), and put them again when
+ * the config is updated.
+ *
+ * The index is rebuilt lazily at the first lookup after changes. It is thread-safe.
+ */
+public class RoutingIndex {
+
+    private final Map<String, CompiledCondition> conditions = new LinkedHashMap<String, CompiledCondition>(); // Integration ID -> Condition
+    private volatile _Snapshot snapshot = null;
+
+    /**
+     * Add or replace the condition of the integration. null condition indicates always true.
+     */
+    public synchronized void put(String integrationId, CompiledCondition condition) {
+        conditions.put(integrationId, condition==null ? CompiledCondition.ALWAYS_TRUE : condition);
+        snapshot = null;
+    }
+
+    public synchronized void remove(String integrationId) {
+        if (conditions.remove(integrationId) != null) snapshot = null;
+    }
+
+    public synchronized int size() {
+        return conditions.size();
+    }
+
+    /**
+     * The integrations whose conditions may be true for the message. It is a superset of match(), in the order
+     * of registration for each index bucket.
+     */
+    public List<String> getCandidates(DataObject msg) {
+        _Snapshot s = _getSnapshot();
+        Object tree = _toTree(msg);
+
+        Set<Integer> found = new LinkedHashSet<Integer>();
+        s.collect(tree, found);
+
+        List<String> result = new ArrayList<String>(found.size());
+        for (int i : found) result.add(s.ids[i]);
+        return result;
+    }
+
+    /**
+     * The integrations whose conditions are true for the message.
+     */
+    public List<String> match(DataObject msg) {
+        _Snapshot s = _getSnapshot();
+        Object tree = _toTree(msg);
+
+        Set<Integer> found = new LinkedHashSet<Integer>();
+        s.collect(tree, found);
+
+        List<String> result = new ArrayList<String>(found.size());
+        for (int i : found) {
+            if (s.conditions[i].test(tree, null)) result.add(s.ids[i]);
+        }
+        return result;
+    }
+
+    //***************************************************************************************
+
+    private _Snapshot _getSnapshot() {
+        _Snapshot result = snapshot;
+        if (result != null) return result;
+
+        synchronized (this) {
+            if (snapshot == null) snapshot = new _Snapshot(conditions);
+            return snapshot;
+        }
+    }
+
+    private static Object _toTree(DataObject data) {
+        if (data == null) return null;
+
+        Object result = data.getJSONObject();
+        if (result == null) result = data.getJSONArray();
+        return result;
+    }
+
+    private static class _Snapshot {
+        final String[] ids;
+        final CompiledCondition[] conditions;
+        final _PathIndex[] paths;
+        final int[] fallback;
+
+        _Snapshot(Map<String, CompiledCondition> all) {
+            int n = all.size();
+            ids = new String[n];
+            conditions = new CompiledCondition[n];
+
+            Map<String, _PathIndex> pathIndexes = new LinkedHashMap<String, _PathIndex>();
+            List<Integer> rest = new ArrayList<Integer>();
+
+            int i = 0;
+            for (Map.Entry<String, CompiledCondition> entry : all.entrySet()) {
+                ids[i] = entry.getKey();
+                conditions[i] = entry.getValue();
+
+                List<ConditionGuard> guards = conditions[i].getGuards();
+
+                // A condition with an empty guard (e.g. msg.x > 5 && msg.x < 3) never matches, leave it out
+                if (! conditions[i].isAlwaysFalse() && ! _hasEmptyGuard(guards)) {
+                    ConditionGuard guard = _chooseGuard(guards);
+                    if (guard == null) rest.add(i);
+                    else {
+                        _PathIndex index = pathIndexes.get(guard.getPathKey());
+                        if (index == null) {
+                            index = new _PathIndex(guard.getPath());
+                            pathIndexes.put(guard.getPathKey(), index);
+                        }
+                        index.add(guard, i);
+                    }
+                }
+                i++;
+            }
+
+            paths = pathIndexes.values().toArray(new _PathIndex[0]);
+            for (_PathIndex index : paths) index.build();
+
+            fallback = new int[rest.size()];
+            for (int j = 0; j < fallback.length; j++) fallback[j] = rest.get(j);
+        }
+
+        void collect(Object msg, Set<Integer> found) {
+            for (_PathIndex index : paths) index.collect(CompiledCondition.walk(msg, index.path), found);
+            for (int i : fallback) found.add(i);
+        }
+
+        static boolean _hasEmptyGuard(List<ConditionGuard> guards) {
+            for (ConditionGuard guard : guards) {
+                if (guard.isEmpty()) return true;
+            }
+            return false;
+        }
+
+        /**
+         * The most selective guard: equality with the fewest values, otherwise the narrowest range.
+         */
+        static ConditionGuard _chooseGuard(List<ConditionGuard> guards) {
+            ConditionGuard result = null;
+            for (ConditionGuard guard : guards) {
+                if (result == null) result = guard;
+                else if (guard.isEquality() != result.isEquality()) {
+                    if (guard.isEquality()) result = guard;
+                }
+                else if (guard.isEquality()) {
+                    if (guard.getValues().size() < result.getValues().size()) result = guard;
+                }
+                else if (guard.getHigh()-guard.getLow() < result.getHigh()-result.getLow()) result = guard;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Conditions indexed on one message path.
+     */
+    private static class _PathIndex {
+        final Object[] path;
+        final Map<String, int[]> equalities = new HashMap<String, int[]>(); // Normalized value -> Conditions
+        final List<ConditionGuard> rangeGuards = new ArrayList<ConditionGuard>();
+        final List<Integer> rangeConditions = new ArrayList<Integer>();
+        _IntervalTree ranges = null;
+
+        _PathIndex(Object[] path) {
+            this.path = path;
+        }
+
+        void add(ConditionGuard guard, int condition) {
+            if (guard.isEquality()) {
+                for (String value : guard.getValues()) {
+                    int[] list = equalities.get(value);
+                    if (list == null) list = new int[]{condition};
+                    else {
+                        list = Arrays.copyOf(list, list.length+1);
+                        list[list.length-1] = condition;
+                    }
+                    equalities.put(value, list);
+                }
+            }
+            else {
+                rangeGuards.add(guard);
+                rangeConditions.add(condition);
+            }
+        }
+
+        void build() {
+            if (rangeGuards.size() == 0) return;
+
+            int[] all = new int[rangeGuards.size()];
+            for (int i = 0; i < all.length; i++) all[i] = i;
+            ranges = new _IntervalTree(rangeGuards, rangeConditions, all);
+        }
+
+        void collect(Object value, Set<Integer> found) {
+            if (equalities.size() > 0) {
+                int[] list = equalities.get(ConditionGuard.normalize(value));
+                if (list != null) for (int i : list) found.add(i);
+            }
+
+            if (ranges != null && (value instanceof Number || value instanceof String)) {
+                BigDecimal number = CompiledCondition._toDecimal(value);
+                // Rounded the same way as the bounds, which are inclusive for it (see CompiledCondition._toGuard())
+                if (number != null) ranges.query(number.doubleValue(), found);
+            }
+        }
+    }
+
+    /**
+     * Centered interval tree: O(log n + k) for a point query.
+     */
+    private static class _IntervalTree {
+        final double center;
+        final ConditionGuard[] byLow; // Intervals containing the center, sorted by low ascending
+        final int[] byLowConditions;
+        final ConditionGuard[] byHigh; // The same intervals, sorted by high descending
+        final int[] byHighConditions;
+        final _IntervalTree left;
+        final _IntervalTree right;
+
+        _IntervalTree(List<ConditionGuard> guards, List<Integer> conditions, int[] members) {
+            // Center: median of the finite end points
+            double[] points = new double[members.length * 2];
+            int count = 0;
+            for (int m : members) {
+                ConditionGuard g = guards.get(m);
+                if (! Double.isInfinite(g.getLow())) points[count++] = g.getLow();
+                if (! Double.isInfinite(g.getHigh())) points[count++] = g.getHigh();
+            }
+            Arrays.sort(points, 0, count);
+            center = count==0 ? 0 : points[count/2];
+
+            List<Integer> l = new ArrayList<Integer>(), r = new ArrayList<Integer>(), here = new ArrayList<Integer>();
+            for (int m : members) {
+                ConditionGuard g = guards.get(m);
+                if (g.getHigh() < center) l.add(m);
+                else if (g.getLow() > center) r.add(m);
+                else here.add(m);
+            }
+
+            if (l.size()==members.length || r.size()==members.length) {
+                // No interval reaches the center (e.g. NaN end points), keep them all here to stop the recursion
+                here.addAll(l);
+                here.addAll(r);
+                l.clear();
+                r.clear();
+            }
+
+            Integer[] sorted = here.toArray(new Integer[0]);
+            Arrays.sort(sorted, Comparator.comparingDouble(m -> guards.get(m).getLow()));
+            byLow = new ConditionGuard[sorted.length];
+            byLowConditions = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                byLow[i] = guards.get(sorted[i]);
+                byLowConditions[i] = conditions.get(sorted[i]);
+            }
+
+            Arrays.sort(sorted, Comparator.comparingDouble(m -> - guards.get(m).getHigh()));
+            byHigh = new ConditionGuard[sorted.length];
+            byHighConditions = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                byHigh[i] = guards.get(sorted[i]);
+                byHighConditions[i] = conditions.get(sorted[i]);
+            }
+
+            left = l.size()==0 ? null : new _IntervalTree(guards, conditions, _toArray(l));
+            right = r.size()==0 ? null : new _IntervalTree(guards, conditions, _toArray(r));
+        }
+
+        void query(double x, Set<Integer> found) {
+            if (Double.isNaN(x)) return;
+
+            if (x <= center) {
+                // The intervals here reach the center (except in degenerate nodes), check only the low ends
+                for (int i = 0; i < byLow.length && byLow[i].getLow() <= x; i++) {
+                    if (byLow[i].contains(x)) found.add(byLowConditions[i]);
+                }
+                if (x < center && left != null) left.query(x, found);
+            }
+            else {
+                for (int i = 0; i < byHigh.length && byHigh[i].getHigh() >= x; i++) {
+                    if (byHigh[i].contains(x)) found.add(byHighConditions[i]);
+                }
+                if (right != null) right.query(x, found);
+            }
+        }
+
+        static int[] _toArray(List<Integer> list) {
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+            return result;
+        }
+    }
+
+}
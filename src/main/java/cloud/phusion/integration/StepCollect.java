@@ -1,14 +1,60 @@
 package cloud.phusion.integration;
 
+import cloud.phusion.DataObject;
+
 /**
  * Java step: collect messages after a ForEach step.
  *
- * The output message is a JSON array, whose items are one-one mapped to the message items from a ForEach step.
+ * By default, the output message is a JSON array, whose items are one-one mapped to the message items from
+ * a ForEach step.
+ *
+ * For large outputs, the item results can flow to a sink instead, as soon as they are ready (see CollectSink):
+ * {"type": "file", "path": String, "timeout": Long}, {"type": "db", "table": String, "fields": [String], "batchSize": Integer},
+ * or {"type": "chunks", "size": Integer}, which runs the Collect step and the following steps once per chunk.
+ *
+ * Between the ForEach and Collect steps, at most "bufferSize" item results wait to be collected, if it is reached,
+ * the ForEach step stops starting new items until the sink catches up.
  */
 public class StepCollect extends Step {
 
+    public static final String SINK_FILE = "file";
+    public static final String SINK_DB = "db";
+    public static final String SINK_CHUNKS = "chunks";
+
+    private DataObject sink;
+    private int bufferSize;
+
     public StepCollect(String id, String[] fromSteps) {
+        this(id, fromSteps, null, 0);
+    }
+
+    public StepCollect(String id, String[] fromSteps, DataObject sink, int bufferSize) {
         super(id, fromSteps);
+
+        this.sink = sink;
+        this.bufferSize = bufferSize<0 ? 0 : bufferSize;
+    }
+
+    /**
+     * Config of the sink. null indicates the results are collected into one JSON array.
+     */
+    public DataObject getSink() {
+        return sink;
+    }
+
+    /**
+     * @return "file", "db", "chunks", etc. null if there's no sink
+     */
+    public String getSinkType() {
+        if (sink == null || sink.getJSONObject() == null) return null;
+        return sink.getJSONObject().getString("type");
+    }
+
+    /**
+     * Max number of item results waiting to be collected. 0 indicates the default, the parallelism of the ForEach step
+     */
+    public int getBufferSize() {
+        return bufferSize;
     }
 
 }
@@ -4,13 +4,43 @@ package cloud.phusion.integration;
  * Java step: loop through each item.
  *
  * The input message must be a JSON array.
- * Against each item in the array, the following steps (until a Collect step) will be executed,
- * but the order of the item executions is not guaranteed.
+ * Against each item in the array, the following steps (until a Collect step) will be executed.
+ *
+ * By default, the items are executed one at a time. With parallelism greater than 1, up to that number of items
+ * are executed at the same time, and the order of the item executions is not guaranteed. If ordered (by default),
+ * the Collect step still outputs the item results in the order of the input items, otherwise in the order
+ * of completion.
+ *
+ * For very large arrays, use DataObject.elements() to hand out the items one at a time, instead of loading the array.
  */
 public class StepForEach extends Step {
 
+    private int parallelism;
+    private boolean ordered;
+
     public StepForEach(String id, String[] fromSteps) {
+        this(id, fromSteps, 1, true);
+    }
+
+    public StepForEach(String id, String[] fromSteps, int parallelism, boolean ordered) {
         super(id, fromSteps);
+
+        this.parallelism = parallelism<1 ? 1 : parallelism;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Max number of items executed at the same time. By default, 1
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Whether the Collect step keeps the order of the input items. By default, true
+     */
+    public boolean isOrdered() {
+        return ordered;
     }
 
 }
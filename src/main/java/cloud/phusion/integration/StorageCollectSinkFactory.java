@@ -0,0 +1,83 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.Engine;
+import cloud.phusion.PhusionException;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the "file" and "db" collect sinks, on the file and DB storages of the integration.
+ *
+ * Sink config:
+ * {"type": "file", "path": String, "timeout": Long}, the path is in the file storage of the integration, timeout is
+ * the milliseconds to wait for the storage to make progress, 60000 by default.
+ * {"type": "db", "table": String, "fields": [String], "batchSize": Integer}, batchSize is 100 by default.
+ *
+ * It is thread-safe.
+ */
+public class StorageCollectSinkFactory implements CollectSink.Factory {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long DEFAULT_FILE_TIMEOUT = 60000;
+
+    // Writers of the file sinks, apart from the executors running the loops
+    private static final ExecutorService _fileWriterExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "phusion-collect-file");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Engine engine;
+    private final Executor fileWriterExecutor;
+
+    public StorageCollectSinkFactory(Engine engine) {
+        this(engine, _fileWriterExecutor);
+    }
+
+    /**
+     * @param fileWriterExecutor runs the writers of the file sinks, see FileCollectSink
+     */
+    public StorageCollectSinkFactory(Engine engine, Executor fileWriterExecutor) {
+        super();
+
+        this.engine = engine;
+        this.fileWriterExecutor = fileWriterExecutor;
+    }
+
+    @Override
+    public CollectSink createSink(StepCollect step, Transaction trx) throws Exception {
+        String type = step.getSinkType();
+        JSONObject config = step.getSink()==null ? null : step.getSink().getJSONObject();
+
+        if (StepCollect.SINK_FILE.equals(type)) {
+            return new FileCollectSink(
+                    engine.getFileStorageForIntegration(trx.getIntegrationId()),
+                    config.getString("path"),
+                    fileWriterExecutor,
+                    config.getLongValue("timeout", DEFAULT_FILE_TIMEOUT),
+                    trx.getContext()
+            );
+        }
+
+        if (StepCollect.SINK_DB.equals(type)) {
+            JSONArray fields = config.getJSONArray("fields");
+            if (fields==null || fields.size()==0) throw new PhusionException("WF_SINK", "No fields for collect sink",
+                    "step="+step.getId());
+
+            return new DBCollectSink(
+                    engine.getDBStorageForIntegration(trx.getIntegrationId()),
+                    config.getString("table"),
+                    fields.toArray(new String[0]),
+                    config.getIntValue("batchSize", DEFAULT_BATCH_SIZE),
+                    trx.getContext()
+            );
+        }
+
+        throw new PhusionException("WF_SINK", "Unknown collect sink", "step="+step.getId()+", type="+type);
+    }
+
+}
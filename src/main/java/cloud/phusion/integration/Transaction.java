@@ -1,8 +1,11 @@
 package cloud.phusion.integration;
 
+import cloud.phusion.BinaryCodec;
 import cloud.phusion.Context;
 import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
 import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
 import com.alibaba.fastjson2.JSONObject;
 
 import java.math.BigDecimal;
@@ -184,22 +187,68 @@ public class Transaction {
         return result.toString();
     }
 
+    /**
+     * Encode the status data in binary format (see BinaryCodec), which is faster to decode than JSON text.
+     */
+    public byte[] toBinary() {
+        JSONObject doc = new JSONObject();
+
+        if (clientId != null) doc.put("clientId", clientId);
+        if (step != null) doc.put("step", step);
+        if (stepFrom != null) doc.put("stepFrom", stepFrom);
+        if (msg != null) doc.put("msg", _toTree(msg));
+        if (config != null) doc.put("config", _toTree(config));
+        if (properties!=null && properties.size()>0) doc.put("properties", new JSONObject(properties));
+
+        doc.put("failed", failed);
+        doc.put("integrationId", integrationId);
+        doc.put("id", id);
+
+        return BinaryCodec.encode(doc);
+    }
+
     /**
      * Read status data from JSON string.
      */
     public void updateFromJSONString(String strDoc) throws Exception {
-        JSONObject doc = JSON.parseObject(strDoc);
+        _updateFromJSONObject( JSON.parseObject(strDoc) );
+    }
+
+    /**
+     * Read status data from binary format, or from UTF-8 JSON text if it is not binary.
+     */
+    public void updateFromBinary(byte[] bin) throws Exception {
+        Object doc = BinaryCodec.isBinary(bin) ? BinaryCodec.decode(bin) : JSON.parseObject(bin);
+        if (! (doc instanceof JSONObject))
+            throw new PhusionException("TRX_FMT", "Failed to read transaction", "transactionId="+id, ctx);
+
+        _updateFromJSONObject((JSONObject) doc);
+    }
+
+    public void updateAll(String step, String stepFrom, boolean failed, DataObject msg, DataObject config, Map<String, Object> properties) throws Exception {
+        this.step = step;
+        this.stepFrom = stepFrom;
+        this.failed = failed;
+        this.msg = msg;
+        this.config = config;
 
+        this.properties.clear();
+        if (properties != null) this.properties.putAll(properties);
+    }
+
+    //***************************************************************************************
+
+    private void _updateFromJSONObject(JSONObject doc) {
         this.step = doc.getString("step");
         this.stepFrom = doc.getString("stepFrom");
 
         this.failed = doc.getBooleanValue("failed", false);
 
-        JSONObject objm = doc.getJSONObject("msg");
-        this.msg = objm==null ? null : new DataObject(objm);
+        Object objm = doc.get("msg");
+        this.msg = (objm instanceof JSONObject || objm instanceof JSONArray) ? new DataObject(objm) : null;
 
-        JSONObject objc = doc.getJSONObject("config");
-        this.config = objc==null ? null : new DataObject(objc);
+        Object objc = doc.get("config");
+        this.config = (objc instanceof JSONObject || objc instanceof JSONArray) ? new DataObject(objc) : null;
 
         properties.clear();
 
@@ -214,15 +263,10 @@ public class Transaction {
         }
     }
 
-    public void updateAll(String step, String stepFrom, boolean failed, DataObject msg, DataObject config, Map<String, Object> properties) throws Exception {
-        this.step = step;
-        this.stepFrom = stepFrom;
-        this.failed = failed;
-        this.msg = msg;
-        this.config = config;
-
-        this.properties.clear();
-        if (properties != null) this.properties.putAll(properties);
+    private static Object _toTree(DataObject data) {
+        Object tree = data.getJSONObject();
+        if (tree == null) tree = data.getJSONArray();
+        return tree;
     }
 
 }
@@ -0,0 +1,800 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference executor which drives a transaction through the workflow of an integration.
+ *
+ * 1. Fan-out: when a step has multiple next steps, each of them gets its own transaction (with a copy-on-write
+ *    message) and they run concurrently on the executor.
+ * 2. Fan-in: a step with multiple "from" steps waits until all of them have arrived, then runs once with the
+ *    merged transaction (see merge()).
+ * 3. ForEach/Collect: the steps between them run against each item of the array (up to StepForEach.getParallelism()
+ *    items at the same time), and the Collect step outputs the array of the item results, in the order of the items
+ *    unless the ForEach step is not ordered. The item results can also flow to a sink, see StepCollect.
+ * 4. Exception: when a step fails, the transaction moves to the exception step (if any), which runs once.
+ *
+ * The steps themselves (processors, endpoints, etc.) are run by the StepRunner, which is provided by the engine.
+ *
+ * It is thread-safe, and can be shared by the transactions of the integration.
+ */
+public class WorkflowExecutor {
+
+    /**
+     * Run one step against the transaction, and put the output message into the transaction.
+     *
+     * ForEach and Collect steps are passed in too, after the executor has prepared the message
+     * (the array, or the collected array), usually there's nothing to do.
+     */
+    public interface StepRunner {
+        void runStep(Step step, Transaction trx) throws Exception;
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 100;
+    private static final Object _NULL = new Object(); // Null results in the queue of a loop
+
+    private final IntegrationDefinition idef;
+    private final WorkflowPlan plan;
+    private final StepRunner runner;
+    private final Executor executor;
+    private volatile CollectSink.Factory sinkFactory = null;
+
+    public WorkflowExecutor(IntegrationDefinition idef, StepRunner runner, Executor executor) {
+        super();
+
+        this.idef = idef;
+        this.plan = idef.getWorkflowPlan();
+        this.runner = runner;
+        this.executor = executor;
+    }
+
+    public IntegrationDefinition getIntegrationDefinition() {
+        return idef;
+    }
+
+    /**
+     * Set the factory of the collect sinks other than "chunks", e.g. StorageCollectSinkFactory.
+     */
+    public void setSinkFactory(CollectSink.Factory factory) {
+        this.sinkFactory = factory;
+    }
+
+    /**
+     * Execute the transaction from its current step to the end.
+     *
+     * @return the finished transaction. If some step failed, it is the transaction of the exception step
+     * (isFailed() is true); if several branches finish, it is the one finished at the last step of the workflow
+     */
+    public CompletableFuture<Transaction> execute(Transaction trx) {
+        Frame frame = new Frame(WorkflowPlan.NONE, true);
+
+        int index = plan.getStepIndex(trx.getCurrentStep());
+        if (index == WorkflowPlan.NONE) {
+            frame.future.complete(trx);
+            return frame.future;
+        }
+
+        _run(index, trx, frame);
+        return frame.future;
+    }
+
+    /**
+     * Merge the transactions arriving at a join step (a step with multiple "from" steps).
+     *
+     * By default, the message is an object with the previous step IDs as the keys and the messages as the values,
+     * and the properties are merged in the order of the "from" steps.
+     *
+     * @param inputs in the order of Step.getFromSteps()
+     */
+    protected Transaction merge(Step step, Transaction[] inputs) throws Exception {
+        String[] fromSteps = step.getFromSteps();
+
+        JSONObject msg = new JSONObject();
+        for (int i = 0; i < inputs.length; i++) msg.put(fromSteps[i], _toTree(inputs[i].getMessage()));
+
+        Transaction result = _copy(inputs[0], new DataObject(msg));
+        for (int i = 1; i < inputs.length; i++) result.getProperties().putAll(inputs[i].getProperties());
+        return result;
+    }
+
+    //***************************************************************************************
+
+    /**
+     * Execution of the whole transaction, or of one item in a ForEach loop.
+     *
+     * It keeps track of the running branches, and completes when all of them are finished.
+     */
+    private class Frame {
+        final int stopAt; // The Collect step for an item in a loop
+        final boolean topLevel;
+        final CompletableFuture<Transaction> future = new CompletableFuture<Transaction>();
+        final AtomicInteger branches = new AtomicInteger(1);
+        final ConcurrentHashMap<Integer, Join> joins = new ConcurrentHashMap<Integer, Join>();
+
+        Transaction result = null;
+        int resultStep = -1;
+        volatile Transaction failure = null;
+
+        Frame(int stopAt, boolean topLevel) {
+            this.stopAt = stopAt;
+            this.topLevel = topLevel;
+        }
+
+        synchronized void finishBranch(int step, Transaction trx) {
+            if (failure==null && step>=resultStep) {
+                result = trx;
+                resultStep = step;
+            }
+        }
+
+        /**
+         * @return true if it is the first failure
+         */
+        synchronized boolean failBranch(Transaction trx) {
+            if (failure != null) return false;
+            failure = trx;
+            return true;
+        }
+
+        void endBranch() {
+            if (branches.decrementAndGet() == 0) {
+                synchronized (this) {
+                    future.complete(failure!=null ? failure : result);
+                }
+            }
+        }
+    }
+
+    private static class Join {
+        final Transaction[] inputs;
+        int arrived = 0;
+
+        Join(int fanIn) {
+            inputs = new Transaction[fanIn];
+        }
+    }
+
+    private void _run(int index, Transaction trx, Frame frame) {
+        while (true) {
+            if (index == frame.stopAt) {
+                frame.finishBranch(index, trx);
+                frame.endBranch();
+                return;
+            }
+
+            if (frame.failure != null) {
+                // Some other branch failed, stop here
+                frame.endBranch();
+                return;
+            }
+
+            Step step = plan.getStep(index);
+
+            if (plan.getFanIn(index) > 1) {
+                Transaction[] inputs;
+                try {
+                    inputs = _join(index, trx, frame);
+                } catch (Throwable ex) {
+                    _fail(trx, ex, frame);
+                    return;
+                }
+
+                if (inputs == null) {
+                    // Waiting for other branches
+                    frame.endBranch();
+                    return;
+                }
+
+                try {
+                    trx = merge(step, inputs);
+                } catch (Throwable ex) {
+                    _fail(trx, ex, frame);
+                    return;
+                }
+            }
+
+            if (step instanceof StepForEach) {
+                _runForEach(index, trx, frame);
+                return;
+            }
+
+            try {
+                runner.runStep(step, trx);
+            } catch (Throwable ex) {
+                _fail(trx, ex, frame);
+                return;
+            }
+
+            if (trx.isFinished() || trx.isFailed()) {
+                // The step runner has finished the transaction, or moved it into exception
+                _finish(index, trx, frame);
+                return;
+            }
+
+            index = _moveOn(index, trx, frame);
+            if (index == WorkflowPlan.NONE) return;
+        }
+    }
+
+    /**
+     * Move the transaction to the next steps, the first of which runs in the current thread.
+     *
+     * @return index of the next step to run in the current thread, or NONE if the branch ends
+     */
+    private int _moveOn(int index, Transaction trx, Frame frame) {
+        int[] next = plan.getNextSteps(index);
+
+        if (next.length == 0) {
+            _finish(index, trx, frame);
+            return WorkflowPlan.NONE;
+        }
+
+        if (next.length > 1) {
+            DataObject msg = trx.getMessage();
+            DataObject frozen = msg==null ? null : msg.freeze();
+
+            frame.branches.addAndGet(next.length-1);
+            for (int i = 1; i < next.length; i++) {
+                final int nextIndex = next[i];
+                final Transaction branch = _copy(trx, frozen==null ? null : frozen.copyOnWrite());
+                branch.moveToStep(plan.getStep(nextIndex).getId());
+                if (! _submit(() -> _run(nextIndex, branch, frame))) _fail(branch, _rejected(branch), frame);
+            }
+
+            trx.setMessage(frozen==null ? null : frozen.copyOnWrite());
+        }
+
+        trx.moveToStep(plan.getStep(next[0]).getId());
+        return next[0];
+    }
+
+    /**
+     * @return the transactions from all previous steps if all of them have arrived, otherwise null
+     * @throws PhusionException if the transaction does not come from a "from" step still waited for
+     */
+    private Transaction[] _join(int index, Transaction trx, Frame frame) throws PhusionException {
+        Join join = frame.joins.computeIfAbsent(index, k -> new Join(plan.getFanIn(k)));
+        int[] previous = plan.getPreviousSteps(index);
+        int from = plan.getStepIndex(trx.getPreviousStep());
+
+        synchronized (join) {
+            boolean matched = false;
+            for (int i = 0; i < previous.length; i++) {
+                if (previous[i]==from && join.inputs[i]==null) {
+                    join.inputs[i] = trx;
+                    join.arrived++;
+                    matched = true;
+                    break;
+                }
+            }
+
+            if (! matched) {
+                throw new PhusionException("WF_JOIN", "Transaction does not come from a previous step of the join",
+                        "step="+plan.getStep(index).getId()+", previousStep="+trx.getPreviousStep());
+            }
+
+            if (join.arrived < previous.length) return null;
+
+            frame.joins.remove(index);
+            return join.inputs;
+        }
+    }
+
+    private void _runForEach(int index, Transaction trx, Frame frame) {
+        int collect = plan.getCollectStep(index);
+        int[] body = plan.getNextSteps(index);
+
+        Iterator<DataObject> items;
+        CollectSink sink;
+        try {
+            if (collect==WorkflowPlan.NONE || body.length==0) throw new IllegalStateException("No Collect step");
+            runner.runStep(plan.getStep(index), trx);
+            items = trx.getMessage()==null ? null : trx.getMessage().elements();
+            if (items == null) throw new IllegalArgumentException("No array for ForEach step");
+            sink = _createSink(collect, trx);
+        } catch (Throwable ex) {
+            _fail(trx, ex, frame);
+            return;
+        }
+
+        new Loop((StepForEach) plan.getStep(index), body[0], collect, trx, items, sink, frame).pump();
+    }
+
+    private CollectSink _createSink(int collectIndex, Transaction trx) throws Exception {
+        StepCollect step = (StepCollect) plan.getStep(collectIndex);
+        String type = step.getSinkType();
+
+        if (type == null) return new _ArraySink();
+        if (StepCollect.SINK_CHUNKS.equals(type)) {
+            int size = step.getSink().getJSONObject().getIntValue("size", DEFAULT_CHUNK_SIZE);
+            return new _ChunkSink(collectIndex, trx, size<1 ? 1 : size);
+        }
+
+        if (sinkFactory == null) throw new PhusionException("WF_SINK", "No factory for collect sink",
+                "step="+step.getId()+", type="+type);
+        return sinkFactory.createSink(step, trx);
+    }
+
+    /**
+     * Runs the items of a ForEach loop, without blocking any thread (except in the sink).
+     *
+     * With parallelism 1, the items run one by one in the current thread. Otherwise, up to "parallelism" items
+     * run on the executor at the same time.
+     *
+     * Item results flow to the sink as soon as they are ready; for ordered loops, results finished out of order
+     * wait in a reorder buffer first. The sink is written by one thread at a time. No new item starts while
+     * "parallelism + bufferSize" items are started but not written to the sink yet, so that slow sinks hold back
+     * the loop instead of growing the heap.
+     */
+    private class Loop {
+        final int firstStep;
+        final int collectStep;
+        final int parallelism;
+        final boolean ordered;
+        final long window;
+        final Transaction trx;
+        final Iterator<DataObject> items;
+        final CollectSink sink;
+        final Frame frame;
+        final Map<Long, Object> reorderBuffer = new HashMap<Long, Object>(); // Item sequence -> Result
+        final ArrayDeque<Object> pending = new ArrayDeque<Object>(); // Results ready for the sink, in order
+
+        long started = 0;
+        long running = 0;
+        long emitted = 0;
+        long written = 0;
+        boolean exhausted = false;
+        boolean draining = false;
+        boolean stopped = false;
+
+        Loop(StepForEach step, int firstStep, int collectStep, Transaction trx, Iterator<DataObject> items,
+             CollectSink sink, Frame frame) {
+            this.firstStep = firstStep;
+            this.collectStep = collectStep;
+            this.parallelism = step.getParallelism();
+            this.ordered = step.isOrdered();
+            this.trx = trx;
+            this.items = items;
+            this.sink = sink;
+            this.frame = frame;
+
+            int bufferSize = ((StepCollect) plan.getStep(collectStep)).getBufferSize();
+            this.window = parallelism + (bufferSize>0 ? bufferSize : parallelism);
+        }
+
+        void pump() {
+            while (true) {
+                DataObject item = null;
+                long seq = 0;
+                boolean collect = false;
+                Throwable error = null;
+
+                synchronized (this) {
+                    if (stopped) return;
+
+                    if (exhausted) {
+                        if (running>0 || draining || pending.size()>0) return;
+                        stopped = true;
+                        collect = true;
+                    }
+                    else if (running>=parallelism || started-written>=window) {
+                        return;
+                    }
+                    else {
+                        try {
+                            if (! items.hasNext()) {
+                                exhausted = true;
+                                continue;
+                            }
+                            item = items.next();
+                            seq = started++;
+                            running++;
+                        } catch (Throwable ex) {
+                            stopped = true;
+                            error = ex;
+                        }
+                    }
+                }
+
+                if (error != null) {
+                    _abort(error);
+                    return;
+                }
+
+                if (collect) {
+                    _collect(this);
+                    return;
+                }
+
+                final DataObject currentItem = item;
+                final long currentSeq = seq;
+
+                if (parallelism == 1) {
+                    CompletableFuture<Transaction> future = _runItem(currentItem);
+                    if (future.isDone()) {
+                        if (! (_addResult(currentSeq, future.join()) && _drain())) return;
+                    }
+                    else {
+                        future.whenComplete((result, ex) -> {
+                            if (_addResult(currentSeq, result) && _drain()) pump();
+                        });
+                        return;
+                    }
+                }
+                else {
+                    boolean submitted = _submit(() -> _runItem(currentItem).whenComplete((result, ex) -> {
+                        if (_addResult(currentSeq, result) && _drain()) pump();
+                    }));
+
+                    if (! submitted) {
+                        synchronized (this) {
+                            running--;
+                            if (stopped) return;
+                            stopped = true;
+                        }
+                        _abort(_rejected(trx));
+                        return;
+                    }
+                }
+            }
+        }
+
+        CompletableFuture<Transaction> _runItem(DataObject item) {
+            Transaction itemTrx = _copy(trx, item);
+            itemTrx.moveToStep(plan.getStep(firstStep).getId());
+
+            Frame itemFrame = new Frame(collectStep, false);
+            _run(firstStep, itemTrx, itemFrame);
+            return itemFrame.future;
+        }
+
+        /**
+         * @return false if the loop is stopped
+         */
+        boolean _addResult(long seq, Transaction result) {
+            synchronized (this) {
+                running--;
+                if (stopped) return false;
+
+                if (result!=null && ! result.isFailed()) {
+                    Object tree = _toTree(result.getMessage());
+                    if (tree == null) tree = _NULL;
+
+                    if (! ordered) pending.add(tree);
+                    else {
+                        reorderBuffer.put(seq, tree);
+                        Object next;
+                        while ((next = reorderBuffer.remove(emitted)) != null) {
+                            pending.add(next);
+                            emitted++;
+                        }
+                    }
+                    return true;
+                }
+
+                stopped = true;
+            }
+
+            String reason = result==null ? "No result" : String.valueOf(result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID));
+            _abort(new Exception("Failed to process item "+seq+": "+reason));
+            return false;
+        }
+
+        /**
+         * Write the pending results into the sink, unless another thread is doing so.
+         *
+         * @return false if the loop is stopped
+         */
+        boolean _drain() {
+            synchronized (this) {
+                if (stopped) return false;
+                if (draining) return true;
+                draining = true;
+            }
+
+            return _drainPending();
+        }
+
+        /**
+         * Called by the thread which has set "draining". While a chunk of the chunk sink is being processed, it
+         * returns and resumes when the chunk is done, keeping "draining" set.
+         *
+         * @return false if the loop is stopped
+         */
+        boolean _drainPending() {
+            while (true) {
+                Object tree;
+                synchronized (this) {
+                    if (stopped) return false;
+                    if (pending.size() == 0) {
+                        draining = false;
+                        return true;
+                    }
+                    tree = pending.poll();
+                }
+
+                try {
+                    sink.write(tree==_NULL ? null : tree);
+                } catch (Throwable ex) {
+                    _stopAndAbort(ex);
+                    return false;
+                }
+
+                synchronized (this) {
+                    written++;
+                }
+
+                if (sink instanceof _ChunkSink) {
+                    CompletableFuture<Transaction> chunk = ((_ChunkSink) sink).pending();
+
+                    if (chunk!=null && ! chunk.isDone()) {
+                        chunk.whenComplete((result, ex) -> {
+                            if (ex != null) _stopAndAbort(ex);
+                            else if (_drainPending()) pump();
+                        });
+                        return true;
+                    }
+
+                    Throwable error = _failure(chunk);
+                    if (error != null) {
+                        _stopAndAbort(error);
+                        return false;
+                    }
+                }
+            }
+        }
+
+        void _stopAndAbort(Throwable ex) {
+            synchronized (this) {
+                if (stopped) return;
+                stopped = true;
+            }
+            _abort(_unwrap(ex));
+        }
+
+        void _abort(Throwable ex) {
+            sink.abort(ex instanceof Exception ? (Exception) ex : new Exception(ex.toString(), ex));
+            _fail(trx, ex, frame);
+        }
+    }
+
+    private void _collect(Loop loop) {
+        Transaction trx = loop.trx;
+
+        try {
+            DataObject output = loop.sink.close();
+
+            if (loop.sink instanceof _ChunkSink) {
+                // The Collect step and the following steps run for each chunk, wait for the last one
+                ((_ChunkSink) loop.sink).pending().whenComplete((result, ex) -> {
+                    if (ex != null) _fail(trx, _unwrap(ex), loop.frame);
+                    else _finish(loop.collectStep, result, loop.frame);
+                });
+                return;
+            }
+
+            trx.setMessage(output);
+            trx.moveToStep(plan.getStep(loop.collectStep).getId());
+            runner.runStep(plan.getStep(loop.collectStep), trx);
+        } catch (Throwable ex) {
+            _fail(trx, ex, loop.frame);
+            return;
+        }
+
+        int index = _moveOn(loop.collectStep, trx, loop.frame);
+        if (index != WorkflowPlan.NONE) _run(index, trx, loop.frame);
+    }
+
+    /**
+     * Default sink: all item results in one JSON array.
+     */
+    private static class _ArraySink implements CollectSink {
+        private final JSONArray results = new JSONArray();
+
+        @Override
+        public void write(Object item) {
+            results.add(item);
+        }
+
+        @Override
+        public DataObject close() {
+            return new DataObject(results);
+        }
+
+        @Override
+        public void abort(Exception reason) {
+            results.clear();
+        }
+    }
+
+    /**
+     * Runs the Collect step and the following steps for each chunk of item results, one chunk at a time.
+     *
+     * write() and close() start the steps of a full chunk and return, pending() tells when they have finished.
+     * The loop does not write more item results while a chunk is pending, so it does not run ahead of the steps,
+     * and no thread waits for them.
+     */
+    private class _ChunkSink implements CollectSink {
+        final int collectStep;
+        final Transaction trx;
+        final int size;
+
+        JSONArray chunk = new JSONArray();
+        int chunkCount = 0;
+        volatile CompletableFuture<Transaction> running = null;
+
+        _ChunkSink(int collectStep, Transaction trx, int size) {
+            this.collectStep = collectStep;
+            this.trx = trx;
+            this.size = size;
+        }
+
+        @Override
+        public void write(Object item) {
+            chunk.add(item);
+            if (chunk.size() >= size) _flush();
+        }
+
+        @Override
+        public DataObject close() {
+            // At least one chunk, so that the following steps always run
+            if (chunk.size()>0 || chunkCount==0) _flush();
+            return null;
+        }
+
+        @Override
+        public void abort(Exception reason) {
+            chunk = new JSONArray();
+        }
+
+        /**
+         * @return the result of the latest chunk, or null if no chunk has started
+         */
+        CompletableFuture<Transaction> pending() {
+            return running;
+        }
+
+        private void _flush() {
+            Transaction chunkTrx = _copy(trx, new DataObject(chunk));
+            chunk = new JSONArray();
+            chunkTrx.moveToStep(plan.getStep(collectStep).getId());
+
+            final int number = chunkCount++;
+            Frame chunkFrame = new Frame(WorkflowPlan.NONE, false);
+            running = chunkFrame.future.thenApply(result -> {
+                if (result==null || result.isFailed()) {
+                    String reason = result==null ? "No result" : String.valueOf(result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID));
+                    throw new CompletionException(new Exception("Failed to process chunk "+number+": "+reason));
+                }
+                return result;
+            });
+
+            try {
+                runner.runStep(plan.getStep(collectStep), chunkTrx);
+            } catch (Throwable ex) {
+                _fail(chunkTrx, ex, chunkFrame);
+                return;
+            }
+
+            int index = _moveOn(collectStep, chunkTrx, chunkFrame);
+            if (index != WorkflowPlan.NONE) _run(index, chunkTrx, chunkFrame);
+        }
+    }
+
+    private void _finish(int index, Transaction trx, Frame frame) {
+        if (trx.isFailed() && ! trx.isFinished()) {
+            // Moved into exception by the step runner
+            _failed(trx, String.valueOf(trx.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID)), frame);
+            return;
+        }
+
+        if (trx.isFailed()) {
+            frame.failBranch(trx);
+        }
+        else {
+            if (frame.topLevel) trx.moveToEnd();
+            frame.finishBranch(index, trx);
+        }
+        frame.endBranch();
+    }
+
+    private void _fail(Transaction trx, Throwable ex, Frame frame) {
+        String reason = ex.getMessage()==null ? ex.toString() : ex.getMessage();
+        trx.moveToException(reason);
+        _failed(trx, reason, frame);
+    }
+
+    /**
+     * End the branch of the transaction which has moved into exception.
+     */
+    private void _failed(Transaction trx, String reason, Frame frame) {
+        if (frame.failBranch(trx) && frame.topLevel) {
+            // Only the first failure goes into the exception step
+            int exceptionStep = plan.getExceptionStep();
+            if (exceptionStep != WorkflowPlan.NONE) {
+                try {
+                    runner.runStep(plan.getStep(exceptionStep), trx);
+                } catch (Throwable e) {
+                    trx.setProperty(IntegrationDefinition.EXCEPTION_STEP_ID, reason+"; "+e.getMessage());
+                }
+            }
+            trx.moveToEnd();
+        }
+
+        frame.endBranch();
+    }
+
+    /**
+     * The task is not run in the current thread if the executor rejects it, so that long chains of branches or
+     * items can not pile up on the stack.
+     *
+     * @return false if the executor rejects the task
+     */
+    private boolean _submit(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+
+    private PhusionException _rejected(Transaction trx) {
+        return new PhusionException("WF_REJECTED", "Executor rejected the task",
+                "integrationId="+trx.getIntegrationId()+", transactionId="+trx.getId());
+    }
+
+    private static Transaction _copy(Transaction trx, DataObject msg) {
+        Transaction result = new Transaction(trx.getIntegrationId(), trx.getId(), trx.getCurrentStep(), trx.getPreviousStep(), trx.getContext());
+        result.setClientId(trx.getClientId());
+        try {
+            result.updateAll(trx.getCurrentStep(), trx.getPreviousStep(), trx.isFailed(), msg,
+                    trx.getIntegrationConfig(), trx.getProperties());
+        } catch (Exception ex) {
+            // updateAll() does not throw actually
+        }
+        return result;
+    }
+
+    /**
+     * @return the failure of a completed future, or null
+     */
+    private static Throwable _failure(CompletableFuture<?> future) {
+        if (future==null || ! future.isCompletedExceptionally()) return null;
+
+        try {
+            future.join();
+            return null;
+        } catch (Throwable t) {
+            return _unwrap(t);
+        }
+    }
+
+    private static Throwable _unwrap(Throwable t) {
+        return t instanceof CompletionException && t.getCause()!=null ? t.getCause() : t;
+    }
+
+    private static Object _toTree(DataObject data) {
+        if (data == null) return null;
+
+        Object tree = data.getJSONObject();
+        if (tree == null) tree = data.getJSONArray();
+        if (tree == null) tree = data.getString();
+        return tree;
+    }
+
+}
@@ -0,0 +1,240 @@
+package cloud.phusion.integration;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled workflow of an integration, so that engines can run transactions with array indexing.
+ *
+ * Each step has a dense index, which is its position in IntegrationDefinition.getSteps().
+ * All index arrays returned must not be modified.
+ *
+ * It is immutable and thread-safe.
+ */
+public class WorkflowPlan {
+
+    public static final int NONE = -1;
+
+    private static final int[] _EMPTY = new int[0];
+
+    private final Step[] steps;
+    private final Map<String, Integer> indexes; // Step ID -> Index
+    private final int[][] nextSteps;
+    private final int[][] previousSteps;
+    private final int[] fanIn;
+    private final int[] collectSteps; // ForEach step -> Collect step
+    private final int[] topologicalOrder;
+    private final boolean acyclic;
+    private final BitSet[] reachable; // Step -> All steps reachable from it
+    private final int firstStep;
+    private final int exceptionStep;
+
+    WorkflowPlan(Step[] steps) {
+        super();
+
+        int n = steps.length;
+        this.steps = steps;
+        this.indexes = new HashMap<String, Integer>(n * 2);
+        for (int i = 0; i < n; i++) indexes.put(steps[i].getId(), i);
+
+        // Adjacency, in the order of the step definitions, the same as IntegrationDefinition.getNextSteps()
+
+        List<List<Integer>> next = new ArrayList<List<Integer>>(n);
+        for (int i = 0; i < n; i++) next.add(new ArrayList<Integer>(2));
+
+        this.previousSteps = new int[n][];
+        this.fanIn = new int[n];
+        int first = NONE;
+
+        for (int i = 0; i < n; i++) {
+            String[] from = steps[i].getFromSteps();
+
+            if (from==null || from.length==0) {
+                previousSteps[i] = _EMPTY;
+                if (! IntegrationDefinition.EXCEPTION_STEP_ID.equals(steps[i].getId())) first = i;
+                continue;
+            }
+
+            List<Integer> prev = new ArrayList<Integer>(from.length);
+            for (String fromId : from) {
+                Integer fromIndex = indexes.get(fromId);
+                if (fromIndex == null) continue; // Unknown step, reported by WorkflowValidator
+
+                prev.add(fromIndex);
+                next.get(fromIndex).add(i);
+            }
+
+            previousSteps[i] = _toArray(prev);
+            fanIn[i] = previousSteps[i].length;
+        }
+
+        this.nextSteps = new int[n][];
+        for (int i = 0; i < n; i++) nextSteps[i] = _toArray(next.get(i));
+
+        this.firstStep = first;
+        Integer exception = indexes.get(IntegrationDefinition.EXCEPTION_STEP_ID);
+        this.exceptionStep = exception==null ? NONE : exception;
+
+        // Topological order (Kahn's algorithm)
+
+        int[] order = new int[n];
+        int[] remaining = fanIn.clone();
+        int head = 0, tail = 0;
+        for (int i = 0; i < n; i++) {
+            if (remaining[i] == 0) order[tail++] = i;
+        }
+        while (head < tail) {
+            int current = order[head++];
+            for (int nextStep : nextSteps[current]) {
+                if (--remaining[nextStep] == 0) order[tail++] = nextStep;
+            }
+        }
+
+        this.acyclic = (tail == n);
+        if (tail < n) {
+            int[] partial = new int[tail];
+            System.arraycopy(order, 0, partial, 0, tail);
+            order = partial;
+        }
+        this.topologicalOrder = order;
+
+        // Reachability, by a breadth-first search from each step
+
+        this.reachable = new BitSet[n];
+        int[] queue = new int[n+1];
+        for (int i = 0; i < n; i++) {
+            BitSet visited = new BitSet(n);
+            head = 0;
+            tail = 0;
+            queue[tail++] = i;
+            while (head < tail) {
+                int current = queue[head++];
+                for (int nextStep : nextSteps[current]) {
+                    if (! visited.get(nextStep)) {
+                        visited.set(nextStep);
+                        queue[tail++] = nextStep;
+                    }
+                }
+            }
+            reachable[i] = visited;
+        }
+
+        // Pair ForEach with Collect: follow the first next step, skipping nested ForEach/Collect pairs
+
+        this.collectSteps = new int[n];
+        for (int i = 0; i < n; i++) {
+            collectSteps[i] = (steps[i] instanceof StepForEach) ? _findCollectStep(i) : NONE;
+        }
+    }
+
+    public int getStepCount() {
+        return steps.length;
+    }
+
+    public Step getStep(int index) {
+        return steps[index];
+    }
+
+    /**
+     * @return NONE if the step does not exist
+     */
+    public int getStepIndex(String stepId) {
+        Integer result = stepId==null ? null : indexes.get(stepId);
+        return result==null ? NONE : result;
+    }
+
+    /**
+     * @return NONE if there's no first step
+     */
+    public int getFirstStep() {
+        return firstStep;
+    }
+
+    /**
+     * @return NONE if there's no exception step
+     */
+    public int getExceptionStep() {
+        return exceptionStep;
+    }
+
+    /**
+     * Empty array indicates the step is the last one.
+     */
+    public int[] getNextSteps(int index) {
+        return nextSteps[index];
+    }
+
+    public int[] getPreviousSteps(int index) {
+        return previousSteps[index];
+    }
+
+    /**
+     * Number of previous steps, i.e. how many inputs a join step waits for.
+     */
+    public int getFanIn(int index) {
+        return fanIn[index];
+    }
+
+    /**
+     * The paired Collect step of a ForEach step.
+     *
+     * @return NONE if the step is not ForEach, or the Collect step is missing
+     */
+    public int getCollectStep(int forEachIndex) {
+        return collectSteps[forEachIndex];
+    }
+
+    /**
+     * All steps, every step is after its previous steps. If the workflow has cycles, the steps in or after
+     * the cycles are left out.
+     */
+    public int[] getTopologicalOrder() {
+        return topologicalOrder;
+    }
+
+    public boolean isAcyclic() {
+        return acyclic;
+    }
+
+    /**
+     * Whether the "to" step can be reached from the "from" step by following the next steps.
+     */
+    public boolean isReachable(int from, int to) {
+        return reachable[from].get(to);
+    }
+
+    //***************************************************************************************
+
+    private int _findCollectStep(int forEachIndex) {
+        int depth = 0;
+        int current = forEachIndex;
+
+        // At most visit every step once, in case of cycles
+        for (int count = 0; count < steps.length; count++) {
+            int[] next = nextSteps[current];
+            if (next.length == 0) return NONE;
+
+            // All steps in a loop should always flow to the Collect step, so take the 0-th item only
+            current = next[0];
+            if (steps[current] instanceof StepForEach) depth++;
+            else if (steps[current] instanceof StepCollect) {
+                if (depth == 0) return current;
+                depth--;
+            }
+        }
+
+        return NONE;
+    }
+
+    private static int[] _toArray(List<Integer> list) {
+        if (list.size() == 0) return _EMPTY;
+
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) result[i] = list.get(i);
+        return result;
+    }
+
+}
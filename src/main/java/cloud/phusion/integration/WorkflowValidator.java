@@ -0,0 +1,152 @@
+package cloud.phusion.integration;
+
+import cloud.phusion.PhusionException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Static analysis of the workflow of an integration.
+ *
+ * It finds problems which otherwise show up only at runtime:
+ * 1. Duplicated step IDs.
+ * 2. Unknown step IDs in "from".
+ * 3. Cycles.
+ * 4. No first step, or multiple first steps (steps without "from", except the exception step).
+ * 5. ForEach step without a matching Collect step, or Collect step without a ForEach step.
+ *
+ * It also finds out the independent branches, which can run concurrently.
+ */
+public class WorkflowValidator {
+
+    private WorkflowValidator() {
+        super();
+    }
+
+    /**
+     * @throws PhusionException if the workflow has any problem
+     */
+    public static void validate(IntegrationDefinition idef) throws Exception {
+        List<String> problems = findProblems(idef);
+
+        if (problems.size() > 0) {
+            throw new PhusionException("WF_INVALID", "Invalid workflow", String.join("; ", problems));
+        }
+    }
+
+    /**
+     * @return descriptions of the problems. Empty list indicates the workflow is valid
+     */
+    public static List<String> findProblems(IntegrationDefinition idef) {
+        List<String> result = new ArrayList<String>();
+
+        Step[] steps = idef.getSteps();
+        WorkflowPlan plan = idef.getWorkflowPlan();
+        if (steps==null || steps.length==0) return result;
+
+        Set<String> ids = new HashSet<String>();
+        List<String> firstSteps = new ArrayList<String>();
+        boolean[] collected = new boolean[steps.length];
+
+        for (Step step : steps) {
+            String id = step.getId();
+            if (! ids.add(id)) result.add("duplicated step: "+id);
+
+            String[] from = step.getFromSteps();
+            if (from==null || from.length==0) {
+                if (! IntegrationDefinition.EXCEPTION_STEP_ID.equals(id)) firstSteps.add(id);
+            }
+            else {
+                for (String fromId : from) {
+                    if (plan.getStepIndex(fromId) == WorkflowPlan.NONE)
+                        result.add("unknown step: "+fromId+" (from step "+id+")");
+                }
+            }
+        }
+
+        if (firstSteps.size() == 0) result.add("no first step");
+        else if (firstSteps.size() > 1) result.add("multiple first steps: "+String.join(",", firstSteps));
+
+        if (! plan.isAcyclic()) {
+            boolean[] ordered = new boolean[steps.length];
+            for (int index : plan.getTopologicalOrder()) ordered[index] = true;
+
+            List<String> cycle = new ArrayList<String>();
+            for (int i = 0; i < steps.length; i++) {
+                if (! ordered[i] && plan.isReachable(i, i)) cycle.add(steps[i].getId());
+            }
+            result.add("cycle among steps: "+String.join(",", cycle));
+        }
+
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i] instanceof StepForEach) {
+                int collect = plan.getCollectStep(i);
+                if (collect == WorkflowPlan.NONE) result.add("no Collect step for ForEach step: "+steps[i].getId());
+                else collected[collect] = true;
+            }
+        }
+
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i] instanceof StepCollect && ! collected[i])
+                result.add("no ForEach step for Collect step: "+steps[i].getId());
+        }
+
+        return result;
+    }
+
+    /**
+     * Group the next steps of a step into independent branches.
+     *
+     * Steps in the same group depend on each other (one is reachable from another, directly or through
+     * other next steps), so they should run in the workflow order; different groups can run concurrently.
+     *
+     * @return groups of step indexes, empty if the step is the last one
+     */
+    public static int[][] getIndependentBranches(WorkflowPlan plan, int stepIndex) {
+        int[] next = plan.getNextSteps(stepIndex);
+        int n = next.length;
+
+        // Union-find over the next steps
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) parent[i] = i;
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i+1; j < n; j++) {
+                if (plan.isReachable(next[i], next[j]) || plan.isReachable(next[j], next[i]))
+                    parent[_find(parent, i)] = _find(parent, j);
+            }
+        }
+
+        List<List<Integer>> groups = new ArrayList<List<Integer>>();
+        int[] groupOfRoot = new int[n];
+        for (int i = 0; i < n; i++) groupOfRoot[i] = -1;
+
+        for (int i = 0; i < n; i++) {
+            int root = _find(parent, i);
+            if (groupOfRoot[root] < 0) {
+                groupOfRoot[root] = groups.size();
+                groups.add(new ArrayList<Integer>());
+            }
+            groups.get(groupOfRoot[root]).add(next[i]);
+        }
+
+        int[][] result = new int[groups.size()][];
+        for (int i = 0; i < result.length; i++) {
+            List<Integer> group = groups.get(i);
+            result[i] = new int[group.size()];
+            for (int j = 0; j < group.size(); j++) result[i][j] = group.get(j);
+        }
+        return result;
+    }
+
+    private static int _find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+}
@@ -3,6 +3,7 @@ package cloud.phusion.protocol.http;
 import cloud.phusion.DataObject;
 
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -60,6 +61,7 @@ public class HttpRequest {
      * Relative URL.
      *
      * If there's parameter value in the path, such as "/object/12345", the relative URL will translate it to parameter name, e.g. "/object/{id}"
+     * (or the raw path can be matched against the templates by PathRouter).
      */
     public String getRelativeUrl() {
         return url;
@@ -87,6 +89,17 @@ public class HttpRequest {
         return parameters;
     }
 
+    /**
+     * Add parameters, e.g. the in-path variables from PathRouter.
+     */
+    public void addParameters(Map<String, String> params) {
+        if (params==null || params.size()==0) return;
+
+        Map<String, String> result = parameters==null ? new HashMap<String, String>() : new HashMap<String, String>(parameters);
+        result.putAll(params);
+        parameters = result;
+    }
+
     public DataObject getBody() {
         return body;
     }
@@ -0,0 +1,314 @@
+package cloud.phusion.protocol.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes raw request paths to the values registered with path templates, by a radix tree.
+ *
+ * A template is made of segments separated by "/". A segment can be:
+ * 1. Static text, e.g. "/orders/list".
+ * 2. Variable: "{id}" matches one non-empty segment, whose value is put into the variables by the name "id".
+ * 3. Wildcard: "*" matches one non-empty segment, without any variable.
+ * 4. Catch-all: "{*rest}" matches the rest of the path (possibly empty, including "/"), it must be the last segment.
+ *
+ * Precedence at each position: static text, then variable or wildcard, then catch-all. If a branch does not
+ * match the rest of the path, the next one is tried. E.g. for "/orders/list", "/orders/{id}" and "/{*path}",
+ * path "/orders/list" matches the first, "/orders/123" the second, and "/orders/123/items" the last.
+ *
+ * Query strings ("?...") are ignored when matching. Variables are extracted in the same pass as the matching,
+ * without regular expressions.
+ *
+ * Changes rebuild the tree at the next match, so it suits the routes which are registered once and matched often.
+ *
+ * It is thread-safe.
+ */
+public class PathRouter<T> {
+
+    private static class _Route<T> {
+        public final String template;
+        public final T value;
+        public final String[] variables; // Names of the variables by position, null for wildcards
+
+        public _Route(String template, T value, String[] variables) {
+            super();
+            this.template = template;
+            this.value = value;
+            this.variables = variables;
+        }
+    }
+
+    private static class _Node<T> {
+        public String prefix = ""; // Static text matched by the node, empty for variable nodes
+        public char[] indices = new char[0]; // First chars of the static children
+        public _Node<T>[] children = _newNodes(0);
+        public _Node<T> variableChild = null;
+        public _Node<T> catchAllChild = null;
+        public _Route<T> route = null;
+
+        public _Node<T> getChild(char c) {
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        public void setChild(_Node<T> child) {
+            char c = child.prefix.charAt(0);
+            for (int i = 0; i < indices.length; i++) {
+                if (indices[i] == c) {
+                    children[i] = child;
+                    return;
+                }
+            }
+
+            indices = Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = c;
+            children = Arrays.copyOf(children, children.length + 1);
+            children[children.length - 1] = child;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> _Node<T>[] _newNodes(int size) {
+            return (_Node<T>[]) new _Node[size];
+        }
+    }
+
+    private final Map<String, T> routes = new LinkedHashMap<String, T>();
+    private volatile _Node<T> root = null; // Immutable once built, for matching
+    private _Node<T> checkingRoot = null; // For checking the new templates, guarded by "this"
+    private volatile int maxVariables = 0;
+
+    /**
+     * Add or replace the route.
+     *
+     * @throws IllegalArgumentException if the template is invalid, or is the same as another one except for the
+     * variable names, e.g. "/a/{id}" and "/a/{name}"
+     */
+    public synchronized void add(String template, T value) {
+        // Check it in a tree not used for matching
+        if (checkingRoot == null) checkingRoot = _build(routes);
+        maxVariables = Math.max(maxVariables, _insert(checkingRoot, template, value));
+
+        routes.put(template, value);
+        root = null;
+    }
+
+    /**
+     * @return the value of the removed route, or null
+     */
+    public synchronized T remove(String template) {
+        T result = routes.remove(template);
+        root = null;
+        checkingRoot = null;
+        return result;
+    }
+
+    public synchronized T get(String template) {
+        return routes.get(template);
+    }
+
+    public synchronized int size() {
+        return routes.size();
+    }
+
+    /**
+     * @param variables to receive the path variables of the matched route, can be null
+     * @return null if not matched
+     */
+    public T match(String path, Map<String, String> variables) {
+        _Route<T> route = _matchRoute(path, variables);
+        return route==null ? null : route.value;
+    }
+
+    /**
+     * @return the template of the matched route, or null
+     */
+    public String matchTemplate(String path, Map<String, String> variables) {
+        _Route<T> route = _matchRoute(path, variables);
+        return route==null ? null : route.template;
+    }
+
+    //***************************************************************************************
+
+    private _Route<T> _matchRoute(String path, Map<String, String> variables) {
+        if (path == null) return null;
+
+        _Node<T> node = root;
+        if (node == null) {
+            synchronized (this) {
+                if (root == null) root = _build(routes);
+                node = root;
+            }
+        }
+
+        int end = path.indexOf('?');
+        if (end < 0) end = path.length();
+
+        String[] values = new String[maxVariables];
+        _Route<T> result = _match(node, path, 0, end, values, 0);
+
+        if (result!=null && variables!=null) {
+            for (int i = 0; i < result.variables.length; i++) {
+                if (result.variables[i] != null) variables.put(result.variables[i], values[i]);
+            }
+        }
+        return result;
+    }
+
+    private static <T> _Route<T> _match(_Node<T> node, String path, int pos, int end, String[] values, int depth) {
+        if (pos==end && node.route!=null) return node.route;
+
+        if (pos < end) {
+            _Node<T> child = node.getChild(path.charAt(pos));
+            if (child!=null && child.prefix.length()<=end-pos && path.startsWith(child.prefix, pos)) {
+                _Route<T> result = _match(child, path, pos + child.prefix.length(), end, values, depth);
+                if (result != null) return result;
+            }
+
+            if (node.variableChild != null) {
+                int segmentEnd = path.indexOf('/', pos);
+                if (segmentEnd<0 || segmentEnd>end) segmentEnd = end;
+
+                if (segmentEnd > pos) {
+                    _Route<T> result = _match(node.variableChild, path, segmentEnd, end, values, depth+1);
+                    if (result != null) {
+                        values[depth] = path.substring(pos, segmentEnd);
+                        return result;
+                    }
+                }
+            }
+        }
+
+        if (node.catchAllChild != null) {
+            values[depth] = path.substring(pos, end);
+            return node.catchAllChild.route;
+        }
+
+        return null;
+    }
+
+    private _Node<T> _build(Map<String, T> routes) {
+        _Node<T> result = new _Node<T>();
+        int max = 0;
+
+        for (Map.Entry<String, T> entry : routes.entrySet()) {
+            max = Math.max(max, _insert(result, entry.getKey(), entry.getValue()));
+        }
+
+        maxVariables = Math.max(maxVariables, max);
+        return result;
+    }
+
+    /**
+     * @return number of variables in the template
+     */
+    private static <T> int _insert(_Node<T> root, String template, T value) {
+        if (template == null) throw new IllegalArgumentException("Path template is null");
+
+        _Node<T> node = root;
+        List<String> variables = new ArrayList<String>();
+        int pos = 0;
+        int len = template.length();
+
+        while (pos < len) {
+            boolean segmentStart = pos==0 || template.charAt(pos-1)=='/';
+            char c = template.charAt(pos);
+
+            if (segmentStart && (c=='{' || (c=='*' && (pos+1==len || template.charAt(pos+1)=='/')))) {
+                String name;
+                int next;
+
+                if (c == '*') {
+                    name = null;
+                    next = pos + 1;
+                }
+                else {
+                    int close = template.indexOf('}', pos);
+                    if (close < 0) throw new IllegalArgumentException("Invalid path template: "+template);
+                    name = template.substring(pos+1, close);
+                    next = close + 1;
+                }
+
+                if (next<len && template.charAt(next)!='/')
+                    throw new IllegalArgumentException("Variable must be a whole segment: "+template);
+
+                if (name!=null && name.startsWith("*")) {
+                    if (next < len) throw new IllegalArgumentException("Catch-all must be the last segment: "+template);
+                    if (node.catchAllChild == null) node.catchAllChild = new _Node<T>();
+                    node = node.catchAllChild;
+                    name = name.substring(1);
+                }
+                else {
+                    if (node.variableChild == null) node.variableChild = new _Node<T>();
+                    node = node.variableChild;
+                }
+
+                if (name!=null && name.length()==0) name = null;
+                variables.add(name);
+                pos = next;
+            }
+            else {
+                int next = pos;
+                while (next < len) {
+                    char ch = template.charAt(next);
+                    if (ch=='{' || ch=='}') {
+                        if (template.charAt(next-1) != '/' || ch == '}')
+                            throw new IllegalArgumentException("Variable must be a whole segment: "+template);
+                        break;
+                    }
+                    if (ch=='*' && template.charAt(next-1)=='/' && (next+1==len || template.charAt(next+1)=='/')) break;
+                    next++;
+                }
+
+                node = _insertStatic(node, template.substring(pos, next));
+                pos = next;
+            }
+        }
+
+        if (node.route!=null && ! node.route.template.equals(template))
+            throw new IllegalArgumentException("Path template conflicts with "+node.route.template+": "+template);
+
+        node.route = new _Route<T>(template, value, variables.toArray(new String[0]));
+        return variables.size();
+    }
+
+    /**
+     * @return the node where the text ends
+     */
+    private static <T> _Node<T> _insertStatic(_Node<T> parent, String text) {
+        while (text.length() > 0) {
+            _Node<T> child = parent.getChild(text.charAt(0));
+
+            if (child == null) {
+                child = new _Node<T>();
+                child.prefix = text;
+                parent.setChild(child);
+                return child;
+            }
+
+            int common = 0;
+            int max = Math.min(text.length(), child.prefix.length());
+            while (common<max && text.charAt(common)==child.prefix.charAt(common)) common++;
+
+            if (common < child.prefix.length()) {
+                // Split the child
+                _Node<T> middle = new _Node<T>();
+                middle.prefix = child.prefix.substring(0, common);
+                child.prefix = child.prefix.substring(common);
+                middle.setChild(child);
+                parent.setChild(middle);
+                child = middle;
+            }
+
+            parent = child;
+            text = text.substring(common);
+        }
+
+        return parent;
+    }
+
+}
@@ -1,5 +1,6 @@
 package cloud.phusion.storage;
 
+import cloud.phusion.BinaryCodec;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
 
@@ -34,6 +35,22 @@ public class Record {
         }
     }
 
+    /**
+     * Create a record from binary format (see BinaryCodec), or from UTF-8 JSON text if it is not binary.
+     */
+    public static Record fromBinary(byte[] bin) throws Exception {
+        Record result = new Record();
+
+        Object doc = BinaryCodec.isBinary(bin) ? BinaryCodec.decode(bin) : JSON.parseObject(bin);
+        if (doc instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) doc).entrySet()) {
+                result.data.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        }
+
+        return result;
+    }
+
     public Object getValue(String field) {
         return data.get(field);
     }
@@ -142,4 +159,8 @@ public class Record {
         return JSON.toJSONString(data);
     }
 
+    public byte[] toBinary() {
+        return BinaryCodec.encode(data);
+    }
+
 }
@@ -0,0 +1,139 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
+import cloud.phusion.integration.CompiledCondition;
+import cloud.phusion.integration.ConditionEvaluator;
+import cloud.phusion.integration.IntegrationDefinition;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CompiledConditionTest {
+
+    private DataObject msg;
+    private DataObject config;
+
+    @Before
+    public void setUp() {
+        msg = new DataObject("{\"type\":\"order\",\"amount\":120.5,\"paid\":false,\"items\":[{\"sku\":\"A1\"}],\"tags\":null}");
+        config = new DataObject("{\"threshold\":100,\"types\":[\"order\",\"refund\"],\"enabled\":true}");
+    }
+
+    @Test
+    public void testExpression() throws Exception {
+        assertTrue( _test("msg.type == 'order'") );
+        assertFalse( _test("msg.type != \"order\"") );
+        assertTrue( _test("msg.amount > config.threshold && !msg.paid") );
+        assertTrue( _test("msg.amount >= 120.5 && msg.amount < 121") );
+        assertTrue( _test("msg.items[0].sku == 'A1' && msg['type'] == 'order'") );
+        assertTrue( _test("msg.type in ['refund', 'order']") );
+        assertFalse( _test("msg.type in ['refund']") );
+        assertTrue( _test("msg.missing == null && !msg.tags && !msg.items[5]") );
+        assertTrue( _test("(msg.paid || config.enabled) && msg.amount") );
+        assertTrue( _test("msg.amount == '120.5'") );
+        assertFalse( _test("msg.amount === '120.5'") );
+        assertTrue( _test("") );
+
+        // Documented differences from JavaScript
+        assertTrue( _test("'a' in ['a']") );
+        assertFalse( _test("'' == 0") );
+        assertFalse( _test("null >= 0") );
+        assertFalse( _test("true == 1") );
+
+        assertTrue( CompiledCondition.compile(null).test(msg, config) );
+        assertFalse( CompiledCondition.compile("msg.amount > 1").test((DataObject) null, null) );
+    }
+
+    @Test
+    public void testVars() throws Exception {
+        JSONObject condition = new JSONObject();
+        condition.put("expression", "t == 'order' && a > limit");
+        condition.put("vars", JSONObject.of("t", "msg.type", "a", "$.msg.amount", "limit", "config.threshold"));
+
+        assertTrue( CompiledCondition.compile(condition).test(msg, config) );
+        assertTrue( CompiledCondition.compile(condition.toJSONString()).test(msg, config) );
+    }
+
+    @Test
+    public void testBind() throws Exception {
+        CompiledCondition condition = CompiledCondition.compile("config.enabled && msg.amount > config.threshold");
+        CompiledCondition bound = condition.bind(config);
+
+        assertTrue( bound.test(msg, null) );
+        assertFalse( bound.test(new DataObject("{\"amount\":1}"), null) );
+
+        CompiledCondition disabled = condition.bind(new DataObject("{\"enabled\":false}"));
+        assertTrue( disabled.isAlwaysFalse() );
+        assertTrue( CompiledCondition.compile("msg.a || config.enabled").bind(config).isAlwaysTrue() );
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String[] invalid = {"msg.type ==", "foo == 1", "(msg.a", "msg.a == 'x", "msg.a # 1"};
+        for (String expression : invalid) {
+            try {
+                CompiledCondition.compile(expression);
+                fail(expression);
+            } catch (PhusionException ex) {
+                assertEquals( "COND_INVALID", ex.getCode() );
+            }
+        }
+
+        IntegrationDefinition it = new IntegrationDefinition();
+        it.setStartCondition("foo(msg) == 1");
+        assertNull( it.getCompiledStartCondition() );
+
+        it.setStartCondition("msg.type == 'order'");
+        assertTrue( it.getCompiledStartCondition().test(msg, config) );
+    }
+
+    @Test
+    public void testEvaluator() throws Exception {
+        List<String> conditions = Arrays.asList(
+                "msg.type == 'order'",
+                "msg.amount > config.threshold",
+                "msg.type == 'refund'",
+                "msg.type == 'order'",
+                "{\"expression\":\"a\",\"vars\":{\"a\":\"config.enabled\"}}"
+        );
+
+        boolean[] result = ConditionEvaluator.evaluate(conditions, msg, config);
+        assertArrayEquals( new boolean[]{true, true, false, true, true}, result );
+
+        // Scripts go to the fallback, once for identical ones
+        AtomicInteger calls = new AtomicInteger();
+        result = ConditionEvaluator.evaluate(Arrays.asList("isVip(msg)", "msg.paid", "isVip(msg)"), msg, config,
+                (condition, m, c) -> calls.incrementAndGet() > 0);
+        assertArrayEquals( new boolean[]{true, false, true}, result );
+        assertEquals( 1, calls.get() );
+
+        // Without compiling, all conditions go to the evaluator
+        calls.set(0);
+        result = ConditionEvaluator.evaluateEach(Arrays.asList("'a' in ['a']", "isVip(msg)", "'a' in ['a']"), msg, config,
+                (condition, m, c) -> calls.incrementAndGet() > 1);
+        assertArrayEquals( new boolean[]{false, true, false}, result );
+        assertEquals( 2, calls.get() );
+
+        try {
+            ConditionEvaluator.evaluate(Arrays.asList("isVip(msg)"), msg, config);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals( "COND_INVALID", ex.getCode() );
+        }
+    }
+
+    private boolean _test(String expression) throws Exception {
+        return CompiledCondition.compile(expression).test(msg, config);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+}
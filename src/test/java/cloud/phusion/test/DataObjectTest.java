@@ -0,0 +1,237 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.BinaryCodec;
+import cloud.phusion.DataObject;
+import cloud.phusion.integration.Transaction;
+import cloud.phusion.storage.Record;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+public class DataObjectTest {
+
+    @Before
+    public void setUp() {
+    }
+
+    @Test
+    public void testBytes() throws Exception {
+        byte[] bytes = "xx{\"name\":\"\u5f20\u4e09\",\"items\":[1,2]}yy".getBytes(StandardCharsets.UTF_8);
+        DataObject obj = new DataObject(bytes, 2, bytes.length-4);
+
+        assertEquals("\u5f20\u4e09", obj.getJSONObject().getString("name"));
+        assertEquals(2, obj.getJSONObject().getJSONArray("items").size());
+        assertNull(obj.getJSONArray());
+        assertEquals("{\"name\":\"\u5f20\u4e09\",\"items\":[1,2]}", obj.getString());
+        assertEquals(bytes.length-4, obj.toBytes().length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        obj.writeTo(out);
+        assertEquals(obj.getString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        DataObject arr = new DataObject(ByteBuffer.wrap("[1,2,3]".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(3, arr.getJSONArray().size());
+        assertNull(arr.getJSONObject());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put("{\"a\":1}".getBytes(StandardCharsets.UTF_8)).flip();
+        assertEquals(new Integer(1), new DataObject(direct).getJSONObject().getInteger("a"));
+
+        DataObject json = new DataObject("{\"a\":1}");
+        json.getJSONObject().put("b", 2);
+        json.setData(json.getJSONObject());
+        out.reset();
+        json.writeTo(out);
+        assertEquals("{\"a\":1,\"b\":2}", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertArrayEquals(out.toByteArray(), json.toBytes());
+    }
+
+    @Test
+    public void testFreeze() throws Exception {
+        DataObject notJson = new DataObject("not a json");
+        assertNull(notJson.getJSONObject());
+        assertNull(notJson.getJSONObject());
+
+        final DataObject frozen = new DataObject("{\"order\":{\"id\":7}}").freeze();
+        assertTrue(frozen.isFrozen());
+        assertSame(frozen, frozen.freeze());
+        assertNull(frozen.getJSONArray());
+
+        Thread[] threads = new Thread[4];
+        final Object[] results = new Object[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(() -> results[index] = frozen.getJSONObject());
+            threads[i].start();
+        }
+        for (Thread t : threads) t.join();
+        for (Object r : results) assertSame(results[0], r);
+        assertEquals(new Integer(7), frozen.getJSONObject().getJSONObject("order").getInteger("id"));
+
+        assertNull(new DataObject("[1,").freeze().getJSONArray());
+
+        try {
+            frozen.setData("{}");
+            fail();
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
+
+    @Test
+    public void testPath() throws Exception {
+        String doc = "{\"tenant\":\"t1\",\"order\":{\"id\":12345,\"items\":[{\"sku\":\"A\"},{\"sku\":\"B\"}]}}";
+
+        DataObject str = new DataObject(doc);
+        assertEquals(12345, ((Number) str.getPath("$.order.id")).intValue());
+        assertEquals("t1", str.getPathString("$.tenant"));
+        assertEquals("B", str.getPathString("$.order.items[1].sku"));
+        assertNull(str.getPath("$.none"));
+
+        DataObject bytes = new DataObject(doc.getBytes(StandardCharsets.UTF_8));
+        assertEquals("12345", bytes.getPathString("$.order.id"));
+
+        DataObject parsed = new DataObject(doc);
+        parsed.getJSONObject().put("tenant", "t2");
+        assertEquals("t2", parsed.getPathString("$.tenant"));
+
+        assertEquals("t1", new DataObject(doc).freeze().getPathString("$.tenant"));
+        assertEquals("t2", new DataObject(parsed.getJSONObject()).freeze().getPathString("$.tenant"));
+        assertNull(new DataObject("not a json").getPath("$.tenant"));
+    }
+
+    @Test
+    public void testElements() throws Exception {
+        String doc = " [ {\"id\":1,\"tags\":[\"a]\",\"b\\\"\"]}, 12 ,\"x,y\",null,[1,[2]],true,{}] ";
+        String[] expected = new String[]{"{\"id\":1,\"tags\":[\"a]\",\"b\\\"\"]}", "12", "\"x,y\"", "null", "[1,[2]]", "true", "{}"};
+
+        assertArrayEquals(expected, _toStrings(new DataObject(doc).elements()));
+        assertArrayEquals(expected, _toStrings(new DataObject(doc.getBytes(StandardCharsets.UTF_8)).elements()));
+        assertArrayEquals(expected, _toStrings(DataObject.elements(new ByteArrayInputStream(doc.getBytes(StandardCharsets.UTF_8)))));
+        assertEquals(7, _toStrings(new DataObject(doc).freeze().elements()).length);
+
+        DataObject parsed = new DataObject("[{\"id\":1},2]");
+        parsed.getJSONArray();
+        Iterator<DataObject> it = parsed.elements();
+        assertEquals(new Integer(1), it.next().getJSONObject().getInteger("id"));
+        assertEquals("2", it.next().getString());
+        assertFalse(it.hasNext());
+
+        assertEquals(0, _toStrings(new DataObject("[]").elements()).length);
+
+        try {
+            new DataObject("{\"a\":1}").elements().hasNext();
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    private String[] _toStrings(Iterator<DataObject> it) {
+        List<String> result = new ArrayList<String>();
+        while (it.hasNext()) result.add(it.next().getString());
+        return result.toArray(new String[]{});
+    }
+
+    @Test
+    public void testStringPreview() throws Exception {
+        JSONObject obj = new JSONObject();
+        obj.put("id", 1);
+        obj.put("none", null);
+        obj.put("text", "\u5f20\u4e09\"\n");
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < 1000; i++) items.add(i);
+        obj.put("items", items);
+
+        String full = obj.toJSONString();
+
+        for (int len : new int[]{10, 30, 50, full.length()-1, full.length(), full.length()+1}) {
+            String expected = full.length()>len ? full.substring(0, len-4) + " ..." : full;
+            assertEquals(expected, new DataObject(obj).getString(len));
+            assertEquals(expected, new DataObject(full).getString(len));
+            assertEquals(expected, new DataObject(full.getBytes(StandardCharsets.UTF_8)).getString(len));
+            assertEquals(expected, new DataObject(obj).freeze().getString(len));
+        }
+
+        assertNull(new DataObject(null).getString(10));
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        String doc = "{\"id\":1,\"name\":\"\u5f20\u4e09\",\"items\":[{\"price\":1.5},null,true]}";
+
+        byte[] bin = new DataObject(doc).toBinary();
+        assertTrue(BinaryCodec.isBinary(bin));
+        assertEquals(JSON.parseObject(doc), DataObject.fromBinary(bin).getJSONObject());
+        assertEquals(JSON.parseObject(doc), DataObject.fromBinary(doc.getBytes(StandardCharsets.UTF_8)).getJSONObject());
+        assertEquals("[1,2]", DataObject.fromBinary(new DataObject("[1,2]").toBinary()).getString());
+        assertEquals("not a json", DataObject.fromBinary(new DataObject("not a json").toBinary()).getString());
+
+        // Frozen objects keep their data in their own fields
+        assertEquals(JSON.parseObject(doc), DataObject.fromBinary(new DataObject(doc).freeze().toBinary()).getJSONObject());
+        assertEquals("not a json", DataObject.fromBinary(new DataObject("not a json").freeze().toBinary()).getString());
+        assertNull(new DataObject((Object) null).freeze().toBinary());
+
+        Record record = new Record(doc);
+        assertEquals(record.toJSONString(), Record.fromBinary(record.toBinary()).toJSONString());
+        assertEquals(record.toJSONString(), Record.fromBinary(record.toJSONString().getBytes(StandardCharsets.UTF_8)).toJSONString());
+
+        Transaction trx = new Transaction("ItA", "T1", "02", "01", null);
+        trx.setMessage(new DataObject(doc));
+        trx.setIntegrationConfig(new DataObject("{\"a\":1}"));
+        trx.setProperty("count", 3);
+        trx.setProperty("rate", 0.5);
+
+        Transaction trx2 = new Transaction("ItA", "T1", "01", null);
+        trx2.updateFromBinary(trx.toBinary());
+        assertEquals(trx.toJSONString(), trx2.toJSONString());
+
+        Transaction trx3 = new Transaction("ItA", "T1", "01", null);
+        trx3.updateFromBinary(trx.toJSONString().getBytes(StandardCharsets.UTF_8));
+        assertEquals(trx.toJSONString(), trx3.toJSONString());
+    }
+
+    @Test
+    public void testCopyOnWrite() throws Exception {
+        String doc = "{\"id\":1,\"order\":{\"no\":\"A\",\"items\":[{\"qty\":1},{\"qty\":2}]},\"big\":{\"x\":1}}";
+        DataObject source = new DataObject(doc).freeze();
+
+        DataObject branch1 = source.copyOnWrite();
+        DataObject branch2 = source.copyOnWrite();
+
+        branch1.getJSONObject().put("id", 2);
+        branch1.getJSONObject().getJSONObject("order").getJSONArray("items").getJSONObject(1).put("qty", 5);
+        branch2.getJSONObject().getJSONObject("order").put("no", "B");
+
+        assertEquals(JSON.parseObject(doc), source.getJSONObject());
+        assertEquals(new Integer(2), branch1.getJSONObject().getInteger("id"));
+        assertEquals(new Integer(1), branch2.getJSONObject().getInteger("id"));
+        assertEquals(5, branch1.getJSONObject().getJSONObject("order").getJSONArray("items").getJSONObject(1).getIntValue("qty"));
+        assertEquals(2, branch2.getJSONObject().getJSONObject("order").getJSONArray("items").getJSONObject(1).getIntValue("qty"));
+        assertEquals("A", branch1.getJSONObject().getJSONObject("order").getString("no"));
+        assertEquals("B", branch2.getJSONObject().getJSONObject("order").getString("no"));
+
+        // Untouched subtrees are shared
+        assertSame(source.getJSONObject().get("big"), branch1.getJSONObject().values().toArray()[2]);
+
+        JSONObject changed = JSON.parseObject(doc);
+        changed.put("id", 2);
+        assertEquals(changed.toJSONString().length(), branch1.getString().length());
+
+        assertEquals("x", new DataObject("x").copyOnWrite().getString());
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+}
@@ -0,0 +1,56 @@
+package cloud.phusion.test;
+
+import cloud.phusion.Context;
+import cloud.phusion.DataObject;
+import cloud.phusion.application.Application;
+import cloud.phusion.test.util.ExampleApp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Compares the dispatch of outbound endpoints by reflection and by bound method handles (as HttpBaseApplication
+ * does), and measures the whole callOutboundEndpoint().
+ *
+ * Not a unit test: run main() with the test classpath.
+ */
+public class EndpointDispatchBenchmark {
+
+    private static final int _ROUNDS = 5;
+    private static final int _CALLS = 2000000;
+
+    private static Object sink;
+
+    public static void main(String[] args) throws Throwable {
+        ExampleApp app = new ExampleApp();
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+        app.addEndpointForIntegration("queryOrders", "ItA", "", new DataObject("{}"));
+
+        DataObject msg = new DataObject("{}");
+
+        Method method = ExampleApp.class.getMethod("queryOrders", DataObject.class, String.class, String.class, Context.class);
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method).bindTo(app).asType(
+                MethodType.methodType(Object.class, Object.class, String.class, String.class, Context.class));
+
+        for (int round = 0; round < _ROUNDS; round++) {
+            long t = System.nanoTime();
+            for (int i = 0; i < _CALLS; i++) sink = method.invoke(app, msg, "ItA", null, null);
+            long reflection = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            for (int i = 0; i < _CALLS; i++) sink = (Object) handle.invokeExact((Object) msg, "ItA", (String) null, (Context) null);
+            long methodHandle = System.nanoTime() - t;
+
+            t = System.nanoTime();
+            for (int i = 0; i < _CALLS; i++) sink = ((Application) app).callOutboundEndpoint("queryOrders", "ItA", msg, null);
+            long call = System.nanoTime() - t;
+
+            System.out.printf("Round %d: Method.invoke %.1fns, MethodHandle %.1fns, callOutboundEndpoint %.1fns%n", round,
+                    (double) reflection / _CALLS, (double) methodHandle / _CALLS, (double) call / _CALLS);
+        }
+    }
+
+}
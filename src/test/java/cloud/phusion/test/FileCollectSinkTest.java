@@ -0,0 +1,97 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.PhusionException;
+import cloud.phusion.integration.FileCollectSink;
+import cloud.phusion.storage.FileStorage;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class FileCollectSinkTest {
+
+    private ExecutorService writers;
+
+    @Before
+    public void setUp() {
+        writers = Executors.newCachedThreadPool();
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        FileCollectSink sink = new FileCollectSink(_storage(content -> {
+            byte[] b = new byte[1024];
+            int n;
+            while ((n = content.read(b)) >= 0) file.write(b, 0, n);
+        }), "out.json", writers, 5000, null);
+
+        for (int i = 0; i < 3; i++) {
+            JSONObject item = new JSONObject();
+            item.put("id", i);
+            sink.write(item);
+        }
+
+        assertEquals(3, sink.close().getJSONObject().getIntValue("count"));
+        assertEquals("[{\"id\":0},{\"id\":1},{\"id\":2}]", new String(file.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStuckStorage() throws Exception {
+        CountDownLatch interrupted = new CountDownLatch(1);
+        FileCollectSink sink = new FileCollectSink(_storage(content -> {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException ex) {
+                interrupted.countDown();
+                throw ex;
+            }
+        }), "out.json", writers, 200, null);
+
+        sink.write(new JSONObject());
+
+        // Gives up instead of waiting forever, and releases the writer
+        long t = System.nanoTime();
+        try {
+            sink.close();
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("WF_SINK_TIMEOUT", ex.getCode());
+        }
+        assertTrue(System.nanoTime() - t < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    private interface _Saver {
+        void save(InputStream content) throws Exception;
+    }
+
+    /**
+     * File storage which only supports saveToFile(path, content, ctx).
+     */
+    private static FileStorage _storage(_Saver saver) {
+        return (FileStorage) Proxy.newProxyInstance(FileStorage.class.getClassLoader(), new Class<?>[]{FileStorage.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("saveToFile") && args.length==3 && args[1] instanceof InputStream) {
+                        saver.save((InputStream) args[1]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    @After
+    public void tearDown() {
+        writers.shutdownNow();
+    }
+
+}
@@ -2,19 +2,30 @@ package cloud.phusion.test;
 
 import static org.junit.Assert.*;
 
+import cloud.phusion.Context;
 import cloud.phusion.DataObject;
 import cloud.phusion.application.Application;
+import cloud.phusion.application.CircuitBreaker;
+import cloud.phusion.application.CircuitState;
 import cloud.phusion.application.ConnectionStatus;
+import cloud.phusion.application.EndpointTable;
+import cloud.phusion.application.InboundEndpoint;
 import cloud.phusion.ExecStatus;
+import cloud.phusion.PhusionException;
 import cloud.phusion.protocol.http.HttpMethod;
 import cloud.phusion.protocol.http.HttpRequest;
 import cloud.phusion.protocol.http.HttpResponse;
 import cloud.phusion.storage.FileStorage;
 import cloud.phusion.test.util.ExampleApp;
+import com.alibaba.fastjson2.JSON;
 import org.junit.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public class HttpBaseApplicationTest {
 
@@ -105,6 +116,296 @@ public class HttpBaseApplicationTest {
         assertEquals("{\"status\":\"OK\"}", result.getString());
     }
 
+    @Test
+    public void testCallLimit() throws Exception {
+        Application app = new ExampleApp();
+        app.setId("limited");
+        app.init(new DataObject("{}"), null);
+
+        app.start(null);
+        app.addEndpointForIntegration("queryOrders", "ItA", "Conn1",
+                new DataObject("{\"callLimitPerSecond\":5,\"callLimitMode\":\"reject\"}"));
+
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        for (int i = 0; i < 5; i++) app.callOutboundEndpoint("queryOrders", "ItA", new DataObject("{}"), null);
+
+        try {
+            app.callOutboundEndpoint("queryOrders", "ItA", new DataObject("{}"), null);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("EP_LIMIT", ex.getCode());
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        Application app = new ExampleApp();
+        app.setId("breaker");
+        app.init(new DataObject("{}"), null);
+
+        app.start(null);
+        app.addEndpointForIntegration("queryPartner", "ItA", "Conn1", new DataObject("{\"breakerFailureRate\":50," +
+                "\"breakerWindowSize\":4,\"breakerMinCalls\":4,\"breakerOpenTime\":100,\"breakerHalfOpenCalls\":1}"));
+        app.addEndpointForIntegration("queryPartner", "ItB", "Conn1", new DataObject("{}"));
+
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        assertEquals(CircuitState.Closed, app.getCircuitState("queryPartner", "Conn1"));
+        assertEquals(CircuitState.None, app.getCircuitState("queryOrders", "Conn1"));
+
+        DataObject fail = new DataObject("{\"fail\":true}");
+        DataObject ok = new DataObject("{}");
+
+        app.callOutboundEndpoint("queryPartner", "ItA", ok, null);
+        app.callOutboundEndpoint("queryPartner", "ItA", ok, null);
+        app.callOutboundEndpoint("queryPartner", "ItA", fail, null);
+        assertEquals(CircuitState.Closed, app.getCircuitState("queryPartner", "Conn1"));
+        app.callOutboundEndpoint("queryPartner", "ItA", fail, null);
+        assertEquals(CircuitState.Open, app.getCircuitState("queryPartner", "Conn1"));
+
+        try {
+            app.callOutboundEndpoint("queryPartner", "ItA", ok, null);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("EP_OPEN", ex.getCode());
+        }
+
+        // The breaker is shared by all integrations calling the endpoint through the connection
+        try {
+            app.callOutboundEndpoint("queryPartner", "ItB", ok, null);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("EP_OPEN", ex.getCode());
+        }
+
+        Thread.sleep(150);
+        assertEquals(CircuitState.HalfOpen, app.getCircuitState("queryPartner", "Conn1"));
+        app.callOutboundEndpoint("queryPartner", "ItA", fail, null);
+        assertEquals(CircuitState.Open, app.getCircuitState("queryPartner", "Conn1"));
+
+        Thread.sleep(150);
+        app.callOutboundEndpoint("queryPartner", "ItA", ok, null);
+        assertEquals(CircuitState.Closed, app.getCircuitState("queryPartner", "Conn1"));
+    }
+
+    @Test
+    public void testCircuitBreakerStaleCompletion() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 50, 0, 0, 50, 1);
+
+        long slowCall = breaker.tryAcquire();
+        breaker.onComplete(breaker.tryAcquire(), true, 0);
+        breaker.onComplete(breaker.tryAcquire(), true, 0);
+        assertEquals(CircuitState.Open, breaker.getState());
+        assertTrue(breaker.tryAcquire() < 0);
+
+        Thread.sleep(80);
+        long probe = breaker.tryAcquire();
+        assertTrue(probe >= 0);
+        assertEquals(CircuitState.HalfOpen, breaker.getState());
+
+        // Admitted while closed, it is neither a probe nor in the window
+        breaker.onComplete(slowCall, true, 0);
+        assertEquals(CircuitState.HalfOpen, breaker.getState());
+
+        breaker.onComplete(probe, false, 0);
+        assertEquals(CircuitState.Closed, breaker.getState());
+    }
+
+    @Test
+    public void testBulkhead() throws Exception {
+        Application app = new ExampleApp();
+        app.setId("bulkhead");
+        app.init(new DataObject("{}"), null);
+
+        app.start(null);
+        app.addEndpointForIntegration("queryPartner", "ItA", "Conn1", new DataObject("{\"bulkheadMaxCalls\":1}"));
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        Thread slow = new Thread(() -> {
+            try {
+                app.callOutboundEndpoint("queryPartner", "ItA", new DataObject("{\"sleep\":300}"), null);
+            } catch (Exception ex) {
+            }
+        });
+        slow.start();
+        Thread.sleep(100);
+
+        try {
+            app.callOutboundEndpoint("queryPartner", "ItA", new DataObject("{}"), null);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals("EP_BUSY", ex.getCode());
+        }
+
+        slow.join();
+        assertNotNull(app.callOutboundEndpoint("queryPartner", "ItA", new DataObject("{}"), null));
+    }
+
+    @Test
+    public void testOutboundEndpointError() throws Exception {
+        Application app = new ExampleApp();
+        app.init(new DataObject("{}"), null);
+
+        app.start(null);
+        app.addEndpointForIntegration("queryPartner", "ItA", "Conn1", new DataObject("{\"bulkheadMaxCalls\":1," +
+                "\"breakerFailureRate\":50,\"breakerWindowSize\":1,\"breakerMinCalls\":1,\"breakerOpenTime\":100," +
+                "\"breakerHalfOpenCalls\":1}"));
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        DataObject error = new DataObject("{\"error\":true}");
+
+        try {
+            app.callOutboundEndpoint("queryPartner", "ItA", error, null);
+            fail();
+        } catch (AssertionError ex) {
+            assertEquals("Partner broken", ex.getMessage());
+        }
+        assertEquals(CircuitState.Open, app.getCircuitState("queryPartner", "Conn1"));
+
+        // The probe fails by an error too, the breaker and bulkhead are still released
+        Thread.sleep(150);
+        try {
+            app.callOutboundEndpoint("queryPartner", "ItA", error, null);
+            fail();
+        } catch (AssertionError ex) {
+        }
+        assertEquals(CircuitState.Open, app.getCircuitState("queryPartner", "Conn1"));
+
+        Thread.sleep(150);
+        assertNotNull(app.callOutboundEndpoint("queryPartner", "ItA", new DataObject("{}"), null));
+        assertEquals(CircuitState.Closed, app.getCircuitState("queryPartner", "Conn1"));
+    }
+
+    @Test
+    public void testOutboundEndpointAsync() throws Exception {
+        Application app = new ExampleApp();
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+
+        app.addEndpointForIntegration("queryPartner", "ItA", "Conn1", new DataObject("{}"));
+        app.addEndpointForIntegration("queryPartnerAsync", "ItA", "Conn1", new DataObject("{}"));
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        DataObject slow = new DataObject("{\"sleep\":200}");
+        List<CompletableFuture<DataObject>> futures = new ArrayList<CompletableFuture<DataObject>>();
+
+        long t = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            futures.add(app.callOutboundEndpointAsync(i%2==0 ? "queryPartner" : "queryPartnerAsync", "ItA", slow, null));
+        }
+        assertTrue(System.currentTimeMillis() - t < 200);
+
+        for (CompletableFuture<DataObject> future : futures) {
+            assertEquals("OK", future.get().getJSONObject().getString("status"));
+        }
+        assertTrue(System.currentTimeMillis() - t < 1000);
+
+        // Asynchronous endpoint methods also work for synchronous calls
+        assertNotNull(app.callOutboundEndpoint("queryPartnerAsync", "ItA", new DataObject("{}"), null));
+
+        // Without context, failures are ignored as the synchronous calls
+        assertNull(app.callOutboundEndpointAsync("queryPartnerAsync", "ItA", new DataObject("{\"fail\":true}"), null).get());
+    }
+
+    @Test
+    public void testOutboundEndpointBatch() throws Exception {
+        Application app = new ExampleApp();
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+
+        app.addEndpointForIntegration("queryPartnerBatch", "ItA", "Conn1", new DataObject("{\"batchMaxSize\":100}"));
+        app.addEndpointForIntegration("queryPartnerBatch", "ItB", "Conn1",
+                new DataObject("{\"batchMaxSize\":10,\"batchLingerTime\":50}"));
+        app.addEndpointForIntegration("queryOrders", "ItA", "Conn1", new DataObject("{}"));
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        List<DataObject> msgs = new ArrayList<DataObject>();
+        for (int i = 0; i < 250; i++) msgs.add(new DataObject("{\"id\":" + i + "}"));
+
+        ExampleApp.batchCalls.set(0);
+        List<DataObject> result = app.callOutboundEndpointBatch("queryPartnerBatch", "ItA", msgs, null);
+        assertEquals(250, result.size());
+        assertEquals(3, ExampleApp.batchCalls.get());
+        for (int i = 0; i < 250; i++) assertEquals(i, result.get(i).getJSONObject().getIntValue("id"));
+
+        // Non-batch endpoints are called one by one
+        assertEquals(2, app.callOutboundEndpointBatch("queryOrders", "ItA", msgs.subList(0, 2), null).size());
+
+        // Single calls are grouped by the micro-batcher
+        ExampleApp.batchCalls.set(0);
+        List<CompletableFuture<DataObject>> futures = new ArrayList<CompletableFuture<DataObject>>();
+        for (int i = 0; i < 30; i++) futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItB", msgs.get(i), null));
+
+        for (int i = 0; i < 30; i++) assertEquals(i, futures.get(i).get().getJSONObject().getIntValue("id"));
+        assertTrue(ExampleApp.batchCalls.get() >= 3 && ExampleApp.batchCalls.get() < 10);
+
+        DataObject single = app.callOutboundEndpoint("queryPartnerBatch", "ItA", msgs.get(7), null);
+        assertEquals(7, single.getJSONObject().getIntValue("id"));
+        assertEquals(1, single.getJSONObject().getIntValue("batchSize"));
+    }
+
+    @Test
+    public void testOutboundEndpointBatchSettings() throws Exception {
+        Application app = new ExampleApp();
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+
+        app.addEndpointForIntegration("queryPartnerBatch", "ItA", "Conn1",
+                new DataObject("{\"batchMaxSize\":2,\"batchLingerTime\":1000}"));
+        app.addEndpointForIntegration("queryPartnerBatch", "ItB", "Conn1",
+                new DataObject("{\"batchMaxSize\":3,\"batchLingerTime\":1000}"));
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+
+        // Different settings, different batchers
+        List<CompletableFuture<DataObject>> futures = new ArrayList<CompletableFuture<DataObject>>();
+        for (int i = 0; i < 2; i++) futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItA", new DataObject("{}"), null));
+        for (int i = 0; i < 3; i++) futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItB", new DataObject("{}"), null));
+        for (int i = 0; i < 5; i++) assertEquals(i<2 ? 2 : 3, futures.get(i).get().getJSONObject().getIntValue("batchSize"));
+
+        // Same settings, shared batcher
+        app.addEndpointForIntegration("queryPartnerBatch", "ItA", "Conn1",
+                new DataObject("{\"batchMaxSize\":3,\"batchLingerTime\":1000}"));
+
+        futures.clear();
+        futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItA", new DataObject("{}"), null));
+        futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItB", new DataObject("{}"), null));
+        futures.add(app.callOutboundEndpointAsync("queryPartnerBatch", "ItA", new DataObject("{}"), null));
+        for (int i = 0; i < 3; i++) assertEquals(3, futures.get(i).get().getJSONObject().getIntValue("batchSize"));
+    }
+
+    @Test
+    public void testEndpointTable() throws Exception {
+        // Generated by the annotation processor at test compilation
+        EndpointTable table = (EndpointTable) Class.forName(ExampleApp.class.getName() + EndpointTable.CLASS_SUFFIX).newInstance();
+        assertEquals(2, table.getInboundEndpoints().size());
+        assertEquals(4, table.getOutboundEndpoints().size());
+
+        // The subclass has no table, its endpoints are found by reflection
+        Application[] apps = new Application[]{new ExampleApp(), new ExampleApp() {}};
+
+        for (Application app : apps) {
+            app.init(new DataObject("{}"), null);
+            app.start(null);
+            app.addEndpointForIntegration("queryPartner", "ItA", "Conn1", new DataObject("{}"));
+            app.addEndpointForIntegration("queryPartnerBatch", "ItA", "Conn1", new DataObject("{}"));
+            app.createConnection("Conn1", new DataObject("{}"), null);
+            app.connect("Conn1", null);
+
+            assertEquals("OK", app.callOutboundEndpoint("queryPartner", "ItA", new DataObject("{}"), null)
+                    .getJSONObject().getString("status"));
+            assertEquals(2, app.callOutboundEndpointBatch("queryPartnerBatch", "ItA",
+                    Arrays.asList(new DataObject("{\"id\":1}"), new DataObject("{\"id\":2}")), null).size());
+        }
+    }
+
     @Test
     public void testInboundEndpointByItKey() throws Exception {
         String appId = "sample";
@@ -151,6 +452,113 @@ public class HttpBaseApplicationTest {
         assertEquals(response.getStatusCode(), 200);
     }
 
+    @Test
+    public void testInboundEndpointByRawPath() throws Exception {
+        String appId = "sample";
+        ExampleApp app = new ExampleApp();
+        app.setId(appId);
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("user", "luyao");
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/"+appId+"/orders/A100?x=1", null, params, new DataObject("{}"));
+        HttpResponse response = new HttpResponse();
+
+        app.handle(request, response, null);
+        assertEquals(200, response.getStatusCode());
+        assertEquals("A100", response.getBody().getJSONObject().getString("orderId"));
+        assertEquals("luyao", request.getParameter("user"));
+    }
+
+    @Test
+    public void testInboundEndpointByConnection() throws Exception {
+        String appId = "sample";
+        ExampleApp app = new ExampleApp();
+        app.setId(appId);
+        app.init(new DataObject("{}"), null);
+        app.start(null);
+
+        app.createConnection("Conn1", new DataObject("{}"), null);
+        app.connect("Conn1", null);
+        app.createConnection("Conn2", new DataObject("{}"), null);
+        app.connect("Conn2", null);
+
+        app.addEndpointForIntegration("getOrder", "ItA", "Conn1", new DataObject("{}"));
+        app.addEndpointForIntegration("getOrder", "ItB", "Conn1", new DataObject("{}"));
+        app.addEndpointForIntegration("getOrder", "ItC", "Conn2", new DataObject("{}"));
+        app.addEndpointForIntegration("getOrderList", "ItD", "Conn1", new DataObject("{}")); // Name prefixed by "getOrder"
+
+        assertEquals("[\"ItA\",\"ItB\"]", _getOrderIntegrations(app, "Conn1"));
+        assertEquals("[\"ItC\"]", _getOrderIntegrations(app, "Conn2"));
+
+        app.removeEndpointForIntegration("getOrder", "ItA");
+        assertEquals("[\"ItB\"]", _getOrderIntegrations(app, "Conn1"));
+
+        // Rebound to another connection
+        app.addEndpointForIntegration("getOrder", "ItB", "Conn2", new DataObject("{}"));
+        assertNull(_getOrderIntegrations(app, "Conn1"));
+        assertEquals("[\"ItC\",\"ItB\"]", _getOrderIntegrations(app, "Conn2"));
+    }
+
+    public static class TemplateApp extends ExampleApp {
+        @InboundEndpoint(address="/files/{name}.json", connectionKeyInReqeust="user")
+        public void getFile(HttpRequest request, HttpResponse response, String[] integrationIds,
+                            String connectionId, Context ctx) throws Exception {
+            response.setStatusCode(200);
+        }
+
+        @InboundEndpoint(address="/order-{id}", connectionKeyInReqeust="user")
+        public void getOrderByDash(HttpRequest request, HttpResponse response, String[] integrationIds,
+                                   String connectionId, Context ctx) throws Exception {
+            response.setStatusCode(200);
+        }
+
+        @InboundEndpoint(address="/a/{id}", connectionKeyInReqeust="user")
+        public void getA(HttpRequest request, HttpResponse response, String[] integrationIds,
+                         String connectionId, Context ctx) throws Exception {
+            response.setStatusCode(200);
+        }
+
+        @InboundEndpoint(address="/a/{name}", connectionKeyInReqeust="user")
+        public void getAByName(HttpRequest request, HttpResponse response, String[] integrationIds,
+                               String connectionId, Context ctx) throws Exception {
+            response.setStatusCode(200);
+        }
+    }
+
+    @Test
+    public void testInboundEndpointNotRouted() throws Exception {
+        String appId = "sample";
+        ExampleApp app = new TemplateApp();
+        app.setId(appId);
+        app.init(new DataObject("{}"), null);
+
+        // Addresses the router can not take do not stop the application from starting
+        app.start(null);
+
+        String[] paths = new String[]{"/files/{name}.json", "/order-{id}", "/a/{id}", "/a/{name}", "/a/100", "/orders/A100"};
+        for (String path : paths) {
+            HttpRequest request = new HttpRequest(HttpMethod.GET, "/"+appId+path, null,
+                    new HashMap<String, String>(), new DataObject("{}"));
+            HttpResponse response = new HttpResponse();
+
+            app.handle(request, response, null);
+            assertEquals(path, 200, response.getStatusCode());
+        }
+    }
+
+    private String _getOrderIntegrations(ExampleApp app, String connectionId) throws Exception {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("user", connectionId);
+        HttpRequest request = new HttpRequest(HttpMethod.GET, "/"+app.getId()+"/orders/A100", null, params, new DataObject("{}"));
+        HttpResponse response = new HttpResponse();
+
+        app.handle(request, response, null);
+        Object ids = response.getBody().getJSONObject().get("integrationIds");
+        return ids==null ? null : JSON.toJSONString(ids);
+    }
+
     @After
     public void tearDown() {
     }
@@ -3,13 +3,22 @@ package cloud.phusion.test;
 import static org.junit.Assert.*;
 
 import cloud.phusion.DataObject;
+import cloud.phusion.PhusionException;
 import cloud.phusion.integration.StepEndpoint;
 import cloud.phusion.integration.IntegrationDefinition;
 import cloud.phusion.integration.StepJavaScript;
+import cloud.phusion.integration.WorkflowPlan;
+import cloud.phusion.integration.WorkflowValidator;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
 import org.junit.*;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
 public class IntegrationDefinitionTest {
 
     @Before
@@ -44,6 +53,118 @@ public class IntegrationDefinitionTest {
         assertTrue( ((StepJavaScript) it.getStepById("04")).isAsync() );
     }
 
+    @Test
+    public void testWorkflowPlan() throws Exception {
+        String file = this.getClass().getClassLoader().getResource("").getPath() + "workflow.json";
+
+        IntegrationDefinition it = new IntegrationDefinition();
+        it.setWorkflow(file);
+        WorkflowPlan plan = it.getWorkflowPlan();
+
+        assertEquals( 8, plan.getStepCount() );
+        assertEquals( "01", plan.getStep(plan.getFirstStep()).getId() );
+        assertEquals( "exception", plan.getStep(plan.getExceptionStep()).getId() );
+        assertEquals( WorkflowPlan.NONE, plan.getStepIndex("none") );
+
+        int s01 = plan.getStepIndex("01");
+        int s04 = plan.getStepIndex("04");
+        assertArrayEquals( new int[]{plan.getStepIndex("02"), s04}, plan.getNextSteps(s01) );
+        assertEquals( 3, plan.getFanIn(s04) );
+        assertEquals( 0, plan.getNextSteps(plan.getStepIndex("07")).length );
+        assertEquals( plan.getStepIndex("07"), plan.getCollectStep(plan.getStepIndex("05")) );
+        assertEquals( WorkflowPlan.NONE, plan.getCollectStep(s01) );
+
+        assertTrue( plan.isAcyclic() );
+        int[] order = plan.getTopologicalOrder();
+        assertEquals( 8, order.length );
+        int[] position = new int[order.length];
+        for (int i = 0; i < order.length; i++) position[order[i]] = i;
+        for (int i = 0; i < order.length; i++) {
+            for (int next : plan.getNextSteps(i)) assertTrue( position[i] < position[next] );
+        }
+    }
+
+    @Test
+    public void testWorkflowValidator() throws Exception {
+        String file = this.getClass().getClassLoader().getResource("").getPath() + "workflow.json";
+
+        IntegrationDefinition it = new IntegrationDefinition();
+        it.setWorkflow(file);
+        WorkflowValidator.validate(it);
+
+        WorkflowPlan plan = it.getWorkflowPlan();
+        assertEquals( 1, WorkflowValidator.getIndependentBranches(plan, plan.getStepIndex("01")).length );
+
+        it.setWorkflow(JSON.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"direct\"}," +
+                "{\"id\":\"02\",\"type\":\"direct\",\"from\":\"01\"}," +
+                "{\"id\":\"03\",\"type\":\"direct\",\"from\":\"01\"}," +
+                "{\"id\":\"04\",\"type\":\"direct\",\"from\":\"03\"}," +
+                "{\"id\":\"05\",\"type\":\"direct\",\"from\":\"01\"}," +
+                "{\"id\":\"06\",\"type\":\"direct\",\"from\":[\"02\",\"04\",\"05\"]}" +
+                "]"));
+        WorkflowValidator.validate(it);
+        plan = it.getWorkflowPlan();
+        assertEquals( 3, WorkflowValidator.getIndependentBranches(plan, plan.getStepIndex("01")).length );
+
+        it.setWorkflow(JSON.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"direct\"}," +
+                "{\"id\":\"02\",\"type\":\"direct\"}," +
+                "{\"id\":\"03\",\"type\":\"direct\",\"from\":[\"01\",\"04\"]}," +
+                "{\"id\":\"04\",\"type\":\"direct\",\"from\":\"03\"}," +
+                "{\"id\":\"05\",\"type\":\"forEach\",\"from\":\"none\"}," +
+                "{\"id\":\"06\",\"type\":\"collect\",\"from\":\"02\"}" +
+                "]"));
+        String problems = String.join("; ", WorkflowValidator.findProblems(it));
+        assertTrue( problems.contains("unknown step: none") );
+        assertTrue( problems.contains("multiple first steps: 01,02") );
+        assertTrue( problems.contains("cycle among steps: 03,04") );
+        assertTrue( problems.contains("no Collect step for ForEach step: 05") );
+        assertTrue( problems.contains("no ForEach step for Collect step: 06") );
+
+        try {
+            WorkflowValidator.validate(it);
+            fail();
+        } catch (PhusionException ex) {
+            assertEquals( "WF_INVALID", ex.getCode() );
+        }
+    }
+
+    @Test
+    public void testWorkflowCache() throws Exception {
+        String file = this.getClass().getClassLoader().getResource("").getPath() + "workflow.json";
+        IntegrationDefinition.clearWorkflowCache();
+
+        IntegrationDefinition it1 = new IntegrationDefinition();
+        it1.setWorkflow(file);
+        IntegrationDefinition it2 = new IntegrationDefinition();
+        it2.setWorkflow(file);
+
+        // Each definition has its own steps, changing one does not affect the other
+        assertNotSame( it1.getStepById("03"), it2.getStepById("03") );
+        ((StepEndpoint) it1.getStepById("03")).setConnectionId("OtherConn");
+        assertEquals( "LuyaoParkingConn", ((StepEndpoint) it2.getStepById("03")).getConnectionId() );
+
+        // A copy of the template is loaded from the cached document
+        Path copy = Files.createTempFile("workflow", ".json");
+        try {
+            Files.copy(Paths.get(file), copy, StandardCopyOption.REPLACE_EXISTING);
+            IntegrationDefinition it3 = new IntegrationDefinition();
+            it3.setWorkflow(copy.toString());
+            assertEquals( 8, it3.getSteps().length );
+            assertEquals( "LuyaoParkingConn", ((StepEndpoint) it3.getStepById("03")).getConnectionId() );
+
+            // Changed file is read again
+            Files.write(copy, "[{\"id\":\"01\",\"type\":\"direct\",\"msg\":{}}]".getBytes(StandardCharsets.UTF_8));
+            IntegrationDefinition it4 = new IntegrationDefinition();
+            it4.setWorkflow(copy.toString());
+            assertEquals( 1, it4.getSteps().length );
+            assertEquals( 8, it3.getSteps().length );
+        } finally {
+            Files.deleteIfExists(copy);
+        }
+    }
+
     @After
     public void tearDown() {
     }
@@ -0,0 +1,96 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.protocol.http.PathRouter;
+import org.junit.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PathRouterTest {
+
+    private PathRouter<String> router;
+
+    @Before
+    public void setUp() {
+        router = new PathRouter<String>();
+
+        router.add("/orders", "list");
+        router.add("/orders/new", "new");
+        router.add("/orders/{id}", "order");
+        router.add("/orders/{id}/items/{itemId}", "item");
+        router.add("/orders/*/notes", "notes");
+        router.add("/order-stats", "stats");
+        router.add("/files/{*path}", "file");
+        router.add("/{*rest}", "fallback");
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        Map<String, String> vars = new HashMap<String, String>();
+
+        assertEquals("list", router.match("/orders", vars));
+        assertEquals("stats", router.match("/order-stats", vars));
+        assertEquals("new", router.match("/orders/new", vars));
+        assertTrue(vars.isEmpty());
+
+        assertEquals("order", router.match("/orders/123?verbose=true", vars));
+        assertEquals("123", vars.get("id"));
+
+        vars.clear();
+        assertEquals("item", router.match("/orders/123/items/9", vars));
+        assertEquals("123", vars.get("id"));
+        assertEquals("9", vars.get("itemId"));
+
+        vars.clear();
+        assertEquals("notes", router.match("/orders/123/notes", vars));
+        assertTrue(vars.isEmpty());
+
+        assertEquals("file", router.match("/files/a/b/c.txt", vars));
+        assertEquals("a/b/c.txt", vars.get("path"));
+
+        // Backtracks to the catch-all
+        vars.clear();
+        assertEquals("fallback", router.match("/orders/123/unknown", vars));
+        assertEquals("orders/123/unknown", vars.get("rest"));
+        assertEquals("/{*rest}", router.matchTemplate("/orders//x", null));
+
+        router.remove("/{*rest}");
+        assertNull(router.match("/orders/123/unknown", null));
+        assertNull(router.match("/other", null));
+        assertEquals(7, router.size());
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        String[] invalid = {"/a/{id", "/a/x{id}", "/a/{id}x", "/a/{*rest}/b", "/orders/{name}"};
+        for (String template : invalid) {
+            try {
+                router.add(template, "x");
+                fail(template);
+            } catch (IllegalArgumentException ex) {
+            }
+        }
+
+        // Failed additions do not change the router
+        assertEquals("order", router.match("/orders/1", null));
+        assertEquals(8, router.size());
+    }
+
+    @Test
+    public void testManyRoutes() throws Exception {
+        PathRouter<Integer> many = new PathRouter<Integer>();
+        for (int i = 0; i < 5000; i++) many.add("/app" + i + "/objects/{id}/v" + (i % 3), i);
+
+        Map<String, String> vars = new HashMap<String, String>();
+        assertEquals(Integer.valueOf(4321), many.match("/app4321/objects/xyz/v1", vars));
+        assertEquals("xyz", vars.get("id"));
+        assertNull(many.match("/app4321/objects/xyz/v0", null));
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+}
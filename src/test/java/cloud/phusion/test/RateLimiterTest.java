@@ -0,0 +1,183 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.application.DistributedRateLimiter;
+import cloud.phusion.application.RateLimiter;
+import cloud.phusion.application.RateLimiterRegistry;
+import cloud.phusion.test.util.MemoryKVStorage;
+import org.junit.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiterTest {
+
+    @Before
+    public void setUp() {
+    }
+
+    @Test
+    public void testReject() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 5);
+
+        for (int i = 0; i < 5; i++) assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(0, limiter.getAvailablePermits());
+
+        Thread.sleep(250); // 2 permits refilled
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void testWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        assertTrue(limiter.tryAcquire());
+
+        // The next permit is 50ms later
+        assertFalse(limiter.tryAcquire(1, 10, TimeUnit.MILLISECONDS));
+
+        long t = System.nanoTime();
+        assertTrue(limiter.tryAcquire(1, 200, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - t >= TimeUnit.MILLISECONDS.toNanos(30));
+
+        assertFalse(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testBlockConcurrently() throws Exception {
+        RateLimiter limiter = new RateLimiter(200, 10);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        AtomicInteger done = new AtomicInteger();
+
+        long t = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            pool.execute(() -> {
+                try {
+                    for (int j = 0; j < 15; j++) {
+                        limiter.acquire();
+                        done.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+
+        // 120 permits, 10 at once, the other 110 at 200/s: at least 550ms
+        assertEquals(120, done.get());
+        assertTrue(System.nanoTime() - t >= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+        RateLimiterRegistry registry = new RateLimiterRegistry();
+
+        RateLimiter limiter = registry.getLimiter("App", "ep", "Conn1", 100, 0);
+        assertSame(limiter, registry.getLimiter("App", "ep", "Conn1", 100, 0));
+        assertNotSame(limiter, registry.getLimiter("App", "ep", "Conn2", 100, 0));
+        assertEquals(100, limiter.getBurst());
+
+        registry.getLimiter("App", "ep", "Conn1", 50, 0);
+        assertEquals(50, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testDistributed() throws Exception {
+        MemoryKVStorage storage = new MemoryKVStorage();
+        AtomicLong clock = new AtomicLong(1000000 * 1000L + 20); // Fixed, in one window
+        DistributedRateLimiter[] engines = new DistributedRateLimiter[4];
+        for (int i = 0; i < engines.length; i++) {
+            engines[i] = new DistributedRateLimiter(storage, "App/ep/Conn", "Engine"+i, 100, 0);
+            engines[i].setClock(clock::get);
+        }
+
+        // Wait for the leases, but not for the next window
+        int granted = 0;
+        for (int n = 0; n < 200; n++) {
+            if (engines[n % engines.length].acquire(1, RateLimiter.Mode.Wait, 100, TimeUnit.MILLISECONDS)) granted++;
+        }
+
+        // The quota of the window is shared by the engines, leased in batches
+        assertEquals(100, granted);
+        assertTrue(storage.getOperations() < 200);
+
+        // The next window has a new quota
+        clock.addAndGet(1000);
+        assertTrue(engines[0].acquire(1, RateLimiter.Mode.Wait, 100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDistributedRejectFast() throws Exception {
+        MemoryKVStorage storage = new MemoryKVStorage();
+        AtomicLong clock = new AtomicLong(1000000 * 1000L + 20);
+        DistributedRateLimiter limiter = new DistributedRateLimiter(storage, "App/ep/Conn", "Engine0", 100, 0);
+        limiter.setClock(clock::get);
+        storage.setLatency(100);
+
+        // The lease is in flight, served by the local share without waiting for it
+        long t = System.nanoTime();
+        assertTrue(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - t < TimeUnit.MILLISECONDS.toNanos(40));
+        assertFalse(limiter.isFallingBack());
+
+        // Permits are there once the lease is done
+        Thread.sleep(500);
+        assertTrue(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDistributedRejectFirstCall() throws Exception {
+        MemoryKVStorage storage = new MemoryKVStorage();
+        AtomicLong clock = new AtomicLong(1000000 * 1000L + 20);
+        DistributedRateLimiter limiter = new DistributedRateLimiter(storage, "App/ep/Conn", "Engine0", 100, 0);
+        limiter.setClock(clock::get);
+
+        // One call per second, each the first of a fresh window
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+            clock.addAndGet(1000);
+        }
+        assertFalse(limiter.isFallingBack());
+
+        try {
+            limiter.acquire(101, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+
+    @Test
+    public void testDistributedFallback() throws Exception {
+        MemoryKVStorage storage = new MemoryKVStorage();
+        AtomicLong clock = new AtomicLong(1000000 * 1000L + 20);
+        DistributedRateLimiter limiter = new DistributedRateLimiter(storage, "App/ep/Conn", "Engine0", 100, 0);
+        limiter.setClock(clock::get);
+        limiter.setMinNodes(4);
+
+        storage.setLatency(200);
+        assertTrue(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+        assertFalse(limiter.isFallingBack());
+
+        // The lease times out (50ms by default)
+        clock.addAndGet(60);
+        assertTrue(limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS));
+        assertTrue(limiter.isFallingBack());
+
+        // The local share is 25 per second
+        int granted = 2;
+        while (limiter.acquire(1, RateLimiter.Mode.Reject, 0, TimeUnit.MILLISECONDS)) granted++;
+        assertTrue(granted>=20 && granted<=30);
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+}
@@ -0,0 +1,122 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.integration.CompiledCondition;
+import cloud.phusion.integration.RoutingIndex;
+import org.junit.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class RoutingIndexTest {
+
+    private RoutingIndex index;
+    private Map<String, CompiledCondition> conditions;
+
+    @Before
+    public void setUp() throws Exception {
+        index = new RoutingIndex();
+        conditions = new LinkedHashMap<String, CompiledCondition>();
+
+        for (int i = 0; i < 5000; i++) {
+            String condition;
+            switch (i % 5) {
+                case 0: condition = "msg.client == 'C" + i + "'"; break;
+                case 1: condition = "msg.client in ['C" + i + "', 'C" + (i+1) + "'] && msg.type == 'order'"; break;
+                case 2: condition = "msg.amount >= " + i + " && msg.amount < " + (i+10); break;
+                case 3: condition = "config.region == msg.region && msg.shop == " + i; break;
+                default: condition = i % 1000 == 4 ? "msg.type != 'refund'" :
+                        "(msg.client == 'C" + i + "' || msg.client == 'X" + i + "') && !msg.vip"; break;
+            }
+
+            DataObject config = new DataObject("{\"region\":\"R" + (i % 7) + "\"}");
+            CompiledCondition compiled = CompiledCondition.compile(condition).bind(config);
+            conditions.put("It" + i, compiled);
+            index.put("It" + i, compiled);
+        }
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        assertEquals( 5000, index.size() );
+
+        List<String> result = index.match(new DataObject("{\"client\":\"C10\",\"type\":\"refund\"}"));
+        assertEquals( "[It10]", result.toString() );
+
+        result = index.match(new DataObject("{\"client\":\"C12\",\"type\":\"order\"}"));
+        assertTrue( result.contains("It11") );
+        assertTrue( result.contains("It4") ); // msg.type != 'refund'
+
+        result = index.match(new DataObject("{\"amount\":\"105\"}"));
+        assertTrue( result.contains("It97") && result.contains("It102") );
+        assertFalse( result.contains("It92") );
+
+        // Candidates are far fewer than all integrations
+        assertTrue( index.getCandidates(new DataObject("{\"client\":\"C10\"}")).size() < 100 );
+
+        index.remove("It10");
+        assertFalse( index.match(new DataObject("{\"client\":\"C10\"}")).contains("It10") );
+        conditions.remove("It10");
+    }
+
+    @Test
+    public void testSameAsLinearScan() throws Exception {
+        Random random = new Random(1);
+
+        for (int n = 0; n < 300; n++) {
+            String msg = String.format("{\"client\":\"C%d\",\"type\":\"%s\",\"amount\":%d.5,\"region\":\"R%d\",\"shop\":%d,\"vip\":%b}",
+                    random.nextInt(5100), random.nextBoolean() ? "order" : "refund", random.nextInt(5100),
+                    random.nextInt(7), random.nextInt(5100), random.nextInt(20) == 0);
+            DataObject data = new DataObject(msg);
+
+            List<String> expected = new ArrayList<String>();
+            for (Map.Entry<String, CompiledCondition> entry : conditions.entrySet()) {
+                if (entry.getValue().test(data, null)) expected.add(entry.getKey());
+            }
+
+            List<String> result = index.match(data);
+            assertEquals( msg, expected.size(), result.size() );
+            assertTrue( msg, result.containsAll(expected) );
+        }
+    }
+
+    @Test
+    public void testEmptyRange() throws Exception {
+        RoutingIndex small = new RoutingIndex();
+        small.put("Empty", CompiledCondition.compile("msg.x > 5 && msg.x < 3"));
+        small.put("Point", CompiledCondition.compile("msg.x > 4 && msg.x <= 4"));
+        small.put("Range", CompiledCondition.compile("msg.x >= 3 && msg.x <= 5"));
+
+        // Used to recurse until StackOverflowError when building the interval tree
+        assertEquals( "[Range]", small.match(new DataObject("{\"x\":4}")).toString() );
+        assertEquals( "[]", small.getCandidates(new DataObject("{\"x\":10}")).toString() );
+
+        // "Point" stays a candidate at 4, since the index can not tell strict bounds apart after rounding
+        small.remove("Range");
+        assertEquals( "[]", small.match(new DataObject("{\"x\":4}")).toString() );
+        assertEquals( "[]", small.getCandidates(new DataObject("{\"x\":10}")).toString() );
+    }
+
+    @Test
+    public void testPrecision() throws Exception {
+        RoutingIndex small = new RoutingIndex();
+        small.put("Above", CompiledCondition.compile("msg.x > 9007199254740992"));
+        small.put("Below", CompiledCondition.compile("msg.y < 9007199254740993"));
+        small.put("Fraction", CompiledCondition.compile("msg.z > 4 && msg.z < 5"));
+
+        // Equal to the bounds as doubles, but not as numbers
+        assertEquals( "[Above]", small.match(new DataObject("{\"x\":9007199254740993}")).toString() );
+        assertEquals( "[Below]", small.match(new DataObject("{\"y\":9007199254740992}")).toString() );
+        assertEquals( "[Fraction]", small.match(new DataObject("{\"z\":4.00000000000000000001}")).toString() );
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+}
@@ -0,0 +1,330 @@
+package cloud.phusion.test;
+
+import static org.junit.Assert.*;
+
+import cloud.phusion.DataObject;
+import cloud.phusion.integration.*;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import org.junit.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkflowExecutorTest {
+
+    private ExecutorService pool;
+    private IntegrationDefinition it;
+    private List<String> trace;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = Executors.newFixedThreadPool(4);
+        trace = new CopyOnWriteArrayList<String>();
+
+        String file = this.getClass().getClassLoader().getResource("").getPath() + "workflow.json";
+        it = new IntegrationDefinition();
+        it.setWorkflow(file);
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> {
+            trace.add(step.getId());
+
+            switch (step.getId()) {
+                case "02":
+                case "03":
+                    trx.setMessage(new DataObject("{\"from\":\"" + step.getId() + "\"}"));
+                    break;
+                case "04":
+                    // Merged message of 01, 02, 03
+                    JSONObject merged = trx.getMessage().getJSONObject();
+                    assertEquals("{\"order\":1}", merged.getJSONObject("01").toJSONString());
+                    assertEquals("02", merged.getJSONObject("02").getString("from"));
+                    assertEquals("03", merged.getJSONObject("03").getString("from"));
+                    trx.setMessage(new DataObject("[1,2,3]"));
+                    break;
+                case "06":
+                    Thread.sleep(10);
+                    trx.setMessage(new DataObject("{\"item\":" + trx.getMessage().getString() + "}"));
+                    break;
+            }
+        }, pool);
+
+        Transaction trx = new Transaction("ItA", "T1", "01", null);
+        trx.setMessage(new DataObject("{\"order\":1}"));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isFailed());
+        assertTrue(result.isFinished());
+        JSONArray items = result.getMessage().getJSONArray();
+        assertEquals(3, items.size());
+        for (int i = 0; i < 3; i++) assertEquals(i+1, items.getJSONObject(i).getIntValue("item"));
+
+        assertEquals(1, Collections.frequency(trace, "04"));
+        assertEquals(3, Collections.frequency(trace, "06"));
+        assertEquals(1, Collections.frequency(trace, "07"));
+        assertFalse(trace.contains("exception"));
+    }
+
+    @Test
+    public void testParallelForEach() throws Exception {
+        IntegrationDefinition loop = new IntegrationDefinition();
+        loop.setWorkflow(JSONArray.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"forEach\",\"parallelism\":4}," +
+                "{\"id\":\"02\",\"type\":\"direct\",\"msg\":{},\"from\":\"01\"}," +
+                "{\"id\":\"03\",\"type\":\"collect\",\"from\":\"02\"}" +
+                "]"));
+
+        StepForEach step = (StepForEach) loop.getStepById("01");
+        assertEquals(4, step.getParallelism());
+        assertTrue(step.isOrdered());
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        WorkflowExecutor executor = new WorkflowExecutor(loop, (s, trx) -> {
+            if (! s.getId().equals("02")) return;
+
+            int n = running.incrementAndGet();
+            maxRunning.accumulateAndGet(n, Math::max);
+
+            // Later items finish earlier
+            int item = Integer.parseInt(trx.getMessage().getString());
+            Thread.sleep(2 * (20 - item));
+            trx.setMessage(new DataObject("{\"item\":" + item + "}"));
+
+            running.decrementAndGet();
+        }, pool);
+
+        StringBuilder array = new StringBuilder("[");
+        for (int i = 0; i < 20; i++) array.append(i == 0 ? "" : ",").append(i);
+        array.append("]");
+
+        Transaction trx = new Transaction("ItB", "T1", "01", null);
+        trx.setMessage(new DataObject(array.toString()));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isFailed());
+        JSONArray items = result.getMessage().getJSONArray();
+        assertEquals(20, items.size());
+        for (int i = 0; i < 20; i++) assertEquals(i, items.getJSONObject(i).getIntValue("item"));
+
+        assertTrue(maxRunning.get() > 1);
+        assertTrue(maxRunning.get() <= 4);
+    }
+
+    @Test
+    public void testCollectSink() throws Exception {
+        IntegrationDefinition loop = new IntegrationDefinition();
+        loop.setWorkflow(JSONArray.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"forEach\",\"parallelism\":4}," +
+                "{\"id\":\"02\",\"type\":\"direct\",\"msg\":{},\"from\":\"01\"}," +
+                "{\"id\":\"03\",\"type\":\"collect\",\"from\":\"02\",\"bufferSize\":2," +
+                "\"sink\":{\"type\":\"test\"}}" +
+                "]"));
+        assertEquals("test", ((StepCollect) loop.getStepById("03")).getSinkType());
+
+        AtomicInteger started = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        List<Object> written = new CopyOnWriteArrayList<Object>();
+
+        WorkflowExecutor executor = new WorkflowExecutor(loop, (s, trx) -> {
+            if (s.getId().equals("02")) started.incrementAndGet();
+        }, pool);
+
+        executor.setSinkFactory((step, trx) -> new CollectSink() {
+            @Override
+            public void write(Object item) throws Exception {
+                // Slow sink
+                maxAhead.accumulateAndGet(started.get() - written.size(), Math::max);
+                Thread.sleep(2);
+                written.add(item);
+            }
+
+            @Override
+            public DataObject close() {
+                return new DataObject("{\"count\":" + written.size() + "}");
+            }
+
+            @Override
+            public void abort(Exception reason) {
+            }
+        });
+
+        Transaction trx = new Transaction("ItB", "T1", "01", null);
+        trx.setMessage(new DataObject("[1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20]"));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isFailed());
+        assertEquals(20, result.getMessage().getJSONObject().getIntValue("count"));
+        assertEquals("1", written.get(0));
+        assertEquals("20", written.get(19));
+        assertTrue(maxAhead.get() <= 6); // parallelism + bufferSize
+    }
+
+    @Test
+    public void testCollectChunks() throws Exception {
+        IntegrationDefinition loop = new IntegrationDefinition();
+        loop.setWorkflow(JSONArray.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"forEach\"}," +
+                "{\"id\":\"02\",\"type\":\"direct\",\"msg\":{},\"from\":\"01\"}," +
+                "{\"id\":\"03\",\"type\":\"collect\",\"from\":\"02\",\"sink\":{\"type\":\"chunks\",\"size\":3}}," +
+                "{\"id\":\"04\",\"type\":\"direct\",\"msg\":{},\"from\":\"03\"}" +
+                "]"));
+
+        List<Integer> chunks = new CopyOnWriteArrayList<Integer>();
+
+        WorkflowExecutor executor = new WorkflowExecutor(loop, (s, trx) -> {
+            if (s.getId().equals("04")) chunks.add(trx.getMessage().getJSONArray().size());
+        }, pool);
+
+        Transaction trx = new Transaction("ItB", "T1", "01", null);
+        trx.setMessage(new DataObject("[1,2,3,4,5,6,7,8]"));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertFalse(result.isFailed());
+        assertTrue(result.isFinished());
+        assertEquals("[3, 3, 2]", chunks.toString());
+    }
+
+    @Test
+    public void testCollectChunksOnSingleThread() throws Exception {
+        IntegrationDefinition loop = new IntegrationDefinition();
+        loop.setWorkflow(JSONArray.parseArray("[" +
+                "{\"id\":\"01\",\"type\":\"forEach\",\"parallelism\":2}," +
+                "{\"id\":\"02\",\"type\":\"direct\",\"msg\":{},\"from\":\"01\"}," +
+                "{\"id\":\"03\",\"type\":\"collect\",\"from\":\"02\",\"sink\":{\"type\":\"chunks\",\"size\":2}}," +
+                "{\"id\":\"04\",\"type\":\"direct\",\"msg\":{},\"from\":\"03\"}," +
+                "{\"id\":\"05\",\"type\":\"direct\",\"msg\":{},\"from\":\"03\"}" +
+                "]"));
+
+        List<Integer> chunks = new CopyOnWriteArrayList<Integer>();
+        ExecutorService single = Executors.newFixedThreadPool(1);
+
+        try {
+            // The items and the fanned-out steps after Collect share one thread, chunks must not wait on it
+            WorkflowExecutor executor = new WorkflowExecutor(loop, (s, trx) -> {
+                if (s.getId().equals("05")) chunks.add(trx.getMessage().getJSONArray().size());
+            }, single);
+
+            Transaction trx = new Transaction("ItB", "T1", "01", null);
+            trx.setMessage(new DataObject("[1,2,3,4,5,6,7]"));
+
+            Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+            assertFalse(result.isFailed());
+            assertEquals("[2, 2, 2, 1]", chunks.toString());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testException() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> {
+            trace.add(step.getId());
+            if (step.getId().equals("03")) throw new Exception("Partner is down");
+        }, pool);
+
+        Transaction trx = new Transaction("ItA", "T1", "01", null);
+        trx.setMessage(new DataObject("{}"));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isFailed());
+        assertEquals("Partner is down", result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID));
+        assertEquals(1, Collections.frequency(trace, "exception"));
+        assertFalse(trace.contains("04"));
+    }
+
+    @Test
+    public void testExceptionByRunner() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> {
+            trace.add(step.getId());
+            if (step.getId().equals("03")) trx.moveToException("Coupon rejected");
+        }, pool);
+
+        Transaction trx = new Transaction("ItA", "T1", "01", null);
+        trx.setMessage(new DataObject("{}"));
+
+        // Moved into exception by the step runner, the same as thrown
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isFailed());
+        assertTrue(result.isFinished());
+        assertEquals("Coupon rejected", result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID));
+        assertEquals(1, Collections.frequency(trace, "exception"));
+        assertFalse(trace.contains("04"));
+    }
+
+    @Test
+    public void testJoinFromUnknownStep() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> trace.add(step.getId()), pool);
+
+        // Resumed at the join step, but not from any of its "from" steps
+        Transaction trx = new Transaction("ItA", "T1", "04", null);
+        trx.setMessage(new DataObject("{}"));
+
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertNotNull(result);
+        assertTrue(result.isFailed());
+        assertTrue(String.valueOf(result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID)).contains("WF_JOIN"));
+        assertEquals(1, Collections.frequency(trace, "exception"));
+        assertFalse(trace.contains("04"));
+    }
+
+    @Test
+    public void testError() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> {
+            trace.add(step.getId());
+            if (step.getId().equals("03")) throw new AssertionError("Broken step");
+        }, pool);
+
+        Transaction trx = new Transaction("ItA", "T1", "01", null);
+        trx.setMessage(new DataObject("{}"));
+
+        // Errors fail the transaction too, instead of leaving the future incomplete
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isFailed());
+        assertEquals("Broken step", result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID));
+        assertEquals(1, Collections.frequency(trace, "exception"));
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        WorkflowExecutor executor = new WorkflowExecutor(it, (step, trx) -> trace.add(step.getId()), task -> {
+            throw new RejectedExecutionException("Pool is full");
+        });
+
+        Transaction trx = new Transaction("ItA", "T1", "01", null);
+        trx.setMessage(new DataObject("{}"));
+
+        // The fanned-out branch is not run in the current thread, the transaction fails
+        Transaction result = executor.execute(trx).get(5, TimeUnit.SECONDS);
+
+        assertTrue(result.isFailed());
+        assertTrue(String.valueOf(result.getProperty(IntegrationDefinition.EXCEPTION_STEP_ID)).contains("WF_REJECTED"));
+        assertEquals(1, Collections.frequency(trace, "exception"));
+        assertFalse(trace.contains("04"));
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+}
@@ -12,6 +12,12 @@ import cloud.phusion.protocol.http.HttpRequest;
 import cloud.phusion.protocol.http.HttpResponse;
 import com.alibaba.fastjson2.JSONObject;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class ExampleApp extends HttpBaseApplication {
 
 //    @Override
@@ -49,6 +55,61 @@ public class ExampleApp extends HttpBaseApplication {
         return new DataObject("{\"status\":\"OK\"}");
     }
 
+    /**
+     * Simulates a partner system: msg {"fail": Boolean, "sleep": Integer (milliseconds)}.
+     */
+    @OutboundEndpoint
+    public DataObject queryPartner(DataObject msg, String integrationId, String connectionId, Context ctx) throws Exception {
+        JSONObject obj = msg.getJSONObject();
+        if (obj.getIntValue("sleep") > 0) Thread.sleep(obj.getIntValue("sleep"));
+        if (obj.getBooleanValue("fail")) throw new Exception("Partner failure");
+        if (obj.getBooleanValue("error")) throw new AssertionError("Partner broken");
+        return new DataObject("{\"status\":\"OK\"}");
+    }
+
+    @OutboundEndpoint
+    public CompletionStage<DataObject> queryPartnerAsync(DataObject msg, String integrationId, String connectionId, Context ctx) throws Exception {
+        CompletableFuture<DataObject> result = new CompletableFuture<DataObject>();
+        new Thread(() -> {
+            try {
+                result.complete( queryPartner(msg, integrationId, connectionId, ctx) );
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+        }).start();
+        return result;
+    }
+
+    public static final AtomicInteger batchCalls = new AtomicInteger();
+
+    /**
+     * Echoes "id" of each message.
+     */
+    @OutboundEndpoint(batch=true)
+    public List<DataObject> queryPartnerBatch(List<DataObject> msgs, String integrationId, String connectionId, Context ctx) throws Exception {
+        batchCalls.incrementAndGet();
+
+        List<DataObject> result = new ArrayList<DataObject>();
+        for (DataObject msg : msgs) {
+            JSONObject obj = new JSONObject();
+            obj.put("id", msg.getJSONObject().get("id"));
+            obj.put("batchSize", msgs.size());
+            result.add(new DataObject(obj));
+        }
+        return result;
+    }
+
+    @InboundEndpoint(address="/orders/{orderId}", connectionKeyInReqeust="user")
+    public void getOrder(HttpRequest request, HttpResponse response, String[] integrationIds,
+                         String connectionId, Context ctx) throws Exception {
+        JSONObject result = new JSONObject();
+        result.put("orderId", request.getParameter("orderId"));
+        result.put("integrationIds", integrationIds);
+
+        response.setStatusCode(200);
+        response.setBody(new DataObject(result));
+    }
+
     @InboundEndpoint(address="/order", connectionKeyInReqeust="user")
     public void notifyOrder(HttpRequest request, HttpResponse response, String[] integrationIds,
                                          String connectionId, Context ctx) throws Exception {
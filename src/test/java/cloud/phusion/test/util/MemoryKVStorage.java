@@ -0,0 +1,120 @@
+package cloud.phusion.test.util;
+
+import cloud.phusion.Context;
+import cloud.phusion.storage.KVStorage;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory KV storage for tests, shared by the simulated engines. Each operation can be delayed.
+ */
+public class MemoryKVStorage implements KVStorage {
+
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentHashMap<String, Long> locks = new ConcurrentHashMap<String, Long>();
+    private volatile long latency = 0;
+    private volatile int operations = 0;
+
+    public void setLatency(long milliseconds) {
+        this.latency = milliseconds;
+    }
+
+    public int getOperations() {
+        return operations;
+    }
+
+    @Override
+    public void put(String key, Object value) throws Exception {
+        _delay();
+        values.put(key, value);
+    }
+
+    @Override
+    public void put(String key, Object value, long millisecondsToLive) throws Exception {
+        put(key, value);
+    }
+
+    @Override
+    public void put(String key, Object value, Context ctx) throws Exception {
+        put(key, value);
+    }
+
+    @Override
+    public void put(String key, Object value, long millisecondsToLive, Context ctx) throws Exception {
+        put(key, value);
+    }
+
+    @Override
+    public Object get(String key) throws Exception {
+        _delay();
+        return values.get(key);
+    }
+
+    @Override
+    public Object get(String key, Context ctx) throws Exception {
+        return get(key);
+    }
+
+    @Override
+    public boolean doesExist(String key) throws Exception {
+        _delay();
+        return values.containsKey(key);
+    }
+
+    @Override
+    public boolean doesExist(String key, Context ctx) throws Exception {
+        return doesExist(key);
+    }
+
+    @Override
+    public void remove(String key) throws Exception {
+        _delay();
+        values.remove(key);
+    }
+
+    @Override
+    public void remove(String key, Context ctx) throws Exception {
+        remove(key);
+    }
+
+    @Override
+    public boolean lock(String key) throws Exception {
+        return lock(key, 60000);
+    }
+
+    @Override
+    public boolean lock(String key, long millisecondsToLive) throws Exception {
+        _delay();
+
+        long now = System.currentTimeMillis();
+        Long expire = locks.putIfAbsent(key, now + millisecondsToLive);
+        if (expire == null) return true;
+        return expire < now && locks.replace(key, expire, now + millisecondsToLive);
+    }
+
+    @Override
+    public void unlock(String key) throws Exception {
+        locks.remove(key);
+    }
+
+    @Override
+    public boolean lock(String key, Context ctx) throws Exception {
+        return lock(key);
+    }
+
+    @Override
+    public boolean lock(String key, long millisecondsToLive, Context ctx) throws Exception {
+        return lock(key, millisecondsToLive);
+    }
+
+    @Override
+    public void unlock(String key, Context ctx) throws Exception {
+        unlock(key);
+    }
+
+    private void _delay() throws InterruptedException {
+        operations++;
+        if (latency > 0) Thread.sleep(latency);
+    }
+
+}